@@ -5,6 +5,8 @@ import org.junit.Test;
 import java.util.ArrayList;
 import java.util.List;
 
+import info.varden.hauk.Constants;
+
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
@@ -18,11 +20,69 @@ public final class ReceiverDataRegistryTest {
         testObject.add(19);
 
         // Store the object
-        int index = ReceiverDataRegistry.register(testObject);
+        long index = ReceiverDataRegistry.register(testObject);
 
         // Retrieve the object
         Object retrieved = ReceiverDataRegistry.retrieve(index);
         assertThat("Retrieved object is wrong type", retrieved, is(instanceOf(testObject.getClass())));
         assertThat("Retrieved object is different instance", retrieved, is(sameInstance((Object) testObject)));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void keptObjectsShareIndex() {
+        Object testObject = new Object();
+        long index = ReceiverDataRegistry.register(testObject, true);
+        assertThat("Kept object registered under new index", ReceiverDataRegistry.register(testObject, true), is(index));
+        assertThat("Kept object not retrievable", ReceiverDataRegistry.retrieve(index, true), is(sameInstance(testObject)));
+        assertThat("Kept object removed by retrieval", ReceiverDataRegistry.retrieve(index, true), is(sameInstance(testObject)));
+
+        // Objects that are not kept always get a new index.
+        long single = ReceiverDataRegistry.register(testObject);
+        assertThat("Single retrieval shares index with kept object", single, is(not(index)));
+        ReceiverDataRegistry.retrieve(single);
+        ReceiverDataRegistry.retrieve(index);
+    }
+
+    @Test
+    public void equalObjectsDoNotShareIndex() {
+        List<Integer> first = new ArrayList<>();
+        List<Integer> second = new ArrayList<>();
+        long index = ReceiverDataRegistry.register(first, true);
+        assertThat("Equal object registered under same index", ReceiverDataRegistry.register(second, true), is(not(index)));
+    }
+
+    @Test
+    public void retrieveAfterRemoval() {
+        Object testObject = new Object();
+        long index = ReceiverDataRegistry.register(testObject);
+        assertThat("Object not retrievable", ReceiverDataRegistry.retrieve(index), is(sameInstance(testObject)));
+        assertThat("Object retrievable after removal", ReceiverDataRegistry.retrieve(index), is(nullValue()));
+
+        // A kept object is given a new index once its entry has been removed.
+        long kept = ReceiverDataRegistry.register(testObject, true);
+        assertThat("Kept object not retrievable", ReceiverDataRegistry.retrieve(kept), is(sameInstance(testObject)));
+        assertThat("Kept object retrievable after removal", ReceiverDataRegistry.retrieve(kept, true), is(nullValue()));
+        long renewed = ReceiverDataRegistry.register(testObject, true);
+        assertThat("Removed index reused", renewed, is(not(kept)));
+        ReceiverDataRegistry.retrieve(renewed);
+    }
+
+    @Test
+    public void entriesExpire() {
+        Object testObject = new Object();
+        long index = ReceiverDataRegistry.register(testObject, true);
+        long now = System.currentTimeMillis();
+
+        ReceiverDataRegistry.removeExpired(now);
+        assertThat("Entry expired before time-to-live", ReceiverDataRegistry.retrieve(index, true), is(sameInstance(testObject)));
+
+        ReceiverDataRegistry.removeExpired(now + Constants.RECEIVER_REGISTRY_TTL + 1000L);
+        assertThat("Entry retrievable after time-to-live", ReceiverDataRegistry.retrieve(index, true), is(nullValue()));
+        assertThat("Expired kept object registered under old index", ReceiverDataRegistry.register(testObject, true), is(not(index)));
+    }
+
+    @Test
+    public void invalidIndex() {
+        assertThat("Invalid index resolved to an object", ReceiverDataRegistry.retrieve(-1L), is(nullValue()));
+    }
+}
@@ -1,6 +1,8 @@
 package info.varden.hauk;
 
+import info.varden.hauk.http.UploadPolicy;
 import info.varden.hauk.http.security.CertificateValidationPolicy;
+import info.varden.hauk.service.filter.LocationFilterMode;
 import info.varden.hauk.struct.Version;
 import info.varden.hauk.system.preferences.Preference;
 import info.varden.hauk.system.preferences.indexresolver.NightModeStyle;
@@ -39,6 +41,21 @@ public enum Constants {
     public static final Preference<Integer> PREF_INTERVAL = new Preference.Integer("interval", 1);
     public static final Preference<Integer> PREF_NO_GNSS_FALLBACK = new Preference.Integer("noGnssFallback", 45);
     public static final Preference<Float> PREF_UPDATE_DISTANCE = new Preference.Float("minUpdateDistance", 0.0F);
+    public static final Preference<Boolean> PREF_ADAPTIVE_INTERVAL = new Preference.Boolean("adaptiveInterval", false);
+    public static final Preference<Integer> PREF_ADAPTIVE_MAX_INTERVAL = new Preference.Integer("adaptiveMaxInterval", 300);
+    public static final Preference<Integer> PREF_GNSS_BATCH_DELAY = new Preference.Integer("gnssBatchDelay", 0);
+    public static final Preference<Float> PREF_GNSS_DUTY_CYCLE_ACCURACY = new Preference.Float("gnssDutyCycleAccuracy", 0.0F);
+    public static final Preference<LocationFilterMode> PREF_LOCATION_FILTER = new Preference.Enum<>("locationFilter", LocationFilterMode.NONE);
+    public static final Preference<String> PREF_REPLAY_TRACK = new Preference.String("replayTrack", "");
+    public static final Preference<Float> PREF_REPLAY_SPEED = new Preference.Float("replaySpeed", 1.0F);
+    public static final Preference<Float> PREF_DEAD_RECKONING_ERROR = new Preference.Float("deadReckoningError", 0.0F);
+    public static final Preference<Integer> PREF_DEAD_RECKONING_HEARTBEAT = new Preference.Integer("deadReckoningHeartbeat", 20);
+    public static final Preference<UploadPolicy> PREF_UPLOAD_POLICY = new Preference.Enum<>("uploadPolicy", UploadPolicy.LATEST_WINS);
+    public static final Preference<Integer> PREF_UPLOAD_QUEUE_SIZE = new Preference.Integer("uploadQueueSize", 60);
+    public static final Preference<Integer> PREF_UPLOAD_KEEP_NTH = new Preference.Integer("uploadKeepNth", 5);
+    public static final Preference<Integer> PREF_UPLOAD_BATCH_SIZE = new Preference.Integer("uploadBatchSize", 1);
+    public static final Preference<Integer> PREF_UPLOAD_BATCH_WINDOW = new Preference.Integer("uploadBatchWindow", 30);
+    public static final Preference<Integer> PREF_UPLOAD_CELLULAR_BUDGET = new Preference.Integer("uploadCellularBudget", 0);
     public static final Preference<String> PREF_CUSTOM_ID = new Preference.String("requestLink", "");
     public static final Preference<Boolean> PREF_ENABLE_E2E = new Preference.Boolean("enableE2E", false);
     public static final Preference<String> PREF_E2E_PASSWORD = new Preference.EncryptedString("e2ePassword", "");
@@ -58,10 +75,24 @@ public enum Constants {
 
     // Keys for use in session resumption preferences.
     public static final String RESUME_AVAILABLE = "canResume";
-    public static final String RESUME_CLIENT_VERSION = "clientVersion";
+    public static final String RESUME_SESSION_RECORD = "sessionRecord";
+    @Deprecated // Resumption data is now stored in RESUME_SESSION_RECORD and SHARE_JOURNAL_FILE_NAME
     public static final String RESUME_SESSION_PARAMS = "sessionParams";
+    @Deprecated // Resumption data is now stored in RESUME_SESSION_RECORD and SHARE_JOURNAL_FILE_NAME
     public static final String RESUME_SHARE_PARAMS = "shareParams";
 
+    // Format version of session resumption records. Only needs to be incremented for changes that
+    // cannot be handled by adding or ignoring fields.
+    public static final int RESUME_RECORD_FORMAT_VERSION = 1;
+
+    // Time after which objects in ReceiverDataRegistry expire if they are not used, in milliseconds.
+    public static final long RECEIVER_REGISTRY_TTL = 24L * 60 * 60 * 1000;
+
+    // Journal of resumable shares, and the number of superseded entries to allow in it before it is
+    // compacted.
+    public static final String SHARE_JOURNAL_FILE_NAME = "shares.journal";
+    public static final int SHARE_JOURNAL_COMPACT_THRESHOLD = 64;
+
     // Keys for use in device spec preferences.
     public static final String DEVICE_PREF_WARNED_BATTERY_SAVINGS = "hasPromptedBatterySavings";
 
@@ -104,8 +135,10 @@ public enum Constants {
     // Packet parameter keys.
     public static final String PACKET_PARAM_ACCURACY = "acc";
     public static final String PACKET_PARAM_ADOPTABLE = "ado";
+    public static final String PACKET_PARAM_BEARING = "brg";
     public static final String PACKET_PARAM_DURATION = "dur";
     public static final String PACKET_PARAM_E2E_FLAG = "e2e";
+    public static final String PACKET_PARAM_ENVELOPE = "env";
     public static final String PACKET_PARAM_GROUP_PIN = "pin";
     public static final String PACKET_PARAM_ID_TO_ADOPT = "aid";
     public static final String PACKET_PARAM_INIT_VECTOR = "iv";
@@ -128,6 +161,9 @@ public enum Constants {
 
     // HTTP data.
     public static final String HTTP_HEADER_HAUK_VERSION = "X-Hauk-Version";
+    public static final String HTTP_HEADER_SHARE_LIST_TOKEN = "X-Hauk-Share-List";
+    public static final String HTTP_CONTENT_TYPE_FORM = "application/x-www-form-urlencoded";
+    public static final String HTTP_CONTENT_TYPE_BINARY_LOCATION = "application/vnd.hauk.location";
 
     // Minimum backend version supporting group shares.
     public static final Version VERSION_COMPAT_GROUP_SHARE = new Version("1.1");
@@ -138,10 +174,74 @@ public enum Constants {
     // Minimum backend/frontend version that support end-to-end encryption.
     public static final Version VERSION_COMPAT_E2E_ENCRYPTION = new Version("1.5");
 
+    // Minimum backend version that accepts multiple location points in a single post request.
+    public static final Version VERSION_COMPAT_BATCH_POST = new Version("1.7");
+
+    // Minimum backend version that accepts location updates in the compact binary format.
+    public static final Version VERSION_COMPAT_BINARY_POST = new Version("1.7");
+
+    // Minimum backend/frontend version that supports AES-GCM sealed end-to-end encrypted records.
+    public static final Version VERSION_COMPAT_E2E_ENVELOPE = new Version("1.7");
+
+    // Minimum backend version that accepts a changed update interval with location updates.
+    public static final Version VERSION_COMPAT_ADAPTIVE_INTERVAL = new Version("1.7");
+
+    // Minimum backend/frontend version that stores the bearing of location updates and
+    // extrapolates the position of moving users between updates.
+    public static final Version VERSION_COMPAT_DEAD_RECKONING = new Version("1.7");
+
+    // Maximum number of location update requests that may be in flight at the same time. Kept at 1
+    // so that the backend receives fixes in the order they were obtained.
+    public static final int UPLOAD_MAX_IN_FLIGHT = 1;
+
+    // Shortest update interval, in seconds, for which GNSS fixes are batched in the location
+    // hardware when batching is enabled. At shorter intervals the device would wake up about as
+    // often either way.
+    public static final int GNSS_BATCHING_MIN_INTERVAL = 30;
+
+    // Shortest update interval, in seconds, for which the GNSS provider is turned off between fixes
+    // when duty cycling is enabled, and the interval fixes are requested at while it is on, in
+    // milliseconds.
+    public static final int GNSS_DUTY_CYCLE_MIN_INTERVAL = 120;
+    public static final long GNSS_DUTY_CYCLE_FIX_INTERVAL = 1000L;
+
+    // How long a cellular radio typically stays in its high-power state after a request, in
+    // milliseconds. Requests sent within this time of each other share one radio wake-up.
+    public static final long RADIO_TAIL_TIME = 10000L;
+
+    // Number of consecutive connection failures after which location uploads to a server are held
+    // back, and the initial and maximum spacing of probes while it is unreachable, in milliseconds.
+    public static final int CIRCUIT_BREAKER_FAILURE_THRESHOLD = 3;
+    public static final long CIRCUIT_BREAKER_BASE_DELAY = 5000L;
+    public static final long CIRCUIT_BREAKER_MAX_DELAY = 120000L;
+
+    // Time within which a request must complete, covering connecting, sending the request and
+    // reading the full response, in milliseconds. Location updates are superseded by the next
+    // update, so they are given up on sooner than other requests.
+    public static final long PACKET_DEADLINE = 30000L;
+    public static final long LOCATION_PACKET_DEADLINE = 15000L;
+
+    // Journal of location fixes that could not be delivered to the backend.
+    public static final String JOURNAL_FILE_NAME = "fixes.journal";
+    public static final int JOURNAL_CAPACITY = 4096;
+    public static final int JOURNAL_DRAIN_BATCH_SIZE = 50;
+
+    // Ring buffer of recent log messages that can be exported from the settings screen.
+    public static final String DIAGNOSTIC_LOG_FILE_NAME = "diagnostics.log";
+    public static final int DIAGNOSTIC_LOG_SIZE = 128 * 1024;
+
+    // Exported diagnostic logs are written to this directory in the cache directory, and shared
+    // through the file provider with this authority suffix.
+    public static final String DIAGNOSTIC_EXPORT_DIR = "diagnostics";
+    public static final String DIAGNOSTIC_EXPORT_FILE_NAME = "hauk-diagnostics.txt";
+    public static final String FILE_PROVIDER_AUTHORITY_SUFFIX = ".fileprovider";
+
     // End-to-end encryption specifications.
     public static final int E2E_AES_KEY_SIZE = 256;
     public static final int E2E_PBKDF2_ITERATIONS = 65536;
     public static final String E2E_KD_FUNCTION = "PBKDF2WithHmacSHA1";
     public static final String E2E_TRANSFORMATION = "AES/CBC/PKCS5Padding";
     public static final String E2E_KEY_SPEC = "AES";
+    public static final String E2E_ENVELOPE_TRANSFORMATION = "AES/GCM/NoPadding";
+    public static final int E2E_ENVELOPE_TAG_SIZE = 128;
 }
@@ -0,0 +1,235 @@
+package info.varden.hauk.caching;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import info.varden.hauk.http.parameter.LocationProvider;
+import info.varden.hauk.struct.LocationFix;
+import info.varden.hauk.utils.Log;
+
+/**
+ * A persistent journal of location fixes that could not be delivered to the backend. The journal
+ * is a fixed-size ring of fixed-size records in a memory-mapped file, so appending a fix is a few
+ * memory writes, and once the journal is full, the oldest fix is overwritten in place without any
+ * allocation. Because the mapping is backed by the page cache, the journal survives the app or
+ * service being killed and can be drained when sharing is resumed.
+ *
+ * The journal is tied to a single session. Opening it for another session discards its contents.
+ * This class is not thread-safe.
+ *
+ * @author Marius Lindvall
+ */
+public final class FixJournal {
+    /**
+     * Identifies a journal file, and its format version.
+     */
+    private static final int MAGIC = 0x484B4A32; // "HKJ2"
+
+    // Header layout.
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_CAPACITY = 4;
+    private static final int OFFSET_HEAD = 8;
+    private static final int OFFSET_COUNT = 12;
+    private static final int OFFSET_SESSION_LENGTH = 16;
+    private static final int OFFSET_SESSION = 20;
+    private static final int MAX_SESSION_LENGTH = 60;
+    private static final int HEADER_SIZE = OFFSET_SESSION + MAX_SESSION_LENGTH;
+
+    // Record layout.
+    private static final int RECORD_LATITUDE = 0;
+    private static final int RECORD_LONGITUDE = 8;
+    private static final int RECORD_TIMESTAMP = 16;
+    private static final int RECORD_SPEED = 24;
+    private static final int RECORD_ACCURACY = 28;
+    private static final int RECORD_PROVIDER = 32;
+    private static final int RECORD_FLAGS = 33;
+    private static final int RECORD_BEARING = 34;
+    private static final int RECORD_SIZE = 38;
+
+    private static final byte FLAG_HAS_SPEED = 0x1;
+    private static final byte FLAG_HAS_ACCURACY = 0x2;
+    private static final byte FLAG_HAS_BEARING = 0x4;
+
+    /**
+     * The file that backs the journal.
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * The memory mapping of the whole journal file.
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * The maximum number of fixes the journal can hold.
+     */
+    private final int capacity;
+
+    /**
+     * Index of the oldest fix in the ring, and the number of fixes stored. Mirrored in the header.
+     */
+    private int head;
+    private int count;
+
+    /**
+     * Opens or creates a journal for the given session.
+     *
+     * @param path      The journal file.
+     * @param sessionID The ID of the session that fixes are recorded for.
+     * @param capacity  The maximum number of fixes to keep. The oldest fixes are discarded when the
+     *                  journal is full.
+     * @throws IOException if the journal file could not be opened or mapped.
+     */
+    public FixJournal(File path, String sessionID, int capacity) throws IOException {
+        this.capacity = Math.max(1, capacity);
+        this.file = new RandomAccessFile(path, "rw"); //NON-NLS
+        this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) this.capacity * RECORD_SIZE);
+
+        byte[] session = sessionID.getBytes(StandardCharsets.UTF_8);
+        if (session.length > MAX_SESSION_LENGTH) session = Arrays.copyOf(session, MAX_SESSION_LENGTH);
+
+        if (isValidFor(session)) {
+            this.head = this.buffer.getInt(OFFSET_HEAD);
+            this.count = this.buffer.getInt(OFFSET_COUNT);
+            Log.i("Opened fix journal %s with %s undelivered fix(es)", path, this.count); //NON-NLS
+        } else {
+            Log.i("Creating new fix journal %s for session %s", path, sessionID); //NON-NLS
+            this.buffer.putInt(OFFSET_MAGIC, MAGIC);
+            this.buffer.putInt(OFFSET_CAPACITY, this.capacity);
+            this.buffer.putInt(OFFSET_SESSION_LENGTH, session.length);
+            for (int i = 0; i < session.length; i++) this.buffer.put(OFFSET_SESSION + i, session[i]);
+            this.head = 0;
+            this.count = 0;
+            writePointers();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FixJournal{capacity=" + this.capacity
+                + ",head=" + this.head
+                + ",count=" + this.count
+                + "}";
+    }
+
+    /**
+     * Checks whether the mapped file contains a journal with the same layout for the same session.
+     */
+    private boolean isValidFor(byte[] session) {
+        if (this.buffer.getInt(OFFSET_MAGIC) != MAGIC) return false;
+        if (this.buffer.getInt(OFFSET_CAPACITY) != this.capacity) return false;
+        if (this.buffer.getInt(OFFSET_SESSION_LENGTH) != session.length) return false;
+        for (int i = 0; i < session.length; i++) {
+            if (this.buffer.get(OFFSET_SESSION + i) != session[i]) return false;
+        }
+        int storedHead = this.buffer.getInt(OFFSET_HEAD);
+        int storedCount = this.buffer.getInt(OFFSET_COUNT);
+        return storedHead >= 0 && storedHead < this.capacity && storedCount >= 0 && storedCount <= this.capacity;
+    }
+
+    private void writePointers() {
+        this.buffer.putInt(OFFSET_HEAD, this.head);
+        this.buffer.putInt(OFFSET_COUNT, this.count);
+    }
+
+    private int offsetOf(int index) {
+        return HEADER_SIZE + ((this.head + index) % this.capacity) * RECORD_SIZE;
+    }
+
+    /**
+     * Returns the number of fixes in the journal.
+     */
+    public int size() {
+        return this.count;
+    }
+
+    public boolean isEmpty() {
+        return this.count == 0;
+    }
+
+    /**
+     * Appends a fix to the end of the journal. If the journal is full, the oldest fix is
+     * overwritten.
+     *
+     * @param fix The fix to record.
+     * @return true if an older fix was evicted to make room.
+     */
+    public boolean append(LocationFix fix) {
+        boolean evicted = this.count == this.capacity;
+        if (evicted) {
+            // The slot after the newest record is the oldest one; advance the head past it.
+            this.head = (this.head + 1) % this.capacity;
+            this.count--;
+        }
+
+        int offset = offsetOf(this.count);
+        this.buffer.putDouble(offset + RECORD_LATITUDE, fix.getLatitude());
+        this.buffer.putDouble(offset + RECORD_LONGITUDE, fix.getLongitude());
+        this.buffer.putLong(offset + RECORD_TIMESTAMP, fix.getTimestamp());
+        this.buffer.putFloat(offset + RECORD_SPEED, fix.getSpeed());
+        this.buffer.putFloat(offset + RECORD_ACCURACY, fix.getAccuracy());
+        this.buffer.put(offset + RECORD_PROVIDER, (byte) fix.getProvider().getMode());
+        this.buffer.putFloat(offset + RECORD_BEARING, fix.getBearing());
+        this.buffer.put(offset + RECORD_FLAGS, (byte) ((fix.hasSpeed() ? FLAG_HAS_SPEED : 0) | (fix.hasAccuracy() ? FLAG_HAS_ACCURACY : 0) | (fix.hasBearing() ? FLAG_HAS_BEARING : 0)));
+
+        this.count++;
+        writePointers();
+        return evicted;
+    }
+
+    /**
+     * Returns the oldest fixes in the journal without removing them.
+     *
+     * @param max The maximum number of fixes to return.
+     * @return Up to {@code max} fixes, oldest first.
+     */
+    public List<LocationFix> peek(int max) {
+        int n = Math.min(max, this.count);
+        List<LocationFix> fixes = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int offset = offsetOf(i);
+            byte flags = this.buffer.get(offset + RECORD_FLAGS);
+            fixes.add(new LocationFix(
+                    this.buffer.getDouble(offset + RECORD_LATITUDE),
+                    this.buffer.getDouble(offset + RECORD_LONGITUDE),
+                    this.buffer.getLong(offset + RECORD_TIMESTAMP),
+                    this.buffer.get(offset + RECORD_PROVIDER) == LocationProvider.COARSE.getMode() ? LocationProvider.COARSE : LocationProvider.FINE,
+                    (flags & FLAG_HAS_SPEED) != 0, this.buffer.getFloat(offset + RECORD_SPEED),
+                    (flags & FLAG_HAS_ACCURACY) != 0, this.buffer.getFloat(offset + RECORD_ACCURACY),
+                    (flags & FLAG_HAS_BEARING) != 0, this.buffer.getFloat(offset + RECORD_BEARING)
+            ));
+        }
+        return fixes;
+    }
+
+    /**
+     * Removes the oldest fixes from the journal, e.g. after they have been delivered.
+     *
+     * @param n The number of fixes to remove.
+     */
+    public void remove(int n) {
+        n = Math.min(n, this.count);
+        this.head = (this.head + n) % this.capacity;
+        this.count -= n;
+        writePointers();
+    }
+
+    /**
+     * Writes the journal to storage and closes the file.
+     */
+    public void close() {
+        try {
+            this.buffer.force();
+            this.file.close();
+        } catch (IOException ex) {
+            Log.e("Failed to close fix journal", ex); //NON-NLS
+        }
+    }
+}
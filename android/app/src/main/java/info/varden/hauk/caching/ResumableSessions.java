@@ -2,22 +2,31 @@ package info.varden.hauk.caching;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Base64;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
-import info.varden.hauk.BuildConfig;
 import info.varden.hauk.Constants;
 import info.varden.hauk.struct.Session;
 import info.varden.hauk.struct.Share;
 import info.varden.hauk.utils.Log;
-import info.varden.hauk.utils.StringSerializer;
+import info.varden.hauk.utils.TLVReader;
+import info.varden.hauk.utils.TLVWriter;
 
 /**
  * If the Hauk app crashes or shuts down, the app should give the option to resume any interrupted
  * shares. This class handles this functionality.
  *
+ * The session is stored as a binary record in shared preferences, and shares are stored in an
+ * append-only {@link ShareJournal}, so that adding or removing a share costs a single small write.
+ * Records use a tag-length-value encoding where unknown fields are skipped, so fields can be added
+ * without breaking records written by an older or newer version of the app. Records also start
+ * with a format version, which is only incremented for changes that cannot be handled this way;
+ * records with any other format version than the current one are discarded.
+ *
  * @author Marius Lindvall
  */
 public final class ResumableSessions {
@@ -36,38 +45,91 @@ public final class ResumableSessions {
      *
      * @param handler A handler that is called if there are shares available for resumption.
      */
+    @SuppressWarnings("deprecation")
     public void tryResumeShare(ResumeHandler handler) {
         Log.i("Looking for resumable shares..."); //NON-NLS
-        if (this.prefs.getBoolean(Constants.RESUME_AVAILABLE, false)) {
-            Log.i("Resumable shares found"); //NON-NLS
-
-            // Check if the app version that wrote the resumption data is the same as this session
-            // to avoid deserialization errors due to incompatibilities.
-            String writeVersion = this.prefs.getString(Constants.RESUME_CLIENT_VERSION, "");
-            if (writeVersion.equals(BuildConfig.VERSION_NAME)) {
-                Log.i("Resumable shares are compatible with this version of Hauk"); //NON-NLS
-
-                // Get session parameters.
-                Session session = StringSerializer.deserialize(this.prefs.getString(Constants.RESUME_SESSION_PARAMS, null));
-                List<Share> shares = StringSerializer.deserialize(this.prefs.getString(Constants.RESUME_SHARE_PARAMS, null));
-
-                // Check that the session is still valid.
-                boolean sessionValid = session != null && session.isActive();
-                boolean sharesAvailable = shares != null && !shares.isEmpty();
-
-                if (sessionValid && sharesAvailable) {
-                    Log.i("Stored session is valid and shares are available"); //NON-NLS
-                    handler.onSharesFetched(this.ctx, session, shares.toArray(new Share[0]));
-                } else {
-                    Log.i("Stored share data is invalid"); //NON-NLS
-                    clearResumableSession();
-                }
+        if (!this.prefs.getBoolean(Constants.RESUME_AVAILABLE, false)) {
+            Log.i("No resumable shares found"); //NON-NLS
+            return;
+        }
+
+        if (this.prefs.contains(Constants.RESUME_SESSION_PARAMS)) {
+            // Resumption data from versions of Hauk that used Java serialization cannot be read.
+            Log.w("Discarding resumption data stored in the legacy format"); //NON-NLS
+            clearResumableSession();
+            return;
+        }
+
+        Log.i("Resumable shares found"); //NON-NLS
+        try {
+            // Get session parameters.
+            String stored = this.prefs.getString(Constants.RESUME_SESSION_RECORD, null);
+            TLVReader sessionRecord = stored == null ? null : openRecord(Base64.decode(stored, Base64.NO_WRAP));
+            Session session = sessionRecord == null ? null : Session.readFrom(sessionRecord);
+            List<Share> shares = session == null ? new ArrayList<Share>() : readShares(session);
+
+            // Check that the session is still valid.
+            if (session != null && session.isActive() && !shares.isEmpty()) {
+                Log.i("Stored session is valid and shares are available"); //NON-NLS
+                handler.onSharesFetched(this.ctx, session, shares.toArray(new Share[0]));
             } else {
-                Log.w("Resumption data incompatible, running=%s, stored=%s", BuildConfig.VERSION_NAME, writeVersion); //NON-NLS
+                Log.i("Stored share data is invalid"); //NON-NLS
+                clearResumableSession();
             }
-        } else {
-            Log.i("No resumable shares found"); //NON-NLS
+        } catch (IOException | IllegalArgumentException ex) {
+            Log.w("Resumption data could not be read", ex); //NON-NLS
+            clearResumableSession();
+        }
+    }
+
+    /**
+     * Returns the share journal, or null if it could not be opened.
+     */
+    private ShareJournal getJournal() {
+        try {
+            return ShareJournal.open(new File(this.ctx.getFilesDir(), Constants.SHARE_JOURNAL_FILE_NAME), Constants.SHARE_JOURNAL_COMPACT_THRESHOLD);
+        } catch (IOException ex) {
+            Log.e("Failed to open share journal", ex); //NON-NLS
+            return null;
+        }
+    }
+
+    /**
+     * Reads all stored shares for the given session, in the order they were saved.
+     */
+    private List<Share> readShares(Session session) throws IOException {
+        List<Share> shares = new ArrayList<>();
+        ShareJournal journal = getJournal();
+        if (journal == null) return shares;
+        for (byte[] record : journal.getRecords()) {
+            shares.add(Share.readFrom(openRecord(record), session));
+        }
+        return shares;
+    }
+
+    /**
+     * Encodes a record for storage, prefixed with the record format version.
+     */
+    private static byte[] sealRecord(TLVWriter record) {
+        byte[] data = record.toByteArray();
+        byte[] versioned = new byte[data.length + 1];
+        versioned[0] = (byte) Constants.RESUME_RECORD_FORMAT_VERSION;
+        System.arraycopy(data, 0, versioned, 1, data.length);
+        return versioned;
+    }
+
+    /**
+     * Decodes a record stored by {@link #sealRecord(TLVWriter)}.
+     *
+     * @throws IOException if the record has a different format version than the current one.
+     */
+    private static TLVReader openRecord(byte[] versioned) throws IOException {
+        if (versioned.length == 0 || versioned[0] != Constants.RESUME_RECORD_FORMAT_VERSION) {
+            throw new IOException("Unsupported resumption record format"); //NON-NLS
         }
+        byte[] data = new byte[versioned.length - 1];
+        System.arraycopy(versioned, 1, data, 0, data.length);
+        return new TLVReader(data);
     }
 
     /**
@@ -80,8 +142,7 @@ public final class ResumableSessions {
         Log.i("Setting session %s resumable", session); //NON-NLS
         SharedPreferences.Editor editor = this.prefs.edit();
         editor.putBoolean(Constants.RESUME_AVAILABLE, true);
-        editor.putString(Constants.RESUME_CLIENT_VERSION, BuildConfig.VERSION_NAME);
-        editor.putString(Constants.RESUME_SESSION_PARAMS, StringSerializer.serialize(session));
+        editor.putString(Constants.RESUME_SESSION_RECORD, Base64.encodeToString(sealRecord(session.writeTo(new TLVWriter())), Base64.NO_WRAP));
         editor.apply();
     }
 
@@ -94,15 +155,13 @@ public final class ResumableSessions {
     public void setShareResumable(Share share) {
         Log.i("Setting share %s resumable", share); //NON-NLS
 
-        // Get the current list of resumable shares.
-        ArrayList<Share> shares = StringSerializer.deserialize(this.prefs.getString(Constants.RESUME_SHARE_PARAMS, null));
-        if (shares == null) shares = new ArrayList<>();
-
-        // Add the share and save the updated list.
-        shares.add(share);
-        SharedPreferences.Editor editor = this.prefs.edit();
-        editor.putString(Constants.RESUME_SHARE_PARAMS, StringSerializer.serialize(shares));
-        editor.apply();
+        ShareJournal journal = getJournal();
+        if (journal == null) return;
+        try {
+            journal.add(share.getID(), sealRecord(share.writeTo(new TLVWriter())));
+        } catch (IOException ex) {
+            Log.e("Failed to journal resumable share %s", ex, share); //NON-NLS
+        }
     }
 
     /**
@@ -112,20 +171,13 @@ public final class ResumableSessions {
      */
     public void clearResumableShare(String shareID) {
         Log.i("Clearing resumable share %s", shareID); //NON-NLS
-
-        // Get the current list of resumable shares.
-        ArrayList<Share> shares = StringSerializer.deserialize(this.prefs.getString(Constants.RESUME_SHARE_PARAMS, null));
-        if (shares == null) return;
-
-        // Remove the share and save the updated list.
-        for (Iterator<Share> it = shares.iterator(); it.hasNext();) {
-            if (it.next().getID().equals(shareID)) {
-                it.remove();
-            }
+        ShareJournal journal = getJournal();
+        if (journal == null) return;
+        try {
+            journal.remove(shareID);
+        } catch (IOException ex) {
+            Log.e("Failed to journal removal of resumable share %s", ex, shareID); //NON-NLS
         }
-        SharedPreferences.Editor editor = this.prefs.edit();
-        editor.putString(Constants.RESUME_SHARE_PARAMS, StringSerializer.serialize(shares));
-        editor.apply();
     }
 
     /**
@@ -137,5 +189,13 @@ public final class ResumableSessions {
         SharedPreferences.Editor editor = this.prefs.edit();
         editor.clear();
         editor.apply();
+
+        ShareJournal journal = getJournal();
+        if (journal == null) return;
+        try {
+            journal.clear();
+        } catch (IOException ex) {
+            Log.e("Failed to clear share journal", ex); //NON-NLS
+        }
     }
 }
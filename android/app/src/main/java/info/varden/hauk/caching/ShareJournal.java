@@ -0,0 +1,226 @@
+package info.varden.hauk.caching;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import info.varden.hauk.utils.Log;
+
+/**
+ * An append-only journal of share membership changes for session resumption. Adding or removing a
+ * share appends a single entry to the end of the journal file instead of rewriting the stored list
+ * of shares, so the cost of a change does not depend on the number of shares. The journal is
+ * replayed when it is opened to recover the current set of shares, and compacted by rewriting only
+ * the live entries once most of the journal consists of superseded entries.
+ *
+ * A process has a single instance of the journal, which keeps the current set of shares in memory.
+ *
+ * @author Marius Lindvall
+ */
+final class ShareJournal {
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+
+    @SuppressWarnings("HardCodedStringLiteral")
+    private static final String COMPACTION_SUFFIX = ".tmp";
+
+    /**
+     * The journal of this process, or null if it has not been opened yet.
+     */
+    private static ShareJournal instance = null;
+
+    /**
+     * Opens the share journal, replaying it if it has not been opened before by this process.
+     *
+     * @param path         The journal file.
+     * @param compactAfter The number of superseded entries to allow before the journal is
+     *                     compacted.
+     * @throws IOException if the journal could not be opened.
+     */
+    static synchronized ShareJournal open(File path, int compactAfter) throws IOException {
+        if (instance == null) instance = new ShareJournal(path, compactAfter);
+        return instance;
+    }
+
+    private final File path;
+    private final int compactAfter;
+    private RandomAccessFile file;
+
+    /**
+     * Encoded share records by share ID, in the order they were added.
+     */
+    private final Map<String, byte[]> live = new LinkedHashMap<>();
+
+    /**
+     * The number of entries in the journal file, including superseded ones.
+     */
+    private int entryCount = 0;
+
+    /**
+     * Opens and replays a journal file. The app should use {@link #open(File, int)} instead, so
+     * that the journal is only replayed once per process; this constructor is used by tests.
+     *
+     * @param path         The journal file.
+     * @param compactAfter The number of superseded entries to allow before the journal is
+     *                     compacted.
+     * @throws IOException if the journal could not be opened.
+     */
+    ShareJournal(File path, int compactAfter) throws IOException {
+        this.path = path;
+        this.compactAfter = compactAfter;
+        this.file = new RandomAccessFile(path, "rw"); //NON-NLS
+        replay();
+        compactIfNeeded();
+    }
+
+    @Override
+    public String toString() {
+        return "ShareJournal{live=" + this.live.size()
+                + ",entries=" + this.entryCount
+                + "}";
+    }
+
+    /**
+     * Reads all entries in the journal file and rebuilds the set of live shares. An incomplete
+     * entry at the end of the file, e.g. because the app was killed while writing it, is discarded.
+     */
+    private void replay() throws IOException {
+        long validLength = 0;
+        this.file.seek(0);
+        try {
+            while (this.file.getFilePointer() < this.file.length()) {
+                byte op = this.file.readByte();
+                String shareID = this.file.readUTF();
+                if (op == OP_ADD) {
+                    byte[] record = new byte[this.file.readInt()];
+                    this.file.readFully(record);
+                    this.live.put(shareID, record);
+                } else if (op == OP_REMOVE) {
+                    this.live.remove(shareID);
+                } else {
+                    throw new IOException("Unknown share journal operation " + op); //NON-NLS
+                }
+                this.entryCount++;
+                validLength = this.file.getFilePointer();
+            }
+        } catch (EOFException ex) {
+            Log.w("Share journal %s has an incomplete entry at offset %s; truncating", this.path, validLength); //NON-NLS
+            this.file.setLength(validLength);
+        } catch (IOException | NegativeArraySizeException ex) {
+            Log.w("Share journal %s is corrupt after offset %s; truncating", ex, this.path, validLength); //NON-NLS
+            this.file.setLength(validLength);
+        }
+        this.file.seek(this.file.length());
+        Log.i("Replayed share journal: %s", this); //NON-NLS
+    }
+
+    /**
+     * Records that a share was added.
+     *
+     * @param shareID The ID of the share.
+     * @param record  The encoded share.
+     */
+    synchronized void add(String shareID, byte[] record) throws IOException {
+        append(OP_ADD, shareID, record);
+        this.live.put(shareID, record);
+        compactIfNeeded();
+    }
+
+    /**
+     * Records that a share was removed.
+     *
+     * @param shareID The ID of the share.
+     */
+    synchronized void remove(String shareID) throws IOException {
+        if (!this.live.containsKey(shareID)) return;
+        append(OP_REMOVE, shareID, null);
+        this.live.remove(shareID);
+        compactIfNeeded();
+    }
+
+    /**
+     * Returns the encoded records of all live shares, in the order they were added.
+     */
+    synchronized List<byte[]> getRecords() {
+        return new ArrayList<>(this.live.values());
+    }
+
+    /**
+     * Removes all shares from the journal.
+     */
+    synchronized void clear() throws IOException {
+        this.live.clear();
+        this.entryCount = 0;
+        this.file.setLength(0);
+    }
+
+    /**
+     * Closes the journal file. The journal must not be used afterwards.
+     */
+    synchronized void close() throws IOException {
+        this.file.close();
+    }
+
+    /**
+     * Writes a single entry to the end of the journal file in one write.
+     */
+    private void append(byte op, String shareID, byte[] record) throws IOException {
+        ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entry);
+        out.writeByte(op);
+        out.writeUTF(shareID);
+        if (record != null) {
+            out.writeInt(record.length);
+            out.write(record);
+        }
+        this.file.write(entry.toByteArray());
+        this.entryCount++;
+    }
+
+    /**
+     * Rewrites the journal with only the live shares if enough entries have been superseded.
+     */
+    private void compactIfNeeded() throws IOException {
+        int superseded = this.entryCount - this.live.size();
+        if (superseded < this.compactAfter || superseded < this.live.size()) return;
+
+        Log.i("Compacting share journal: %s", this); //NON-NLS
+        File compacted = new File(this.path.getPath() + COMPACTION_SUFFIX);
+        try (RandomAccessFile out = new RandomAccessFile(compacted, "rw")) { //NON-NLS
+            out.setLength(0);
+            RandomAccessFile previous = this.file;
+            this.file = out;
+            this.entryCount = 0;
+            try {
+                for (Map.Entry<String, byte[]> share : this.live.entrySet()) {
+                    append(OP_ADD, share.getKey(), share.getValue());
+                }
+                out.getFD().sync();
+            } finally {
+                this.file = previous;
+            }
+        }
+
+        // Swap in the compacted journal. If the rename fails, the old journal is still complete.
+        this.file.close();
+        if (!compacted.renameTo(this.path)) {
+            Log.e("Failed to replace share journal with compacted copy"); //NON-NLS
+            //noinspection ResultOfMethodCallIgnored
+            compacted.delete();
+            this.file = new RandomAccessFile(this.path, "rw"); //NON-NLS
+            this.live.clear();
+            this.entryCount = 0;
+            replay();
+            return;
+        }
+        this.file = new RandomAccessFile(this.path, "rw"); //NON-NLS
+        this.file.seek(this.file.length());
+    }
+}
@@ -0,0 +1,207 @@
+package info.varden.hauk.http;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import info.varden.hauk.Constants;
+
+/**
+ * Tracks whether a Hauk server is reachable, so that location uploads are not attempted against a
+ * server that is known to be down. Every packet sent to a server reports its outcome to that
+ * server's breaker, but only {@link UploadDispatcher} asks it for permission before connecting;
+ * requests the user starts manually are always attempted. Temporary server errors, such as a 503
+ * from a proxy in front of a backend that is down, count as failures just like connection errors.
+ *
+ * The breaker starts out closed. After several consecutive connection failures, it opens, and no
+ * uploads are attempted until a probe is due. The time between probes doubles after each failed
+ * probe, up to a cap, and is randomized so that clients that lost the server at the same time do
+ * not probe it in lockstep. When a probe is due, the breaker is half-open and lets a single request
+ * through. If it succeeds, the breaker closes again.
+ *
+ * @author Marius Lindvall
+ */
+public final class CircuitBreaker {
+    /**
+     * Breakers for each server, keyed by server base URL.
+     */
+    private static final Map<String, CircuitBreaker> breakers = new HashMap<>();
+
+    /**
+     * The states of a circuit breaker.
+     */
+    public enum State {
+        /**
+         * The server is reachable, and requests are sent as usual.
+         */
+        CLOSED,
+
+        /**
+         * The server is unreachable, and requests are held back until the next probe is due.
+         */
+        OPEN,
+
+        /**
+         * A probe request is in flight to check if the server is reachable again.
+         */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+
+    /**
+     * The number of times in a row the breaker has opened without a successful request, which
+     * determines the spacing of probes.
+     */
+    private int openCount = 0;
+
+    /**
+     * The time the next probe is due while the breaker is open.
+     */
+    private long nextProbeTime = 0;
+
+    // Statistics.
+    private long tripCount = 0;
+    private long rejectedCount = 0;
+
+    /**
+     * Creates a circuit breaker.
+     *
+     * @param failureThreshold The number of consecutive failures after which the breaker opens.
+     * @param baseDelay        The time to wait before the first probe, in milliseconds.
+     * @param maxDelay         The maximum time to wait between probes, in milliseconds.
+     * @param random           The source of randomness for probe spacing.
+     */
+    CircuitBreaker(int failureThreshold, long baseDelay, long maxDelay, Random random) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.baseDelay = baseDelay;
+        this.maxDelay = Math.max(baseDelay, maxDelay);
+        this.random = random;
+    }
+
+    /**
+     * Returns the circuit breaker for the given server, creating it if necessary.
+     *
+     * @param server The full Hauk server base URL.
+     */
+    public static CircuitBreaker forServer(String server) {
+        synchronized (breakers) {
+            CircuitBreaker breaker = breakers.get(server);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(
+                        Constants.CIRCUIT_BREAKER_FAILURE_THRESHOLD,
+                        Constants.CIRCUIT_BREAKER_BASE_DELAY,
+                        Constants.CIRCUIT_BREAKER_MAX_DELAY,
+                        new Random()
+                );
+                breakers.put(server, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{state=" + this.state
+                + ",consecutiveFailures=" + this.consecutiveFailures
+                + ",openCount=" + this.openCount
+                + ",nextProbeTime=" + this.nextProbeTime
+                + ",tripCount=" + this.tripCount
+                + ",rejectedCount=" + this.rejectedCount
+                + "}";
+    }
+
+    /**
+     * Returns the current state of the breaker.
+     */
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    /**
+     * Checks whether a request may be sent. If the breaker is open and a probe is due, the breaker
+     * becomes half-open and the caller is expected to send the probe.
+     *
+     * @param now The current time, in milliseconds since boot.
+     * @return true if the request may be sent, false if it should be held back.
+     */
+    public synchronized boolean allowRequest(long now) {
+        switch (this.state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now >= this.nextProbeTime) {
+                    this.state = State.HALF_OPEN;
+                    return true;
+                }
+                this.rejectedCount++;
+                return false;
+            default:
+                // Only one probe at a time.
+                this.rejectedCount++;
+                return false;
+        }
+    }
+
+    /**
+     * Returns the time until the next probe is due, in milliseconds, or -1 if a probe is in flight
+     * or the breaker is closed.
+     *
+     * @param now The current time, in milliseconds since boot.
+     */
+    public synchronized long getProbeDelay(long now) {
+        if (this.state != State.OPEN) return -1L;
+        return Math.max(0L, this.nextProbeTime - now);
+    }
+
+    /**
+     * Records that a request reached the server.
+     */
+    public synchronized void onSuccess() {
+        this.state = State.CLOSED;
+        this.consecutiveFailures = 0;
+        this.openCount = 0;
+    }
+
+    /**
+     * Records that a request could not reach the server.
+     *
+     * @param now The current time, in milliseconds since boot.
+     */
+    public synchronized void onFailure(long now) {
+        this.consecutiveFailures++;
+        if (this.state == State.HALF_OPEN || this.state == State.CLOSED && this.consecutiveFailures >= this.failureThreshold) {
+            if (this.state == State.CLOSED) this.tripCount++;
+            open(now);
+        }
+    }
+
+    /**
+     * Makes the next probe due immediately, e.g. because the device has connected to a different
+     * network and earlier failures no longer say much about whether the server is reachable.
+     *
+     * @param now The current time, in milliseconds since boot.
+     */
+    public synchronized void probeNow(long now) {
+        if (this.state == State.OPEN) this.nextProbeTime = now;
+    }
+
+    /**
+     * Opens the breaker and schedules the next probe. The spacing is exponential in the number of
+     * failed probes, capped, and randomized to between half of and the full delay.
+     */
+    private void open(long now) {
+        this.state = State.OPEN;
+        long delay = this.baseDelay;
+        for (int i = 0; i < this.openCount && delay < this.maxDelay; i++) delay *= 2;
+        delay = Math.min(delay, this.maxDelay);
+        this.openCount++;
+        this.nextProbeTime = now + delay / 2 + (long) (this.random.nextDouble() * (delay - delay / 2));
+    }
+}
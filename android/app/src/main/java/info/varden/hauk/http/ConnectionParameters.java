@@ -2,11 +2,17 @@ package info.varden.hauk.http;
 
 import androidx.annotation.Nullable;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.SocketAddress;
 
 import info.varden.hauk.http.security.CertificateValidationPolicy;
+import info.varden.hauk.system.preferences.IndexedEnum;
+import info.varden.hauk.utils.TLVReader;
+import info.varden.hauk.utils.TLVWriter;
 
 /**
  * Structure used to store connection parameters for backend connections, e.g. proxy details.
@@ -16,6 +22,14 @@ import info.varden.hauk.http.security.CertificateValidationPolicy;
 public final class ConnectionParameters implements Serializable {
     private static final long serialVersionUID = -6275381322711990147L;
 
+    // Field tags for the binary representation.
+    private static final int FIELD_PROXY_TYPE = 1;
+    private static final int FIELD_PROXY_HOST = 2;
+    private static final int FIELD_PROXY_ADDRESS = 3;
+    private static final int FIELD_PROXY_PORT = 4;
+    private static final int FIELD_CONNECT_TIMEOUT = 5;
+    private static final int FIELD_TLS_POLICY = 6;
+
     /**
      * The type of proxy to use for the connection.
      */
@@ -36,6 +50,12 @@ public final class ConnectionParameters implements Serializable {
      */
     private final CertificateValidationPolicy tlsPolicy;
 
+    /**
+     * The transport used to open connections with these parameters. Not serialized; a new
+     * transport is created if the parameters are restored from a serialized session.
+     */
+    private transient Transport transport = null;
+
     public ConnectionParameters(Proxy.Type proxyType, SocketAddress proxyAddress, int connectTimeout, CertificateValidationPolicy tlsPolicy) {
         this.proxyType = proxyType;
         this.proxyAddress = proxyAddress;
@@ -56,6 +76,80 @@ public final class ConnectionParameters implements Serializable {
         return this.tlsPolicy;
     }
 
+    /**
+     * Returns the transport that is shared by all requests made with these connection parameters.
+     */
+    public synchronized Transport getTransport() {
+        if (this.transport == null) this.transport = new Transport(this);
+        return this.transport;
+    }
+
+    /**
+     * Writes the connection parameters in a binary representation that can be read by
+     * {@link #readFrom}. A resolved proxy address is stored as is, so that the proxy hostname does
+     * not need to be resolved again when the parameters are read.
+     */
+    public TLVWriter writeTo(TLVWriter out) {
+        if (this.proxyType != null) out.putString(FIELD_PROXY_TYPE, this.proxyType.name());
+        if (this.proxyAddress instanceof InetSocketAddress) {
+            InetSocketAddress address = (InetSocketAddress) this.proxyAddress;
+            out.putString(FIELD_PROXY_HOST, address.getHostString()).putInt(FIELD_PROXY_PORT, address.getPort());
+            if (!address.isUnresolved()) out.putBytes(FIELD_PROXY_ADDRESS, address.getAddress().getAddress());
+        }
+        return out.putInt(FIELD_CONNECT_TIMEOUT, this.connectTimeout)
+                .putInt(FIELD_TLS_POLICY, this.tlsPolicy.getIndex());
+    }
+
+    /**
+     * Reads connection parameters written by {@link #writeTo}.
+     *
+     * @throws IOException if the record is malformed or contains unknown values.
+     */
+    public static ConnectionParameters readFrom(TLVReader in) throws IOException {
+        Proxy.Type proxyType = null;
+        String proxyHost = null;
+        byte[] proxyAddress = null;
+        int proxyPort = 0;
+        int connectTimeout = 0;
+        CertificateValidationPolicy tlsPolicy = CertificateValidationPolicy.VALIDATE_ALL;
+        try {
+            while (in.next()) {
+                switch (in.getTag()) {
+                    case FIELD_PROXY_TYPE:
+                        proxyType = Proxy.Type.valueOf(in.getString());
+                        break;
+                    case FIELD_PROXY_HOST:
+                        proxyHost = in.getString();
+                        break;
+                    case FIELD_PROXY_ADDRESS:
+                        proxyAddress = in.getBytes();
+                        break;
+                    case FIELD_PROXY_PORT:
+                        proxyPort = in.getInt();
+                        break;
+                    case FIELD_CONNECT_TIMEOUT:
+                        connectTimeout = in.getInt();
+                        break;
+                    case FIELD_TLS_POLICY:
+                        tlsPolicy = IndexedEnum.fromIndex(CertificateValidationPolicy.class, in.getInt());
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (IllegalArgumentException | IllegalAccessException | InstantiationException ex) {
+            throw new IOException("Invalid value in connection parameters record", ex); //NON-NLS
+        }
+
+        SocketAddress address = null;
+        if (proxyHost != null) {
+            address = proxyAddress != null
+                    ? new InetSocketAddress(InetAddress.getByAddress(proxyHost, proxyAddress), proxyPort)
+                    : InetSocketAddress.createUnresolved(proxyHost, proxyPort);
+        }
+        return new ConnectionParameters(proxyType, address, connectTimeout, tlsPolicy);
+    }
+
     @Override
     public String toString() {
         return "ConnectionParameters{"
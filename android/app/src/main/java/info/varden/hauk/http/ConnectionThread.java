@@ -3,32 +3,29 @@ package info.varden.hauk.http;
 import android.content.Context;
 import android.os.AsyncTask;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
-import java.net.Proxy;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import info.varden.hauk.BuildConfig;
 import info.varden.hauk.Constants;
 import info.varden.hauk.R;
-import info.varden.hauk.http.security.CertificateValidationPolicy;
-import info.varden.hauk.http.security.InsecureHostnameVerifier;
-import info.varden.hauk.http.security.InsecureTrustManager;
 import info.varden.hauk.struct.Version;
 import info.varden.hauk.utils.Log;
 
@@ -38,6 +35,20 @@ import info.varden.hauk.utils.Log;
  * @author Marius Lindvall
  */
 public class ConnectionThread extends AsyncTask<ConnectionThread.Request, String, ConnectionThread.Response> {
+    /**
+     * Cancels requests that have exceeded their deadline. Socket timeouts only limit the time
+     * spent waiting for each individual read, so a server that trickles its response could
+     * otherwise keep a request open indefinitely.
+     */
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HaukDeadline"); //NON-NLS
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     /**
      * A callback that is called after the request is completed. Contains received data, or errors,
      * if applicable.
@@ -67,68 +78,87 @@ public class ConnectionThread extends AsyncTask<ConnectionThread.Request, String
     @SuppressWarnings("HardCodedStringLiteral")
     protected final Response doInBackground(Request... params) {
         int seq = new Random().nextInt();
+        Request req = params[0];
+        Transport transport = req.getParameters().getTransport();
+        final AtomicBoolean expired = new AtomicBoolean(false);
+        ScheduledFuture<?> cancelTask = null;
+
+        // The deadline covers the whole request, so it must leave room for the configured connect
+        // timeout.
+        long deadline = Math.max(req.getDeadline(), req.getParameters().getTimeout());
         try {
-            Request req = params[0];
             Log.v("Assigning seq=%s for request %s", seq, req);
 
-            // Configure and open the connection.
-            Proxy proxy = req.getParameters().getProxy();
+            // Open the connection through the shared transport so that it can be kept alive and
+            // reused by subsequent requests.
             URL url = new URL(req.getURL());
-            HttpURLConnection client = (HttpURLConnection) (proxy == null ? url.openConnection() : url.openConnection(proxy));
-            if (url.getHost().endsWith(".onion") && url.getProtocol().equals("https")) {
-                // Check if TLS validation should be disabled for .onion addresses over HTTPS.
-                if (req.getParameters().getTLSPolicy().equals(CertificateValidationPolicy.DISABLE_TRUST_ANCHOR_ONION)) {
-                    Log.v("[seq:%s] Setting insecure SSL socket factory for connection to comply with TLS policy", seq);
-                    ((HttpsURLConnection) client).setSSLSocketFactory(InsecureTrustManager.getSocketFactory());
-                } else if (req.getParameters().getTLSPolicy().equals(CertificateValidationPolicy.DISABLE_ALL_ONION)) {
-                    Log.v("[seq:%s] Setting insecure SSL socket factory and disabling hostname validation for connection to comply with TLS policy", seq);
-                    ((HttpsURLConnection) client).setSSLSocketFactory(InsecureTrustManager.getSocketFactory());
-                    ((HttpsURLConnection) client).setHostnameVerifier(new InsecureHostnameVerifier());
+            final HttpURLConnection client = transport.open(url);
+
+            // Disconnect the client if the request is not completed in time. This interrupts any
+            // blocking call on the connection with an exception.
+            cancelTask = watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expired.set(true);
+                    client.disconnect();
                 }
-            }
+            }, deadline, TimeUnit.MILLISECONDS);
 
             // Post the data.
             Log.v("[seq:%s] Setting connection parameters", seq);
             client.setConnectTimeout(req.getParameters().getTimeout());
+            client.setReadTimeout((int) deadline);
             client.setRequestMethod("POST");
             client.setRequestProperty("Accept-Language", Locale.getDefault().getLanguage());
-            client.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            client.setRequestProperty("Content-Type", req.getContentType());
             client.setRequestProperty("User-Agent", "Hauk/" + BuildConfig.VERSION_NAME + " " + System.getProperty("http.agent"));
+            for (Map.Entry<String, String> header : req.getHeaders().entrySet()) {
+                client.setRequestProperty(header.getKey(), header.getValue());
+            }
             client.setDoInput(true);
             client.setDoOutput(true);
 
             Log.v("[seq:%s] Writing data to socket", seq);
             OutputStream os = client.getOutputStream();
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
-            writer.write(params[0].getURLEncodedData());
-            writer.flush();
+            if (req.getBody() != null) {
+                os.write(req.getBody());
+            } else {
+                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+                writer.write(req.getURLEncodedData());
+                writer.flush();
+            }
             os.close();
 
             int response = client.getResponseCode();
             Log.v("[seq:%s] Response code for request is %s", seq, response);
             if (response == HttpURLConnection.HTTP_OK) {
-                // The response should be returned as an array of strings where each element of the
-                // array is one line of output. Hauk uses this array as an argument array when
-                // processing the response.
-                String line;
-                ArrayList<String> lines = new ArrayList<>();
-                BufferedReader br = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
-                while ((line = br.readLine()) != null) {
-                    Log.v("[seq:%s] resp += \"%s\"", seq, line);
-                    lines.add(line);
-                }
-                br.close();
-                Log.v("[seq:%s] Returning success response", seq);
-                return new Response(null, lines.toArray(new String[0]), new Version(client.getHeaderField(Constants.HTTP_HEADER_HAUK_VERSION)));
+                // The response is read in full and handed to the packet, which reads it line by line.
+                // Each line of output is one argument in the response.
+                ResponseBody body = ResponseBody.read(client.getInputStream());
+                if (Log.isLoggable(Log.VERBOSE)) Log.v("[seq:%s] resp = \"%s\"", seq, body.getText());
+                Log.v("[seq:%s] Returning success response; %s", seq, transport);
+                return new Response(null, body, new Version(client.getHeaderField(Constants.HTTP_HEADER_HAUK_VERSION)));
             } else {
-                // Hauk only returns HTTP 200; any other response should be considered an error.
+                // Hauk only returns HTTP 200; any other response should be considered an error. The
+                // error body must still be consumed for the connection to be reusable.
+                Transport.drain(client.getErrorStream());
                 Log.v("[seq:%s] Returning HTTP code failure response", seq);
-                return new Response(new ServerException(String.format(params[0].getContext().getString(R.string.err_response_code), String.valueOf(response))), null, null);
+                return new Response(new HttpStatusException(String.format(req.getContext().getString(R.string.err_response_code), String.valueOf(response)), response), null, null);
             }
         } catch (Exception ex) {
+            if (expired.get()) {
+                // The exception was caused by the watchdog disconnecting the client. Report it as a
+                // timeout so that it is treated as a connection failure.
+                transport.recordExpiredDeadline();
+                Log.w("[seq:%s] Request deadline of %s ms exceeded", seq, deadline);
+                return new Response(new SocketTimeoutException(String.format(Locale.US, "Request deadline of %s ms exceeded", deadline)), null, null);
+            }
+
             // If an exception occurred, return no data.
             Log.v("[seq:%s] Returning exception failure response", ex, seq);
             return new Response(ex, null, null);
+        } finally {
+            if (cancelTask != null) cancelTask.cancel(false);
         }
     }
 
@@ -144,28 +174,60 @@ public class ConnectionThread extends AsyncTask<ConnectionThread.Request, String
     }
 
     /**
-     * A structure representing an HTTP POST request. Contains a URL as well as a map of key-value
-     * data to be posted to the URL.
+     * A structure representing an HTTP POST request. Contains a URL as well as either a map of
+     * key-value data or a raw body to be posted to the URL.
      */
     static class Request {
         private final Context ctx;
         private final String url;
         private final Map<String, String> data;
+        private final Map<String, String> headers;
+        private final String contentType;
+        private final byte[] body;
         private final ConnectionParameters params;
+        private final long deadline;
 
         /**
          * Constructs an HTTP request that should be passed through a proxy.
          *
-         * @param ctx    Android application context.
-         * @param url    The URL to POST data to.
-         * @param data   A set of key-value pairs consisting of data to be sent in the POST request.
-         * @param params The parameters that should be used when establishing the connection.
+         * @param ctx      Android application context.
+         * @param url      The URL to POST data to.
+         * @param data     A set of key-value pairs consisting of data to be sent in the POST request.
+         * @param headers  Additional HTTP headers to send with the request.
+         * @param params   The parameters that should be used when establishing the connection.
+         * @param deadline The time within which the request must complete, in milliseconds.
          */
-        Request(Context ctx, String url, Map<String, String> data, ConnectionParameters params) {
+        Request(Context ctx, String url, Map<String, String> data, Map<String, String> headers, ConnectionParameters params, long deadline) {
             this.ctx = ctx;
             this.url = url;
             this.data = Collections.unmodifiableMap(data);
+            this.headers = Collections.unmodifiableMap(headers);
+            this.contentType = Constants.HTTP_CONTENT_TYPE_FORM;
+            this.body = null;
             this.params = params;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Constructs an HTTP request with a raw body.
+         *
+         * @param ctx         Android application context.
+         * @param url         The URL to POST data to.
+         * @param contentType The MIME type of the body.
+         * @param body        The body to send in the POST request.
+         * @param headers     Additional HTTP headers to send with the request.
+         * @param params      The parameters that should be used when establishing the connection.
+         * @param deadline    The time within which the request must complete, in milliseconds.
+         */
+        Request(Context ctx, String url, String contentType, byte[] body, Map<String, String> headers, ConnectionParameters params, long deadline) {
+            this.ctx = ctx;
+            this.url = url;
+            this.data = Collections.emptyMap();
+            this.headers = Collections.unmodifiableMap(headers);
+            this.contentType = contentType;
+            this.body = body;
+            this.params = params;
+            this.deadline = deadline;
         }
 
         private Context getContext() {
@@ -176,10 +238,26 @@ public class ConnectionThread extends AsyncTask<ConnectionThread.Request, String
             return this.url;
         }
 
+        private Map<String, String> getHeaders() {
+            return this.headers;
+        }
+
         private ConnectionParameters getParameters() {
             return this.params;
         }
 
+        private long getDeadline() {
+            return this.deadline;
+        }
+
+        private String getContentType() {
+            return this.contentType;
+        }
+
+        private byte[] getBody() {
+            return this.body;
+        }
+
         private String getURLEncodedData() throws UnsupportedEncodingException {
             // Create a URL-encoded data body for the HTTP request.
             StringBuilder sb = new StringBuilder();
@@ -198,7 +276,7 @@ public class ConnectionThread extends AsyncTask<ConnectionThread.Request, String
         public final String toString() {
             String body;
             try {
-                body = getURLEncodedData();
+                body = this.body != null ? "<" + this.body.length + " bytes of " + this.contentType + ">" : getURLEncodedData(); //NON-NLS
             } catch (UnsupportedEncodingException e) {
                 Log.e("Unsupported encoding used in Request#toString()", e);
                 body = "<exception>";
@@ -206,23 +284,25 @@ public class ConnectionThread extends AsyncTask<ConnectionThread.Request, String
             return "Request{"
                     + "url=" + this.url
                     + ",body=" + body
+                    + ",headers=" + this.headers
                     + ",params=" + this.params
+                    + ",deadline=" + this.deadline
                     + "}";
         }
     }
 
     /**
-     * A structure representing an HTTP response. Contains either an array of strings representing
-     * each line of the response body, or an exception, if one occurred during the request.
+     * A structure representing an HTTP response. Contains either the response body, or an
+     * exception, if one occurred during the request.
      */
     static final class Response {
         private final Exception ex;
-        private final String[] data;
+        private final ResponseBody body;
         private final Version ver;
 
-        private Response(Exception ex, String[] data, Version ver) {
+        private Response(Exception ex, ResponseBody body, Version ver) {
             this.ex = ex;
-            this.data = data;
+            this.body = body;
             this.ver = ver;
         }
 
@@ -235,11 +315,10 @@ public class ConnectionThread extends AsyncTask<ConnectionThread.Request, String
         }
 
         /**
-         * Returns an array of data returned in the HTTP response. Each line in this array
-         * represents one line of output.
+         * Returns the body of the HTTP response.
          */
-        String[] getData() {
-            return this.data.clone();
+        ResponseBody getBody() {
+            return this.body;
         }
 
         /**
@@ -253,7 +332,7 @@ public class ConnectionThread extends AsyncTask<ConnectionThread.Request, String
         public String toString() {
             return "Response{"
                     + "ex=" + this.ex
-                    + ",data=" + Arrays.toString(this.data)
+                    + ",body=" + this.body
                     + ",ver=" + this.ver
                     + "}";
         }
@@ -0,0 +1,68 @@
+package info.varden.hauk.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * An exception thrown when the server responds to a packet with an HTTP status code other than
+ * 200. Hauk itself only ever responds with 200, so any other status comes from the web server or a
+ * proxy in front of it, and may only mean that the backend is temporarily unavailable.
+ *
+ * @author Marius Lindvall
+ */
+public final class HttpStatusException extends ServerException {
+    private static final long serialVersionUID = -4307795843641338201L;
+
+    /**
+     * HTTP status code for rate limiting, which is not defined in {@link HttpURLConnection}.
+     */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * The HTTP status code of the response.
+     */
+    private final int statusCode;
+
+    /**
+     * Create the exception with a String message.
+     *
+     * @param message    The error message.
+     * @param statusCode The HTTP status code of the response.
+     */
+    HttpStatusException(String message, int statusCode) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * Returns the HTTP status code of the response.
+     */
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+
+    /**
+     * Checks whether the status code indicates that the server is temporarily unable to handle the
+     * request, i.e. that the same request may succeed if it is retried later.
+     */
+    public boolean isTransient() {
+        return this.statusCode >= 500 || this.statusCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT || this.statusCode == HTTP_TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * Checks whether a request failed because the backend could not be reached or was temporarily
+     * unavailable, as opposed to the backend rejecting the request.
+     *
+     * @param ex The exception the request failed with.
+     */
+    public static boolean isTransientFailure(Exception ex) {
+        return ex instanceof IOException || ex instanceof HttpStatusException && ((HttpStatusException) ex).isTransient();
+    }
+
+    @Override
+    public String toString() {
+        return "HttpStatusException{statusCode=" + this.statusCode
+                + ",message=" + getMessage()
+                + "}";
+    }
+}
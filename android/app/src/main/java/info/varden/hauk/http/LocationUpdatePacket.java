@@ -1,19 +1,21 @@
 package info.varden.hauk.http;
 
 import android.content.Context;
-import android.location.Location;
 import android.util.Base64;
 
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.List;
 
 import javax.crypto.Cipher;
 
 import info.varden.hauk.Constants;
 import info.varden.hauk.R;
-import info.varden.hauk.http.parameter.LocationProvider;
+import info.varden.hauk.struct.LocationFix;
 import info.varden.hauk.struct.Session;
 import info.varden.hauk.struct.Version;
+import info.varden.hauk.utils.EnvelopeCipher;
 import info.varden.hauk.utils.Log;
 import info.varden.hauk.utils.TimeUtils;
 
@@ -23,6 +25,17 @@ import info.varden.hauk.utils.TimeUtils;
  * @author Marius Lindvall
  */
 public abstract class LocationUpdatePacket extends Packet {
+    /**
+     * Decodes the share list returned by the backend.
+     */
+    private ShareListDecoder shareDecoder = new ShareListDecoder();
+
+    /**
+     * Whether or not the token of the share list that the client already has was sent with the
+     * packet.
+     */
+    private boolean sentShareListToken = false;
+
     /**
      * Called whenever a list of currently active shares are received from the server. This list may
      * be updated by the server if the user is adopted into a group share. This function is called
@@ -40,74 +53,181 @@ public abstract class LocationUpdatePacket extends Packet {
     /**
      * Creates the packet.
      *
+     * @param ctx     Android application context.
+     * @param session The session for which location is being updated.
+     * @param fix     The updated location data obtained from GNSS/network sensors.
+     */
+    protected LocationUpdatePacket(Context ctx, Session session, LocationFix fix) {
+        this(ctx, session, Collections.singletonList(fix));
+    }
+
+    /**
+     * Creates a packet that uploads several location fixes in a single request. If more than one
+     * fix is given, the fields of each fix are sent as indexed arrays, e.g. {@code lat[0]}, which
+     * is only supported by backends at or above {@link Constants#VERSION_COMPAT_BATCH_POST}.
+     *
+     * @since 1.7
+     * @param ctx     Android application context.
+     * @param session The session for which location is being updated.
+     * @param fixes   The updated location data obtained from GNSS/network sensors, oldest first.
+     */
+    protected LocationUpdatePacket(Context ctx, Session session, List<LocationFix> fixes) {
+        this(ctx, session, fixes, 0);
+    }
+
+    /**
+     * Creates a packet that uploads one or more location fixes and reports the update interval the
+     * client is currently using, so that the backend can tell viewers when to expect the next
+     * update. The interval is only understood by backends at or above
+     * {@link Constants#VERSION_COMPAT_ADAPTIVE_INTERVAL}.
+     *
+     * @since 1.7
      * @param ctx      Android application context.
      * @param session  The session for which location is being updated.
-     * @param location The updated location data obtained from GNSS/network sensors.
+     * @param fixes    The updated location data obtained from GNSS/network sensors, oldest first.
+     * @param interval The current update interval in seconds, or 0 to not report an interval.
      */
-    protected LocationUpdatePacket(Context ctx, Session session, Location location, LocationProvider accuracy) {
+    protected LocationUpdatePacket(Context ctx, Session session, List<LocationFix> fixes, int interval) {
         super(ctx, session.getServerURL(), session.getConnectionParameters(), Constants.URL_PATH_POST_LOCATION);
+
+        if (session.getDerivableE2EKey() == null && session.getBackendVersion().isAtLeast(Constants.VERSION_COMPAT_BINARY_POST)) {
+            // Use the compact binary format if the backend supports it. The session ID is part of
+            // the binary body.
+            setBody(Constants.HTTP_CONTENT_TYPE_BINARY_LOCATION, BinaryLocationEncoder.encode(session.getID(), fixes, interval));
+            return;
+        }
+
         setParameter(Constants.PACKET_PARAM_SESSION_ID, session.getID());
+        if (interval > 0) setParameter(Constants.PACKET_PARAM_INTERVAL, String.valueOf(interval));
 
-        if (session.getDerivableE2EKey() == null) {
-            // If not using end-to-end encryption, send parameters in plain text.
-            setParameter(Constants.PACKET_PARAM_LATITUDE, String.valueOf(location.getLatitude()));
-            setParameter(Constants.PACKET_PARAM_LONGITUDE, String.valueOf(location.getLongitude()));
-            setParameter(Constants.PACKET_PARAM_PROVIDER_ACCURACY, String.valueOf(accuracy.getMode()));
-            setParameter(Constants.PACKET_PARAM_TIMESTAMP, String.valueOf(System.currentTimeMillis() / (double) TimeUtils.MILLIS_PER_SECOND));
+        boolean indexed = fixes.size() > 1;
+        for (int i = 0; i < fixes.size(); i++) {
+            LocationFix fix = fixes.get(i);
+            String suffix = indexed ? "[" + i + "]" : ""; //NON-NLS
 
-            // Not all devices provide these parameters:
-            if (location.hasSpeed()) setParameter(Constants.PACKET_PARAM_SPEED, String.valueOf(location.getSpeed()));
-            if (location.hasAccuracy()) setParameter(Constants.PACKET_PARAM_ACCURACY, String.valueOf(location.getAccuracy()));
-        } else {
-            // We're using end-to-end encryption - generate an IV and encrypt all parameters.
-            try {
-                Cipher cipher = Cipher.getInstance(Constants.E2E_TRANSFORMATION);
-                cipher.init(Cipher.ENCRYPT_MODE, session.getDerivableE2EKey().deriveSpec(), new SecureRandom());
-                byte[] iv = cipher.getIV();
-                setParameter(Constants.PACKET_PARAM_INIT_VECTOR, Base64.encodeToString(iv, Base64.DEFAULT));
-
-                setParameter(Constants.PACKET_PARAM_LATITUDE, Base64.encodeToString(cipher.doFinal(String.valueOf(location.getLatitude()).getBytes(StandardCharsets.UTF_8)), Base64.DEFAULT));
-                setParameter(Constants.PACKET_PARAM_LONGITUDE, Base64.encodeToString(cipher.doFinal(String.valueOf(location.getLongitude()).getBytes(StandardCharsets.UTF_8)), Base64.DEFAULT));
-                setParameter(Constants.PACKET_PARAM_PROVIDER_ACCURACY, Base64.encodeToString(cipher.doFinal(String.valueOf(accuracy.getMode()).getBytes(StandardCharsets.UTF_8)), Base64.DEFAULT));
-                setParameter(Constants.PACKET_PARAM_TIMESTAMP, Base64.encodeToString(cipher.doFinal(String.valueOf(System.currentTimeMillis() / (double) TimeUtils.MILLIS_PER_SECOND).getBytes(StandardCharsets.UTF_8)), Base64.DEFAULT));
+            if (session.getDerivableE2EKey() == null) {
+                // If not using end-to-end encryption, send parameters in plain text.
+                setParameter(Constants.PACKET_PARAM_LATITUDE + suffix, String.valueOf(fix.getLatitude()));
+                setParameter(Constants.PACKET_PARAM_LONGITUDE + suffix, String.valueOf(fix.getLongitude()));
+                setParameter(Constants.PACKET_PARAM_PROVIDER_ACCURACY + suffix, String.valueOf(fix.getProvider().getMode()));
+                setParameter(Constants.PACKET_PARAM_TIMESTAMP + suffix, String.valueOf(fix.getTimestamp() / (double) TimeUtils.MILLIS_PER_SECOND));
 
                 // Not all devices provide these parameters:
-                if (location.hasSpeed()) setParameter(Constants.PACKET_PARAM_SPEED, Base64.encodeToString(cipher.doFinal(String.valueOf(location.getSpeed()).getBytes(StandardCharsets.UTF_8)), Base64.DEFAULT));
-                if (location.hasAccuracy()) setParameter(Constants.PACKET_PARAM_ACCURACY, Base64.encodeToString(cipher.doFinal(String.valueOf(location.getAccuracy()).getBytes(StandardCharsets.UTF_8)), Base64.DEFAULT));
-            } catch (Exception e) {
-                Log.e("Error was thrown when encrypting location data", e); //NON-NLS
+                if (fix.hasSpeed()) setParameter(Constants.PACKET_PARAM_SPEED + suffix, String.valueOf(fix.getSpeed()));
+                if (fix.hasAccuracy()) setParameter(Constants.PACKET_PARAM_ACCURACY + suffix, String.valueOf(fix.getAccuracy()));
+                if (fix.hasBearing()) setParameter(Constants.PACKET_PARAM_BEARING + suffix, String.valueOf(fix.getBearing()));
+            } else if (session.getBackendVersion().isAtLeast(Constants.VERSION_COMPAT_E2E_ENVELOPE)) {
+                // Seal all fields of the fix in a single authenticated record.
+                try {
+                    EnvelopeCipher.Sealed sealed = session.getDerivableE2EKey().getEnvelopeCipher().seal(serializeRecord(fix));
+                    setParameter(Constants.PACKET_PARAM_INIT_VECTOR + suffix, Base64.encodeToString(sealed.getIV(), Base64.NO_WRAP));
+                    setParameter(Constants.PACKET_PARAM_ENVELOPE + suffix, Base64.encodeToString(sealed.getCiphertext(), Base64.NO_WRAP));
+                } catch (Exception e) {
+                    Log.e("Error was thrown when encrypting location data", e); //NON-NLS
+                }
+            } else {
+                // We're using end-to-end encryption - generate an IV and encrypt all parameters.
+                // Each point has its own IV.
+                try {
+                    Cipher cipher = Cipher.getInstance(Constants.E2E_TRANSFORMATION);
+                    cipher.init(Cipher.ENCRYPT_MODE, session.getDerivableE2EKey().deriveSpec(), new SecureRandom());
+                    byte[] iv = cipher.getIV();
+                    setParameter(Constants.PACKET_PARAM_INIT_VECTOR + suffix, Base64.encodeToString(iv, Base64.DEFAULT));
+
+                    setParameter(Constants.PACKET_PARAM_LATITUDE + suffix, Base64.encodeToString(cipher.doFinal(String.valueOf(fix.getLatitude()).getBytes(StandardCharsets.UTF_8)), Base64.DEFAULT));
+                    setParameter(Constants.PACKET_PARAM_LONGITUDE + suffix, Base64.encodeToString(cipher.doFinal(String.valueOf(fix.getLongitude()).getBytes(StandardCharsets.UTF_8)), Base64.DEFAULT));
+                    setParameter(Constants.PACKET_PARAM_PROVIDER_ACCURACY + suffix, Base64.encodeToString(cipher.doFinal(String.valueOf(fix.getProvider().getMode()).getBytes(StandardCharsets.UTF_8)), Base64.DEFAULT));
+                    setParameter(Constants.PACKET_PARAM_TIMESTAMP + suffix, Base64.encodeToString(cipher.doFinal(String.valueOf(fix.getTimestamp() / (double) TimeUtils.MILLIS_PER_SECOND).getBytes(StandardCharsets.UTF_8)), Base64.DEFAULT));
+
+                    // Not all devices provide these parameters:
+                    if (fix.hasSpeed()) setParameter(Constants.PACKET_PARAM_SPEED + suffix, Base64.encodeToString(cipher.doFinal(String.valueOf(fix.getSpeed()).getBytes(StandardCharsets.UTF_8)), Base64.DEFAULT));
+                    if (fix.hasAccuracy()) setParameter(Constants.PACKET_PARAM_ACCURACY + suffix, Base64.encodeToString(cipher.doFinal(String.valueOf(fix.getAccuracy()).getBytes(StandardCharsets.UTF_8)), Base64.DEFAULT));
+                } catch (Exception e) {
+                    Log.e("Error was thrown when encrypting location data", e); //NON-NLS
+                }
             }
         }
     }
 
+    /**
+     * Serializes a fix for end-to-end encryption as a comma-separated list of latitude, longitude,
+     * timestamp, provider, accuracy, speed and bearing. Fields that are not available are left
+     * empty.
+     *
+     * @param fix The fix to serialize.
+     */
+    private static byte[] serializeRecord(LocationFix fix) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(fix.getLatitude()).append(',');
+        sb.append(fix.getLongitude()).append(',');
+        sb.append(fix.getTimestamp() / (double) TimeUtils.MILLIS_PER_SECOND).append(',');
+        sb.append(fix.getProvider().getMode()).append(',');
+        if (fix.hasAccuracy()) sb.append(fix.getAccuracy());
+        sb.append(',');
+        if (fix.hasSpeed()) sb.append(fix.getSpeed());
+        sb.append(',');
+        if (fix.hasBearing()) sb.append(fix.getBearing());
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    final long getDeadline() {
+        return Constants.LOCATION_PACKET_DEADLINE;
+    }
+
+    /**
+     * Sets the decoder used to decode the share list in the response. Packets that are sent in
+     * succession for the same session may share a decoder, in which case
+     * {@link #onShareListReceived(String, String[])} is only called when the list has changed.
+     *
+     * @param decoder The share list decoder to use.
+     */
+    final void setShareListDecoder(ShareListDecoder decoder) {
+        this.shareDecoder = decoder;
+
+        // Tell the backend which list the decoder already has, so that the list can be left out of
+        // the response if it has not changed.
+        String token = decoder.getToken();
+        if (token != null) {
+            setHeader(Constants.HTTP_HEADER_SHARE_LIST_TOKEN, token);
+            this.sentShareListToken = true;
+        }
+    }
+
+    @Override
+    protected final void onSuccess(String[] data, Version backendVersion) throws ServerException {
+        onSuccess(ResponseBody.of(data), backendVersion);
+    }
+
     @SuppressWarnings("DesignForExtension")
     @Override
-    protected void onSuccess(String[] data, Version backendVersion) throws ServerException {
-        // Somehow the data array can be empty? Check for this.
-        if (data.length < 1) {
+    void onSuccess(ResponseBody body, Version backendVersion) throws ServerException {
+        // Somehow the response can be empty? Check for this.
+        if (body.getLineCount() < 1) {
             throw new ServerException(getContext(), R.string.err_empty);
         }
 
-        if (data[0].equals(Constants.PACKET_RESPONSE_OK)) {
+        if (body.lineEquals(0, Constants.PACKET_RESPONSE_OK)) {
             // If the backend is >= v1.2, post.php returns a list of currently active share links.
             // Update the user interface to include these.
             if (backendVersion.isAtLeast(Constants.VERSION_COMPAT_VIEW_ID)) {
 
-                // The share link list is comma-separated.
-                String linkFormat = data[1];
-                String shareCSV = data[2];
-                if (!shareCSV.isEmpty()) {
-                    onShareListReceived(linkFormat, shareCSV.split(","));
-                } else {
-                    onShareListReceived(linkFormat, new String[0]);
+                // If the backend is >= v1.7 and the list has not changed since the one identified by
+                // the token sent with the packet, the list is left out. Otherwise, the link format,
+                // share list and list token follow the status line.
+                if (this.sentShareListToken && body.getLineCount() == 1) {
+                    this.shareDecoder.onUnchanged();
+                } else if (this.shareDecoder.decode(body, 1, 2, 3)) {
+                    // The share link list is comma-separated, and is usually the same as last time.
+                    onShareListReceived(this.shareDecoder.getLinkFormat(), this.shareDecoder.getShares());
                 }
             }
         } else {
             // If the first line of the response is not "OK", an error of some sort has occurred and
             // should be displayed to the user.
             StringBuilder err = new StringBuilder();
-            for (String line : data) {
-                err.append(line);
+            for (int i = 0; i < body.getLineCount(); i++) {
+                err.append(body.getLine(i));
                 err.append(System.lineSeparator());
             }
             throw new ServerException(err.toString());
@@ -0,0 +1,74 @@
+package info.varden.hauk.http;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+
+import info.varden.hauk.utils.Log;
+
+/**
+ * Watches the device's default network and tells an {@link UploadDispatcher} what kind of network
+ * uploads are sent over, so that it can decide whether to send them right away or group them. The
+ * dispatcher applies the change on its own looper, as network callbacks arrive on a separate thread.
+ *
+ * @author Marius Lindvall
+ */
+public final class NetworkMonitor extends ConnectivityManager.NetworkCallback {
+    private final ConnectivityManager connMan;
+    private final UploadDispatcher dispatcher;
+
+    private boolean registered = false;
+
+    /**
+     * Creates a network monitor.
+     *
+     * @param ctx        Android application context.
+     * @param dispatcher The dispatcher to report network changes to.
+     */
+    public NetworkMonitor(Context ctx, UploadDispatcher dispatcher) {
+        this.connMan = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Starts watching the default network.
+     */
+    public void start() {
+        if (this.connMan == null || this.registered) return;
+        try {
+            this.connMan.registerDefaultNetworkCallback(this);
+            this.registered = true;
+        } catch (RuntimeException ex) {
+            // Thrown if the app has registered too many callbacks, or lacks permission to do so.
+            Log.w("Could not watch default network; uploads will not be scheduled by network type", ex); //NON-NLS
+        }
+    }
+
+    /**
+     * Stops watching the default network.
+     */
+    public void stop() {
+        if (!this.registered) return;
+        this.connMan.unregisterNetworkCallback(this);
+        this.registered = false;
+    }
+
+    @Override
+    public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+        NetworkType type;
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            type = NetworkType.CELLULAR;
+        } else if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)) {
+            type = NetworkType.UNMETERED;
+        } else {
+            type = NetworkType.OTHER;
+        }
+        this.dispatcher.setNetworkType(type);
+    }
+
+    @Override
+    public void onLost(Network network) {
+        this.dispatcher.setNetworkType(NetworkType.NONE);
+    }
+}
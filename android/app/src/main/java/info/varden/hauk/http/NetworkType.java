@@ -0,0 +1,30 @@
+package info.varden.hauk.http;
+
+/**
+ * The kind of network that uploads are currently sent over, as far as it matters for when they
+ * should be sent.
+ *
+ * @author Marius Lindvall
+ */
+public enum NetworkType {
+    /**
+     * An unmetered network, e.g. Wi-Fi. Uploads are cheap and can be sent right away.
+     */
+    UNMETERED,
+
+    /**
+     * A cellular network. The radio stays in a high-power state for several seconds after each
+     * request, so uploads should be grouped.
+     */
+    CELLULAR,
+
+    /**
+     * Any other network, e.g. a metered Wi-Fi hotspot.
+     */
+    OTHER,
+
+    /**
+     * No network is available.
+     */
+    NONE
+}
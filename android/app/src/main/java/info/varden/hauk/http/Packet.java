@@ -1,9 +1,13 @@
 package info.varden.hauk.http;
 
 import android.content.Context;
+import android.os.AsyncTask;
+import android.os.SystemClock;
 
 import java.util.HashMap;
+import java.util.concurrent.Executor;
 
+import info.varden.hauk.Constants;
 import info.varden.hauk.struct.Version;
 import info.varden.hauk.utils.Log;
 
@@ -16,11 +20,18 @@ import info.varden.hauk.utils.Log;
  */
 public abstract class Packet {
     private final HashMap<String, String> params;
+    private final HashMap<String, String> headers;
     private final Context ctx;
     private final String server;
     private final String path;
     private final ConnectionParameters connParams;
 
+    /**
+     * A raw request body, and its content type. If set, the body is sent instead of the parameters.
+     */
+    private byte[] body = null;
+    private String contentType = null;
+
     /**
      * Called if the request is successful.
      *
@@ -34,6 +45,20 @@ public abstract class Packet {
      */
     protected abstract void onSuccess(String[] data, Version backendVersion) throws ServerException;
 
+    /**
+     * Called if the request is successful, with the response body as received. Packets that only
+     * need some of the response, or that can read it without splitting it into lines, may override
+     * this function. By default, it calls {@link #onSuccess(String[], Version)}.
+     *
+     * @param body           The body of the response.
+     * @param backendVersion The version of the backend.
+     *
+     * @throws ServerException If package packet handling/parsing fails.
+     */
+    void onSuccess(ResponseBody body, Version backendVersion) throws ServerException {
+        onSuccess(body.toArray(), backendVersion);
+    }
+
     /**
      * Called if the request failed, or if parsing failed (i.e. exception thrown from onSuccess()).
      *
@@ -50,6 +75,7 @@ public abstract class Packet {
      */
     Packet(Context ctx, String server, ConnectionParameters connParams, String path) {
         this.params = new HashMap<>();
+        this.headers = new HashMap<>();
         this.ctx = ctx;
         this.server = server;
         this.path = path;
@@ -66,6 +92,27 @@ public abstract class Packet {
         this.params.put(key, value);
     }
 
+    /**
+     * Adds an HTTP header to send with the packet.
+     *
+     * @param key   The header name.
+     * @param value The header value.
+     */
+    final void setHeader(String key, String value) {
+        this.headers.put(key, value);
+    }
+
+    /**
+     * Sets a raw request body to send instead of URL-encoded parameters.
+     *
+     * @param contentType The MIME type of the body.
+     * @param body        The request body.
+     */
+    final void setBody(String contentType, byte[] body) {
+        this.contentType = contentType;
+        this.body = body;
+    }
+
     /**
      * Returns Android application context for usage in e.g. creating ServerExceptions.
      */
@@ -73,11 +120,30 @@ public abstract class Packet {
         return this.ctx;
     }
 
+    /**
+     * Returns the time within which the request must complete, in milliseconds. If the deadline
+     * expires, the request is cancelled and fails with a {@link java.net.SocketTimeoutException}.
+     */
+    long getDeadline() {
+        return Constants.PACKET_DEADLINE;
+    }
+
     /**
      * Sends the packet.
      */
     public final void send() {
+        send(AsyncTask.SERIAL_EXECUTOR);
+    }
+
+    /**
+     * Sends the packet on the given executor. Packets sent through {@link #send()} are executed
+     * serially; this function allows e.g. {@link UploadDispatcher} to manage its own concurrency.
+     *
+     * @param executor The executor to run the HTTP request on.
+     */
+    final void send(Executor executor) {
         Log.v("Sending packet of type %s", getClass().getName()); //NON-NLS
+        final CircuitBreaker breaker = CircuitBreaker.forServer(this.server);
         new ConnectionThread(new ConnectionThread.Callback() {
             @Override
             public void run(ConnectionThread.Response resp) {
@@ -86,9 +152,19 @@ public abstract class Packet {
                 // An exception may have occurred, but it cannot be thrown because this is a
                 // callback. Instead, the exception (if any) is stored in the response object.
                 Exception e = resp.getException();
+
+                // Connection errors and temporary server errors mean the backend could not be
+                // reached, even if a proxy in front of it responded. Any other outcome means that
+                // the backend responded, even if with an error.
+                if (HttpStatusException.isTransientFailure(e)) {
+                    breaker.onFailure(SystemClock.elapsedRealtime());
+                } else {
+                    breaker.onSuccess();
+                }
+
                 if (e == null) {
                     try {
-                        onSuccess(resp.getData(), resp.getServerVersion());
+                        onSuccess(resp.getBody(), resp.getServerVersion());
                     } catch (Exception ex) {
                         onFailure(ex);
                     }
@@ -96,6 +172,9 @@ public abstract class Packet {
                     onFailure(e);
                 }
             }
-        }).execute(new ConnectionThread.Request(this.ctx, this.server + this.path, this.params, this.connParams));
+        }).executeOnExecutor(executor, this.body == null
+                ? new ConnectionThread.Request(this.ctx, this.server + this.path, this.params, this.headers, this.connParams, getDeadline())
+                : new ConnectionThread.Request(this.ctx, this.server + this.path, this.contentType, this.body, this.headers, this.connParams, getDeadline())
+        );
     }
 }
@@ -0,0 +1,197 @@
+package info.varden.hauk.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The body of a response from the Hauk backend. Hauk responses consist of one or more lines of
+ * text, where the first line is usually a status line. Rather than copying each line into its own
+ * string, the body is decoded once, and the position of each line is recorded so that packet
+ * handlers can compare or read individual lines without splitting the whole response.
+ *
+ * @author Marius Lindvall
+ */
+final class ResponseBody {
+    /**
+     * The initial size of the buffer the response stream is read into.
+     */
+    private static final int READ_BUFFER_SIZE = 512;
+
+    private final String text;
+    private final int lineCount;
+
+    /**
+     * The start and end offsets of each line in the text. Line i spans the characters from
+     * {@code bounds[2 * i]} to {@code bounds[2 * i + 1]}, excluding the line terminator.
+     */
+    private final int[] bounds;
+
+    private ResponseBody(String text) {
+        this.text = text;
+
+        // Find the bounds of each line. A line terminator at the very end of the body does not
+        // start a new line.
+        int[] bounds = new int[8];
+        int count = 0;
+        int start = 0;
+        int length = text.length();
+        while (start < length) {
+            int end = text.indexOf('\n', start);
+            int next = end < 0 ? length : end + 1;
+            if (end < 0) end = length;
+            if (end > start && text.charAt(end - 1) == '\r') end--;
+            if (2 * count + 1 >= bounds.length) bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            bounds[2 * count] = start;
+            bounds[2 * count + 1] = end;
+            count++;
+            start = next;
+        }
+        this.bounds = bounds;
+        this.lineCount = count;
+    }
+
+    /**
+     * Reads a response body from a stream, and closes the stream.
+     *
+     * @param stream The response stream.
+     * @throws IOException if the stream could not be read.
+     */
+    static ResponseBody read(InputStream stream) throws IOException {
+        try {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int length = 0;
+            int read;
+            while ((read = stream.read(buffer, length, buffer.length - length)) != -1) {
+                length += read;
+                if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            return new ResponseBody(new String(buffer, 0, length, StandardCharsets.UTF_8));
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Creates a response body from a string, e.g. for testing.
+     *
+     * @param text The response text.
+     */
+    static ResponseBody of(String text) {
+        return new ResponseBody(text);
+    }
+
+    /**
+     * Creates a response body from an array of lines.
+     *
+     * @param lines The lines of the response.
+     */
+    static ResponseBody of(String[] lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line);
+            sb.append('\n');
+        }
+        return new ResponseBody(sb.toString());
+    }
+
+    @Override
+    public String toString() {
+        return "ResponseBody{lines=" + this.lineCount
+                + ",length=" + this.text.length()
+                + "}";
+    }
+
+    /**
+     * Returns the full text of the response.
+     */
+    String getText() {
+        return this.text;
+    }
+
+    /**
+     * Returns the number of lines in the response.
+     */
+    int getLineCount() {
+        return this.lineCount;
+    }
+
+    /**
+     * Returns the contents of a line. This creates a new string; use {@link #lineEquals(int, String)}
+     * to compare a line without doing so.
+     *
+     * @param index The index of the line.
+     * @throws IndexOutOfBoundsException if the response has no such line.
+     */
+    String getLine(int index) {
+        checkIndex(index);
+        return this.text.substring(this.bounds[2 * index], this.bounds[2 * index + 1]);
+    }
+
+    /**
+     * Returns the length of a line.
+     *
+     * @param index The index of the line.
+     * @throws IndexOutOfBoundsException if the response has no such line.
+     */
+    int getLineLength(int index) {
+        checkIndex(index);
+        return this.bounds[2 * index + 1] - this.bounds[2 * index];
+    }
+
+    /**
+     * Checks whether a line has the given contents.
+     *
+     * @param index The index of the line.
+     * @param value The expected contents of the line.
+     * @throws IndexOutOfBoundsException if the response has no such line.
+     */
+    boolean lineEquals(int index, String value) {
+        return getLineLength(index) == value.length() && this.text.regionMatches(this.bounds[2 * index], value, 0, value.length());
+    }
+
+    /**
+     * Splits a line into fields separated by the given character.
+     *
+     * @param index     The index of the line.
+     * @param separator The field separator.
+     * @return The fields of the line, or an empty array if the line is empty.
+     * @throws IndexOutOfBoundsException if the response has no such line.
+     */
+    String[] splitLine(int index, char separator) {
+        checkIndex(index);
+        int start = this.bounds[2 * index];
+        int end = this.bounds[2 * index + 1];
+        if (start == end) return new String[0];
+
+        // Count the fields first so that the result can be filled in directly.
+        int count = 1;
+        for (int i = start; i < end; i++) {
+            if (this.text.charAt(i) == separator) count++;
+        }
+        String[] fields = new String[count];
+        for (int i = 0; i < count; i++) {
+            int next = this.text.indexOf(separator, start);
+            if (next < 0 || next > end) next = end;
+            fields[i] = this.text.substring(start, next);
+            start = next + 1;
+        }
+        return fields;
+    }
+
+    /**
+     * Returns all lines of the response as an array of strings.
+     */
+    String[] toArray() {
+        String[] lines = new String[this.lineCount];
+        for (int i = 0; i < this.lineCount; i++) lines[i] = getLine(i);
+        return lines;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= this.lineCount) {
+            throw new IndexOutOfBoundsException("Line " + index + " requested from response of " + this.lineCount + " line(s)"); //NON-NLS
+        }
+    }
+}
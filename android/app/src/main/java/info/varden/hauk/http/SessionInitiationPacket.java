@@ -1,6 +1,9 @@
 package info.varden.hauk.http;
 
 import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Base64;
 
 import androidx.annotation.Nullable;
@@ -15,6 +18,7 @@ import info.varden.hauk.struct.Session;
 import info.varden.hauk.struct.Share;
 import info.varden.hauk.struct.ShareMode;
 import info.varden.hauk.struct.Version;
+import info.varden.hauk.utils.Log;
 import info.varden.hauk.utils.TimeUtils;
 
 /**
@@ -165,9 +169,33 @@ public class SessionInitiationPacket extends Packet {
                     this.params.getMinimumDistance(),
                     e2eParams
             );
-            Share share = new Share(session, viewURL, viewID, joinCode, this.mode);
-
-            this.handler.onSessionInitiated(share);
+            final Share share = new Share(session, viewURL, viewID, joinCode, this.mode);
+
+            if (e2eParams != null) {
+                // Deriving the end-to-end encryption key takes a while. Do it on a worker thread
+                // now rather than on the thread that receives location updates once sharing has
+                // started. The session is passed upstream once the key is ready.
+                final KeyDerivable keyParams = e2eParams;
+                final Handler mainHandler = new Handler(Looper.getMainLooper());
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            keyParams.deriveSpec();
+                        } catch (Exception e) {
+                            Log.e("Failed to derive end-to-end encryption key in advance", e); //NON-NLS
+                        }
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                SessionInitiationPacket.this.handler.onSessionInitiated(share);
+                            }
+                        });
+                    }
+                });
+            } else {
+                this.handler.onSessionInitiated(share);
+            }
         } else {
             // If the first line of the response is not "OK", an error of some sort has occurred and
             // should be displayed to the user.
@@ -0,0 +1,99 @@
+package info.varden.hauk.http;
+
+/**
+ * Decodes the list of active shares that the backend returns in response to every location update.
+ * The list rarely changes between updates, so the decoder remembers the last list it decoded, and
+ * only splits the list again when the backend returns a different one.
+ *
+ * Since v1.7, the backend also identifies each list with a token. The client sends the token of
+ * the list it has with each update, and the backend leaves the list out of the response if it has
+ * not changed since.
+ *
+ * @author Marius Lindvall
+ */
+final class ShareListDecoder {
+    private String lastLinkFormat = null;
+    private String lastShareCSV = null;
+    private String[] lastShares = null;
+
+    /**
+     * The token of the last decoded list. Responses are decoded on the thread that delivers them,
+     * while the token is read when the next packet is built on the dispatcher's looper.
+     */
+    private volatile String token = null;
+
+    // Statistics.
+    private long decodeCount = 0;
+    private long unchangedCount = 0;
+
+    @Override
+    public String toString() {
+        return "ShareListDecoder{shares=" + (this.lastShares == null ? "null" : String.valueOf(this.lastShares.length))
+                + ",token=" + this.token
+                + ",decoded=" + this.decodeCount
+                + ",unchanged=" + this.unchangedCount
+                + "}";
+    }
+
+    /**
+     * Decodes the share list in a response.
+     *
+     * @param body       The response body.
+     * @param formatLine The index of the line containing the view link format.
+     * @param listLine   The index of the line containing the comma-separated list of share IDs.
+     * @param tokenLine  The index of the line containing the token that identifies the list. This
+     *                   line is only present in responses from backends that support tokens.
+     * @return true if the list differs from the one that was last decoded, false if it is
+     *         unchanged.
+     * @throws IndexOutOfBoundsException if the response does not contain the format and list lines.
+     */
+    boolean decode(ResponseBody body, int formatLine, int listLine, int tokenLine) {
+        // The token is updated even if the list is unchanged, in case the backend has only just
+        // started sending tokens.
+        if (tokenLine < body.getLineCount()) {
+            if (this.token == null || !body.lineEquals(tokenLine, this.token)) this.token = body.getLine(tokenLine);
+        } else {
+            this.token = null;
+        }
+
+        if (this.lastShares != null && body.lineEquals(listLine, this.lastShareCSV) && body.lineEquals(formatLine, this.lastLinkFormat)) {
+            this.unchangedCount++;
+            return false;
+        }
+        this.decodeCount++;
+        this.lastLinkFormat = body.getLine(formatLine);
+        this.lastShareCSV = body.getLine(listLine);
+        this.lastShares = body.splitLine(listLine, ',');
+        return true;
+    }
+
+    /**
+     * Records that the backend left the share list out of a response because it has not changed
+     * since the list identified by the token sent with the request.
+     */
+    void onUnchanged() {
+        this.unchangedCount++;
+    }
+
+    /**
+     * Returns the token that identifies the last decoded share list, or null if the backend did
+     * not send one.
+     */
+    String getToken() {
+        return this.token;
+    }
+
+    /**
+     * Returns the view link format of the last decoded share list.
+     */
+    String getLinkFormat() {
+        return this.lastLinkFormat;
+    }
+
+    /**
+     * Returns the share IDs of the last decoded share list.
+     */
+    String[] getShares() {
+        return this.lastShares.clone();
+    }
+}
@@ -0,0 +1,276 @@
+package info.varden.hauk.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import info.varden.hauk.http.security.CertificateValidationPolicy;
+import info.varden.hauk.http.security.InsecureHostnameVerifier;
+import info.varden.hauk.http.security.InsecureTrustManager;
+import info.varden.hauk.utils.Log;
+
+/**
+ * A long-lived HTTP transport shared by all packets that use the same {@link ConnectionParameters}.
+ * The platform's {@link HttpURLConnection} implementation keeps idle connections alive and reuses
+ * them, but only for connections that use the same SSL socket factory instance. The transport
+ * therefore caches its socket factories (and with them the SSL contexts and their TLS session
+ * caches) instead of building a new one for every request, which allows keep-alive connections and
+ * TLS session resumption to work across packets.
+ *
+ * @author Marius Lindvall
+ */
+public final class Transport {
+    @SuppressWarnings("HardCodedStringLiteral")
+    private static final String ONION_TLD = ".onion";
+    @SuppressWarnings("HardCodedStringLiteral")
+    private static final String PROTOCOL_HTTPS = "https";
+
+    /**
+     * Size of the buffer used to drain unread response bodies.
+     */
+    private static final int DRAIN_BUFFER_SIZE = 1024;
+
+    /**
+     * The parameters that connections are established with.
+     */
+    private final ConnectionParameters params;
+
+    /**
+     * Socket factory for TLS connections that are validated normally. Lazily initialized.
+     */
+    private SSLSocketFactory secureFactory = null;
+
+    /**
+     * Socket factory for TLS connections to .onion hosts that have trust anchor validation
+     * disabled by the TLS policy. Lazily initialized.
+     */
+    private SSLSocketFactory insecureFactory = null;
+
+    /**
+     * Hostname verifier for .onion hosts that have hostname validation disabled by the TLS policy.
+     */
+    private final HostnameVerifier insecureVerifier = new InsecureHostnameVerifier();
+
+    // Connection statistics.
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong tlsConnectionCount = new AtomicLong();
+    private final AtomicLong tlsRequestCount = new AtomicLong();
+    private final AtomicLong handshakeCount = new AtomicLong();
+    private final AtomicLong resumedHandshakeCount = new AtomicLong();
+    private final AtomicLong expiredDeadlineCount = new AtomicLong();
+
+    Transport(ConnectionParameters params) {
+        this.params = params;
+    }
+
+    @Override
+    public String toString() {
+        return "Transport{requests=" + this.requestCount.get()
+                + ",tlsRequests=" + this.tlsRequestCount.get()
+                + ",tlsConnections=" + this.tlsConnectionCount.get()
+                + ",reusedTlsConnections=" + getReusedConnectionCount()
+                + ",handshakes=" + this.handshakeCount.get()
+                + ",resumedHandshakes=" + this.resumedHandshakeCount.get()
+                + ",expiredDeadlines=" + this.expiredDeadlineCount.get()
+                + "}";
+    }
+
+    /**
+     * Opens a connection to the given URL using the proxy and TLS policy of the connection
+     * parameters this transport was created for.
+     *
+     * @param url The URL to connect to.
+     * @return An unconnected HTTP connection.
+     * @throws IOException if the connection could not be opened.
+     * @throws GeneralSecurityException if the SSL context could not be initialized.
+     */
+    HttpURLConnection open(URL url) throws IOException, GeneralSecurityException {
+        Proxy proxy = this.params.getProxy();
+        HttpURLConnection client = (HttpURLConnection) (proxy == null ? url.openConnection() : url.openConnection(proxy));
+        this.requestCount.incrementAndGet();
+
+        if (url.getProtocol().equals(PROTOCOL_HTTPS)) {
+            HttpsURLConnection https = (HttpsURLConnection) client;
+            this.tlsRequestCount.incrementAndGet();
+
+            // Check if TLS validation should be disabled for .onion addresses over HTTPS.
+            CertificateValidationPolicy policy = this.params.getTLSPolicy();
+            boolean onion = url.getHost().endsWith(ONION_TLD);
+            if (onion && policy.equals(CertificateValidationPolicy.DISABLE_TRUST_ANCHOR_ONION)) {
+                Log.v("Using insecure SSL socket factory for connection to comply with TLS policy"); //NON-NLS
+                https.setSSLSocketFactory(getInsecureFactory());
+            } else if (onion && policy.equals(CertificateValidationPolicy.DISABLE_ALL_ONION)) {
+                Log.v("Using insecure SSL socket factory and disabling hostname validation for connection to comply with TLS policy"); //NON-NLS
+                https.setSSLSocketFactory(getInsecureFactory());
+                https.setHostnameVerifier(this.insecureVerifier);
+            } else {
+                https.setSSLSocketFactory(getSecureFactory());
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Reads and closes the remainder of a response body. A connection can only be returned to the
+     * keep-alive pool once its response has been read in full.
+     *
+     * @param stream The response stream to drain. May be null.
+     */
+    static void drain(InputStream stream) {
+        if (stream == null) return;
+        try {
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            //noinspection StatementWithEmptyBody
+            while (stream.read(buffer) != -1);
+            stream.close();
+        } catch (IOException ex) {
+            Log.v("Failed to drain response stream", ex); //NON-NLS
+        }
+    }
+
+    /**
+     * Returns the total number of requests opened through this transport.
+     */
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /**
+     * Returns the number of new TLS connections that have been established.
+     */
+    public long getConnectionCount() {
+        return this.tlsConnectionCount.get();
+    }
+
+    /**
+     * Returns the number of TLS requests that were sent over an already established connection.
+     */
+    public long getReusedConnectionCount() {
+        return Math.max(0, this.tlsRequestCount.get() - this.tlsConnectionCount.get());
+    }
+
+    /**
+     * Returns the number of completed TLS handshakes.
+     */
+    public long getHandshakeCount() {
+        return this.handshakeCount.get();
+    }
+
+    /**
+     * Returns the number of TLS handshakes that resumed a cached TLS session.
+     */
+    public long getResumedHandshakeCount() {
+        return this.resumedHandshakeCount.get();
+    }
+
+    /**
+     * Records that a request was cancelled because it did not complete within its deadline.
+     */
+    void recordExpiredDeadline() {
+        this.expiredDeadlineCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of requests that were cancelled because they did not complete within
+     * their deadline.
+     */
+    public long getExpiredDeadlineCount() {
+        return this.expiredDeadlineCount.get();
+    }
+
+    private synchronized SSLSocketFactory getSecureFactory() {
+        if (this.secureFactory == null) {
+            this.secureFactory = new CountingSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+        }
+        return this.secureFactory;
+    }
+
+    private synchronized SSLSocketFactory getInsecureFactory() throws GeneralSecurityException {
+        if (this.insecureFactory == null) {
+            this.insecureFactory = new CountingSocketFactory(InsecureTrustManager.getSocketFactory());
+        }
+        return this.insecureFactory;
+    }
+
+    /**
+     * SSL socket factory wrapper that counts the connections and handshakes made through it.
+     */
+    private final class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory upstream;
+
+        private CountingSocketFactory(SSLSocketFactory upstream) {
+            this.upstream = upstream;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return this.upstream.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return this.upstream.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return track(this.upstream.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return track(this.upstream.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return track(this.upstream.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return track(this.upstream.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return track(this.upstream.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return track(this.upstream.createSocket(address, port, localAddress, localPort));
+        }
+
+        private Socket track(Socket socket) {
+            Transport.this.tlsConnectionCount.incrementAndGet();
+            if (socket instanceof SSLSocket) {
+                final long created = System.currentTimeMillis();
+                ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    @Override
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+                        Transport.this.handshakeCount.incrementAndGet();
+                        // A session that existed before the socket did was resumed from the cache.
+                        if (event.getSession().getCreationTime() < created) {
+                            Transport.this.resumedHandshakeCount.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            return socket;
+        }
+    }
+}
@@ -0,0 +1,751 @@
+package info.varden.hauk.http;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import info.varden.hauk.Constants;
+import info.varden.hauk.caching.FixJournal;
+
+import info.varden.hauk.struct.LocationFix;
+import info.varden.hauk.struct.Session;
+import info.varden.hauk.struct.Version;
+import info.varden.hauk.utils.Log;
+
+/**
+ * Dispatcher that uploads location fixes to the backend with a bounded number of requests in
+ * flight. Previously, each fix was sent as its own packet on the serial AsyncTask executor, meaning
+ * that on slow connections, the backlog of pending requests could grow without limit and the map
+ * would display locations that were minutes old. The dispatcher instead keeps a bounded queue of
+ * fixes waiting to be uploaded, and decides which fixes to discard according to an
+ * {@link UploadPolicy} when the queue backs up.
+ *
+ * The dispatcher can optionally batch fixes, sending up to a given number of fixes in one request
+ * once either that many fixes have been queued or the oldest queued fix has waited for a given
+ * amount of time. Batching is only used if the backend supports it.
+ *
+ * If a {@link FixJournal} is attached, fixes that fail to upload are written to the journal
+ * instead of being lost. While the journal contains fixes, new fixes are appended to it as well so
+ * that fixes are delivered in the order they were obtained. Once the backend can be reached
+ * again, the journal is drained in batches, oldest fixes first.
+ *
+ * Fixes should be submitted on the looper passed to the constructor. Completed uploads are handed
+ * back to that looper before the next packet is built.
+ *
+ * @author Marius Lindvall
+ */
+public final class UploadDispatcher {
+    /**
+     * Android application context.
+     */
+    private final Context ctx;
+
+    /**
+     * The session that fixes are uploaded to.
+     */
+    private final Session session;
+
+    /**
+     * A handler that receives the results of each upload.
+     */
+    private final ResponseHandler handler;
+
+    /**
+     * The strategy used to discard fixes when uploads are backlogged.
+     */
+    private final UploadPolicy policy;
+
+    /**
+     * The maximum number of fixes that can wait in the queue.
+     */
+    private final int capacity;
+
+    /**
+     * For {@link UploadPolicy#KEEP_EVERY_NTH}, the interval at which fixes are kept while uploads
+     * are backlogged.
+     */
+    private final int keepEveryNth;
+
+    /**
+     * The maximum number of upload requests that can be in flight at the same time.
+     */
+    private final int maxInFlight;
+
+    /**
+     * The maximum number of fixes sent in a single request. 1 if batching is disabled.
+     */
+    private int batchSize = 1;
+
+    /**
+     * The maximum time, in milliseconds, that a fix is held back while waiting for a batch to fill.
+     */
+    private long batchDelay = 0;
+
+    /**
+     * The maximum time, in milliseconds, that fixes are held back on cellular networks so that
+     * several of them can be sent while the radio is awake. 0 if uploads are not scheduled by
+     * network type.
+     */
+    private long cellularBudget = 0;
+
+    /**
+     * The kind of network that uploads are currently sent over.
+     */
+    private NetworkType networkType = NetworkType.OTHER;
+
+    /**
+     * Tracks whether the backend is reachable. Uploads are held back while it is open.
+     */
+    private final CircuitBreaker breaker;
+
+    /**
+     * Whether or not the backend was reachable according to the circuit breaker the last time an
+     * upload completed. Used to notify the response handler of changes.
+     */
+    private boolean reachable = true;
+
+    /**
+     * Decodes the share lists returned by the backend, so that they are only decoded and passed on
+     * to the response handler when they change.
+     */
+    private final ShareListDecoder shareDecoder = new ShareListDecoder();
+
+    /**
+     * The update interval reported to the backend with each upload, in seconds. 0 if the interval
+     * is not reported.
+     */
+    private int reportedInterval = 0;
+
+    /**
+     * A handler on the looper the dispatcher runs on. Used to send incomplete batches once their
+     * delay has passed, and to process completed uploads, so that packets (including any
+     * end-to-end encryption) are built on that looper rather than on the main thread.
+     */
+    private final Handler looperHandler;
+
+    /**
+     * A task that sends queued fixes once the batch delay has passed.
+     */
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (UploadDispatcher.this) {
+                if (!UploadDispatcher.this.shutdown) dispatch();
+            }
+        }
+    };
+
+    /**
+     * A persistent journal of fixes that could not be delivered, or null if journaling is
+     * disabled.
+     */
+    private FixJournal journal = null;
+
+    /**
+     * Whether or not a batch of fixes from the journal is currently being uploaded.
+     */
+    private boolean journalInFlight = false;
+
+    /**
+     * Fixes waiting to be uploaded, oldest first.
+     */
+    private final ArrayDeque<LocationFix> queue;
+
+    /**
+     * The number of upload requests currently in flight.
+     */
+    private int inFlight = 0;
+
+    /**
+     * The number of fixes received since uploads became backlogged. Used for
+     * {@link UploadPolicy#KEEP_EVERY_NTH}.
+     */
+    private int backlogCounter = 0;
+
+    /**
+     * Whether or not the dispatcher has been shut down.
+     */
+    private boolean shutdown = false;
+
+    // Statistics for diagnosing upload lag.
+    private long submittedCount = 0;
+    private long sentCount = 0;
+    private long droppedCount = 0;
+    private int maxQueueDepth = 0;
+    private long lastUploadLag = 0;
+    private long maxUploadLag = 0;
+
+    // Statistics for each kind of network, for diagnosing how often uploads wake up the radio.
+    private final Map<NetworkType, RadioStats> radioStats = new EnumMap<>(NetworkType.class);
+    private NetworkType lastRequestNetwork = null;
+    private long lastRequestTime = 0;
+
+    /**
+     * Creates an upload dispatcher.
+     *
+     * @param ctx          Android application context.
+     * @param session      The session to upload fixes to.
+     * @param policy       The strategy used to discard fixes when uploads are backlogged.
+     * @param capacity     The maximum number of fixes that can wait in the queue.
+     * @param keepEveryNth For {@link UploadPolicy#KEEP_EVERY_NTH}, keep every Nth fix while
+     *                     uploads are backlogged.
+     * @param maxInFlight  The maximum number of simultaneous upload requests.
+     * @param looper       The looper that fixes are submitted and packets are built on.
+     * @param handler      A handler that receives the results of each upload.
+     */
+    @SuppressWarnings("ConstructorWithTooManyParameters")
+    public UploadDispatcher(Context ctx, Session session, UploadPolicy policy, int capacity, int keepEveryNth, int maxInFlight, Looper looper, ResponseHandler handler) {
+        this.ctx = ctx;
+        this.session = session;
+        this.policy = policy;
+        this.capacity = Math.max(1, capacity);
+        this.keepEveryNth = Math.max(1, keepEveryNth);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.handler = handler;
+        this.queue = new ArrayDeque<>(this.capacity);
+        this.looperHandler = new Handler(looper);
+        this.breaker = CircuitBreaker.forServer(session.getServerURL());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UploadDispatcher{policy=" + this.policy
+                + ",capacity=" + this.capacity
+                + ",keepEveryNth=" + this.keepEveryNth
+                + ",maxInFlight=" + this.maxInFlight
+                + ",batchSize=" + this.batchSize
+                + ",batchDelay=" + this.batchDelay
+                + ",reportedInterval=" + this.reportedInterval
+                + ",journal=" + this.journal
+                + ",inFlight=" + this.inFlight
+                + ",queueDepth=" + this.queue.size()
+                + ",maxQueueDepth=" + this.maxQueueDepth
+                + ",submitted=" + this.submittedCount
+                + ",sent=" + this.sentCount
+                + ",dropped=" + this.droppedCount
+                + ",lastUploadLag=" + this.lastUploadLag
+                + ",maxUploadLag=" + this.maxUploadLag
+                + ",cellularBudget=" + this.cellularBudget
+                + ",networkType=" + this.networkType
+                + ",radioStats=" + this.radioStats
+                + ",breaker=" + this.breaker
+                + ",shareDecoder=" + this.shareDecoder
+                + "}";
+    }
+
+    /**
+     * Enables sending multiple fixes per request. A batch is sent when {@code batchSize} fixes are
+     * queued, or when the oldest queued fix has waited for {@code batchDelay} milliseconds. If the
+     * backend does not support batched uploads, fixes are sent one at a time as before.
+     *
+     * @param batchSize  The maximum number of fixes to send in one request.
+     * @param batchDelay The maximum time to hold back a fix while waiting for a batch to fill, in
+     *                   milliseconds.
+     */
+    public synchronized void setBatching(int batchSize, long batchDelay) {
+        if (batchSize > 1 && !this.session.getBackendVersion().isAtLeast(Constants.VERSION_COMPAT_BATCH_POST)) {
+            Log.w("Backend version %s does not support batched uploads; sending fixes individually", this.session.getBackendVersion()); //NON-NLS
+            batchSize = 1;
+        }
+        this.batchSize = Math.max(1, Math.min(batchSize, this.capacity));
+        this.batchDelay = Math.max(0, batchDelay);
+        Log.i("Upload batching set to size=%s, delay=%s ms", this.batchSize, this.batchDelay); //NON-NLS
+    }
+
+    /**
+     * Enables scheduling uploads by network type. On cellular networks, fixes are held back for up
+     * to {@code cellularBudget} milliseconds and then sent together, so that one radio wake-up
+     * carries several fixes. On other networks, fixes are sent right away. Has no effect if the
+     * backend does not support batched uploads.
+     *
+     * @param cellularBudget The maximum time to hold back a fix on cellular networks, in
+     *                       milliseconds, or 0 to disable scheduling by network type.
+     */
+    public synchronized void setCellularBudget(long cellularBudget) {
+        this.cellularBudget = Math.max(0, cellularBudget);
+        Log.i("Cellular upload budget set to %s ms", this.cellularBudget); //NON-NLS
+    }
+
+    /**
+     * Sets the kind of network that uploads are currently sent over. Fixes that were held back for
+     * a cellular network are sent right away if the device switches to another network. May be
+     * called from any thread, e.g. from network callbacks; the change is applied on the looper the
+     * dispatcher runs on, as it may build and send packets.
+     *
+     * @param networkType The current network type.
+     */
+    public void setNetworkType(final NetworkType networkType) {
+        this.looperHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                applyNetworkType(networkType);
+            }
+        });
+    }
+
+    /**
+     * Applies a change of network type. Must be called on the dispatcher's looper.
+     *
+     * @param networkType The current network type.
+     */
+    private synchronized void applyNetworkType(NetworkType networkType) {
+        if (this.networkType.equals(networkType)) return;
+        Log.i("Network type changed from %s to %s", this.networkType, networkType); //NON-NLS
+        this.networkType = networkType;
+        // Connection failures on the previous network say little about the new one.
+        if (!networkType.equals(NetworkType.NONE)) this.breaker.probeNow(SystemClock.elapsedRealtime());
+        if (!this.shutdown) dispatch();
+    }
+
+    /**
+     * Sets the update interval that is reported to the backend with subsequent uploads. Used when
+     * the interval changes during a share, so that viewers know when to expect the next update. The
+     * interval is not reported if the backend does not support changing it.
+     *
+     * @param interval The current update interval in seconds, or 0 to stop reporting it.
+     */
+    public synchronized void setReportedInterval(int interval) {
+        if (interval > 0 && !this.session.getBackendVersion().isAtLeast(Constants.VERSION_COMPAT_ADAPTIVE_INTERVAL)) {
+            Log.w("Backend version %s does not support changing the update interval; not reporting it", this.session.getBackendVersion()); //NON-NLS
+            interval = 0;
+        }
+        this.reportedInterval = Math.max(0, interval);
+        Log.i("Reporting update interval of %s s to backend", this.reportedInterval); //NON-NLS
+    }
+
+    /**
+     * Attaches a journal that fixes are written to when they cannot be delivered. If the journal
+     * already contains fixes, e.g. from before the service was restarted, they are uploaded first.
+     *
+     * @param journal The journal to store undelivered fixes in.
+     */
+    public synchronized void setJournal(FixJournal journal) {
+        this.journal = journal;
+        Log.i("Attached fix journal %s", journal); //NON-NLS
+        if (!this.shutdown) dispatch();
+    }
+
+    /**
+     * Submits a location fix for upload. The fix is uploaded immediately if there is room in the
+     * in-flight window; otherwise, it is queued or discarded according to the upload policy.
+     *
+     * @param fix The fix to upload.
+     */
+    public synchronized void submit(LocationFix fix) {
+        if (this.shutdown) return;
+        enqueue(fix);
+        dispatch();
+    }
+
+    /**
+     * Submits several location fixes for upload at once, e.g. when the location provider delivers
+     * fixes in batches. If the backend supports batched uploads, the fixes are sent together in as
+     * few requests as possible regardless of the batch size set in {@link #setBatching(int, long)}.
+     *
+     * @param fixes The fixes to upload, oldest first.
+     */
+    public synchronized void submit(List<LocationFix> fixes) {
+        if (this.shutdown || fixes.isEmpty()) return;
+        for (LocationFix fix : fixes) enqueue(fix);
+        if (this.session.getBackendVersion().isAtLeast(Constants.VERSION_COMPAT_BATCH_POST)) {
+            dispatch(Math.max(this.batchSize, Math.min(fixes.size(), this.capacity)));
+        } else {
+            dispatch();
+        }
+    }
+
+    /**
+     * Adds a fix to the queue, or to the journal if older fixes are still waiting there, discarding
+     * fixes according to the upload policy if uploads are backlogged. Must be called while holding
+     * the lock on this dispatcher.
+     */
+    private void enqueue(LocationFix fix) {
+        this.submittedCount++;
+
+        if (this.journal != null && !this.journal.isEmpty()) {
+            // Older fixes are still waiting to be delivered; keep the new fix behind them. This
+            // also retries the upload of the oldest journaled fixes.
+            addToJournal(fix);
+            return;
+        }
+
+        if (this.inFlight >= this.maxInFlight) {
+            this.backlogCounter++;
+            if (this.policy.equals(UploadPolicy.LATEST_WINS)) {
+                // Only the newest fix is relevant; discard everything that is still waiting.
+                this.droppedCount += this.queue.size();
+                this.queue.clear();
+            } else if (this.policy.equals(UploadPolicy.KEEP_EVERY_NTH) && this.backlogCounter % this.keepEveryNth != 0) {
+                this.droppedCount++;
+                Log.v("Uploads are backlogged; discarding fix (%s dropped in total)", this.droppedCount); //NON-NLS
+                return;
+            }
+        } else {
+            this.backlogCounter = 0;
+        }
+
+        // Make room for the new fix if the queue is full.
+        if (this.queue.size() >= this.capacity) {
+            this.queue.pollFirst();
+            this.droppedCount++;
+            Log.w("Upload queue is full; discarding oldest fix (%s dropped in total)", this.droppedCount); //NON-NLS
+        }
+
+        this.queue.addLast(fix);
+        this.maxQueueDepth = Math.max(this.maxQueueDepth, this.queue.size());
+    }
+
+    /**
+     * Stops the dispatcher. Fixes that are still waiting in the queue are discarded. Requests that
+     * are already in flight will still complete and be passed to the response handler.
+     */
+    public synchronized void shutdown() {
+        Log.i("Shutting down upload dispatcher %s", this); //NON-NLS
+        this.shutdown = true;
+        this.looperHandler.removeCallbacks(this.flushTask);
+        this.droppedCount += this.queue.size();
+        this.queue.clear();
+        if (this.journal != null) this.journal.close();
+    }
+
+    /**
+     * Returns the number of fixes currently waiting to be uploaded.
+     */
+    public synchronized int getQueueDepth() {
+        return this.queue.size();
+    }
+
+    /**
+     * Returns the highest number of fixes that have been waiting in the queue at the same time.
+     */
+    public synchronized int getMaxQueueDepth() {
+        return this.maxQueueDepth;
+    }
+
+    /**
+     * Returns the number of fixes that have been discarded without being uploaded.
+     */
+    public synchronized long getDroppedCount() {
+        return this.droppedCount;
+    }
+
+    /**
+     * Returns the number of fixes that have been submitted to the dispatcher.
+     */
+    public synchronized long getSubmittedCount() {
+        return this.submittedCount;
+    }
+
+    /**
+     * Returns the number of upload requests that have completed, successfully or not.
+     */
+    public synchronized long getSentCount() {
+        return this.sentCount;
+    }
+
+    /**
+     * Returns the time between when the most recently uploaded fix was obtained and when its
+     * upload completed, in milliseconds.
+     */
+    public synchronized long getLastUploadLag() {
+        return this.lastUploadLag;
+    }
+
+    /**
+     * Starts uploads for queued fixes while there is room in the in-flight window. If batching is
+     * enabled, incomplete batches are held back until the oldest fix in the queue has waited for
+     * the batch delay. Must be called while holding the lock on this dispatcher.
+     */
+    private void dispatch() {
+        dispatch(this.batchSize);
+    }
+
+    /**
+     * Starts uploads for queued fixes, sending up to the given number of fixes per request.
+     *
+     * @param batchSize The maximum number of fixes to send in one request.
+     */
+    private void dispatch(int batchSize) {
+        this.looperHandler.removeCallbacks(this.flushTask);
+        if (this.journal != null && !this.journal.isEmpty()) {
+            // Undelivered fixes are drained before anything else, one batch at a time.
+            if (this.inFlight < this.maxInFlight && !this.journalInFlight) {
+                if (!mayConnect()) return;
+                boolean batched = this.session.getBackendVersion().isAtLeast(Constants.VERSION_COMPAT_BATCH_POST);
+                List<LocationFix> batch = this.journal.peek(batched ? Math.max(batchSize, Constants.JOURNAL_DRAIN_BATCH_SIZE) : 1);
+                Log.v("Uploading %s of %s journaled fix(es)", batch.size(), this.journal.size()); //NON-NLS
+                this.journalInFlight = true;
+                this.inFlight++;
+                recordRequest(batch.size());
+                this.handler.onFixesSent(batch);
+                new DispatchedPacket(batch, true).send(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+            return;
+        }
+
+        long batchDelay = this.batchDelay;
+        if (this.cellularBudget > 0 && this.session.getBackendVersion().isAtLeast(Constants.VERSION_COMPAT_BATCH_POST)) {
+            if (this.networkType.equals(NetworkType.CELLULAR)) {
+                // Hold everything back until the oldest fix has used up the budget, then send the
+                // whole queue while the radio is awake.
+                batchSize = this.capacity;
+                batchDelay = Math.max(batchDelay, this.cellularBudget);
+            } else {
+                batchDelay = 0;
+            }
+        }
+
+        while (this.inFlight < this.maxInFlight && !this.queue.isEmpty()) {
+            if (this.queue.size() < batchSize) {
+                long wait = this.queue.peekFirst().getTimestamp() + batchDelay - System.currentTimeMillis();
+                if (wait > 0) {
+                    this.looperHandler.postDelayed(this.flushTask, wait);
+                    return;
+                }
+            }
+
+            if (!mayConnect()) return;
+            List<LocationFix> batch = new ArrayList<>(Math.min(batchSize, this.queue.size()));
+            while (batch.size() < batchSize && !this.queue.isEmpty()) {
+                batch.add(this.queue.pollFirst());
+            }
+            this.inFlight++;
+            recordRequest(batch.size());
+            this.handler.onFixesSent(batch);
+            // The dispatcher bounds the number of requests itself, so the packets do not have to
+            // wait in line behind other packets on the serial executor.
+            new DispatchedPacket(batch, false).send(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
+
+    /**
+     * Checks with the circuit breaker whether an upload may be sent. If the backend is unreachable,
+     * queued fixes are moved to the journal, where they are kept until the backend can be reached
+     * again, and another attempt is scheduled for when the next probe is due. Must be called while
+     * holding the lock on this dispatcher.
+     *
+     * @return true if the upload may be sent, false otherwise.
+     */
+    private boolean mayConnect() {
+        long now = SystemClock.elapsedRealtime();
+        if (this.breaker.allowRequest(now)) return true;
+
+        if (this.journal != null && !this.queue.isEmpty()) {
+            Log.v("Backend is unreachable; writing %s queued fix(es) to journal", this.queue.size()); //NON-NLS
+            for (LocationFix fix : this.queue) addToJournal(fix);
+            this.queue.clear();
+        }
+        // If a probe is in flight, its completion triggers the next attempt.
+        long delay = this.breaker.getProbeDelay(now);
+        if (delay >= 0) this.looperHandler.postDelayed(this.flushTask, delay);
+        return false;
+    }
+
+    /**
+     * Counts an upload request towards the statistics of the current network. A request counts as
+     * a radio wake-up if no request was sent on the same network within the radio tail time before
+     * it. Must be called while holding the lock on this dispatcher.
+     *
+     * @param fixes The number of fixes in the request.
+     */
+    private void recordRequest(int fixes) {
+        long now = SystemClock.elapsedRealtime();
+        RadioStats stats = this.radioStats.get(this.networkType);
+        if (stats == null) {
+            stats = new RadioStats();
+            this.radioStats.put(this.networkType, stats);
+        }
+        stats.requests++;
+        stats.fixes += fixes;
+        if (!this.networkType.equals(this.lastRequestNetwork) || now - this.lastRequestTime > Constants.RADIO_TAIL_TIME) {
+            stats.wakes++;
+        }
+        this.lastRequestNetwork = this.networkType;
+        this.lastRequestTime = now;
+    }
+
+    /**
+     * Writes a fix to the end of the journal. Must be called while holding the lock on this
+     * dispatcher.
+     */
+    private void addToJournal(LocationFix fix) {
+        if (this.journal.append(fix)) {
+            this.droppedCount++;
+            Log.w("Fix journal is full; discarding oldest fix (%s dropped in total)", this.droppedCount); //NON-NLS
+        }
+    }
+
+    /**
+     * Called when an upload request has completed, successfully or not.
+     *
+     * @param batch       The fixes that were uploaded, oldest first.
+     * @param fromJournal Whether or not the fixes were read from the journal.
+     * @param success     Whether or not the fixes were delivered.
+     * @param retryable   Whether or not the upload failed because the backend could not be
+     *                    reached or was temporarily unavailable, so that it makes sense to retry it
+     *                    later. Fixes that the backend rejected are dropped rather than retried, as
+     *                    they would otherwise block all fixes behind them.
+     */
+    private synchronized void onPacketCompleted(List<LocationFix> batch, boolean fromJournal, boolean success, boolean retryable) {
+        this.inFlight--;
+        this.sentCount++;
+        if (!success && !retryable) {
+            this.droppedCount += batch.size();
+            Log.w("Backend rejected %s fix(es); dropping them (%s dropped in total)", batch.size(), this.droppedCount); //NON-NLS
+        }
+        if (fromJournal) {
+            this.journalInFlight = false;
+            // Journaled fixes are only removed once delivered or rejected; if the backend could
+            // not be reached, they are retried when the next fix is submitted.
+            if (success || !retryable) this.journal.remove(batch.size());
+        } else if (!success && retryable && this.journal != null) {
+            // Store the fixes that could not be delivered, followed by the fixes that were waiting
+            // behind them, so that they can be delivered in order later.
+            Log.i("Writing %s undelivered and %s queued fix(es) to journal", batch.size(), this.queue.size()); //NON-NLS
+            for (LocationFix fix : batch) addToJournal(fix);
+            for (LocationFix fix : this.queue) addToJournal(fix);
+            this.queue.clear();
+        }
+
+        // Tell the response handler if the breaker opened or closed as a result of this upload.
+        boolean reachable = this.breaker.getState() == CircuitBreaker.State.CLOSED;
+        if (reachable != this.reachable) {
+            this.reachable = reachable;
+            Log.i("Backend became %s: %s", reachable ? "reachable" : "unreachable", this.breaker); //NON-NLS
+            if (reachable) {
+                this.handler.onServerConnectionRestored();
+            } else {
+                this.handler.onServerConnectionLost();
+            }
+        }
+
+        this.lastUploadLag = System.currentTimeMillis() - batch.get(batch.size() - 1).getTimestamp();
+        this.maxUploadLag = Math.max(this.maxUploadLag, this.lastUploadLag);
+        Log.v("Upload of %s fix(es) completed; queueDepth=%s, dropped=%s, lag=%s ms", batch.size(), this.queue.size(), this.droppedCount, this.lastUploadLag); //NON-NLS
+        // After a failure, wait for the next fix or probe before retrying journaled fixes.
+        if (!this.shutdown && (success || !retryable || this.journal == null || this.journal.isEmpty() || !reachable)) dispatch();
+    }
+
+    /**
+     * Upload statistics for one kind of network.
+     */
+    private static final class RadioStats {
+        private long requests = 0;
+        private long fixes = 0;
+        private long wakes = 0;
+
+        @Override
+        public String toString() {
+            return "RadioStats{requests=" + this.requests
+                    + ",fixes=" + this.fixes
+                    + ",wakes=" + this.wakes
+                    + ",requestsPerWake=" + (this.wakes > 0 ? String.format(Locale.US, "%.2f", (double) this.requests / this.wakes) : "n/a") //NON-NLS
+                    + "}";
+        }
+    }
+
+    /**
+     * Location update packet that reports its completion back to the dispatcher.
+     */
+    private final class DispatchedPacket extends LocationUpdatePacket {
+        private final List<LocationFix> batch;
+        private final boolean fromJournal;
+
+        /**
+         * Whether or not the dispatcher has been notified of completion.
+         */
+        private boolean completed = false;
+
+        private DispatchedPacket(List<LocationFix> batch, boolean fromJournal) {
+            super(UploadDispatcher.this.ctx, UploadDispatcher.this.session, batch, UploadDispatcher.this.reportedInterval);
+            this.batch = batch;
+            this.fromJournal = fromJournal;
+            setShareListDecoder(UploadDispatcher.this.shareDecoder);
+        }
+
+        private void complete(final boolean success, final boolean retryable) {
+            if (!this.completed) {
+                this.completed = true;
+                // Upload results are delivered on the main thread; hand them back to the
+                // dispatcher's looper, as this may build the next packet.
+                UploadDispatcher.this.looperHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPacketCompleted(DispatchedPacket.this.batch, DispatchedPacket.this.fromJournal, success, retryable);
+                    }
+                });
+            }
+        }
+
+        @Override
+        protected void onShareListReceived(String linkFormat, String[] shares) {
+            UploadDispatcher.this.handler.onShareListReceived(linkFormat, shares);
+        }
+
+        @Override
+        void onSuccess(ResponseBody body, Version backendVersion) throws ServerException {
+            // Parse the response first; if the backend returned an error, onFailure() is called.
+            super.onSuccess(body, backendVersion);
+            complete(true, false);
+            UploadDispatcher.this.handler.onSuccess();
+        }
+
+        @Override
+        protected void onFailure(Exception ex) {
+            // Only connection errors and temporary server errors, e.g. from a proxy while the
+            // backend is down, are worth retrying. Any other failure means that the backend
+            // responded, but rejected the fixes.
+            complete(false, HttpStatusException.isTransientFailure(ex));
+            UploadDispatcher.this.handler.onFailure(ex);
+        }
+    }
+
+    /**
+     * A handler that receives the results of uploads performed by the dispatcher.
+     */
+    public interface ResponseHandler extends FailureHandler {
+        /**
+         * Called when a fix was successfully delivered to the backend.
+         */
+        void onSuccess();
+
+        /**
+         * Called on the dispatcher's looper when fixes are sent in an upload request, i.e. when
+         * they have not been discarded by the upload policy.
+         *
+         * @param fixes The fixes that are being sent, oldest first.
+         */
+        void onFixesSent(List<LocationFix> fixes);
+
+        /**
+         * Called whenever a list of currently active shares is received from the server that
+         * differs from the previously received list.
+         *
+         * @param linkFormat A string that can be used to construct a public view link for each
+         *                   share in the {@code shares} array.
+         * @param shares     A list of share IDs active for the user's current session.
+         * @see LocationUpdatePacket#onShareListReceived(String, String[])
+         */
+        void onShareListReceived(String linkFormat, String[] shares);
+
+        /**
+         * Called when the backend has become unreachable, and uploads are held back until it can
+         * be reached again.
+         */
+        void onServerConnectionLost();
+
+        /**
+         * Called when the backend was unreachable, but has been reached again.
+         */
+        void onServerConnectionRestored();
+    }
+}
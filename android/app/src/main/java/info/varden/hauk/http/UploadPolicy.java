@@ -0,0 +1,38 @@
+package info.varden.hauk.http;
+
+import info.varden.hauk.system.preferences.IndexedEnum;
+
+/**
+ * An enum representing the strategies {@link UploadDispatcher} can use to decide which location
+ * fixes to keep when uploads cannot keep up with the rate at which fixes are received, and their ID
+ * when stored in preferences.
+ *
+ * @author Marius Lindvall
+ */
+public final class UploadPolicy extends IndexedEnum<UploadPolicy> {
+    private static final long serialVersionUID = 6302563788164410153L;
+
+    /**
+     * Only the most recent fix is kept in the queue. Older queued fixes are discarded.
+     */
+    public static final UploadPolicy LATEST_WINS = new UploadPolicy(0);
+
+    /**
+     * All fixes are queued until the queue is full, after which the oldest fixes are discarded.
+     */
+    public static final UploadPolicy KEEP_ALL = new UploadPolicy(1);
+
+    /**
+     * While uploads are backlogged, only every Nth fix is queued.
+     */
+    public static final UploadPolicy KEEP_EVERY_NTH = new UploadPolicy(2);
+
+    private UploadPolicy(int index) {
+        super(index);
+    }
+
+    @Override
+    public String toString() {
+        return "UploadPolicy{" + super.toString() + "}";
+    }
+}
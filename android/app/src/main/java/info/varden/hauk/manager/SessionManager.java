@@ -11,9 +11,11 @@ import android.os.Handler;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import info.varden.hauk.Constants;
 import info.varden.hauk.caching.ResumableSessions;
@@ -483,6 +485,12 @@ public abstract class SessionManager {
             }
         }
 
+        @Override
+        public void onFineLocationIdle() {
+            // Sharing is still active while the fine location provider is idle, so the status
+            // shown to upstream listeners does not change.
+        }
+
         @Override
         public void onServerConnectionLost() {
             for (GNSSStatusUpdateListener listener : SessionManager.this.upstreamUpdateHandlers) {
@@ -499,9 +507,9 @@ public abstract class SessionManager {
 
         @Override
         public void onShareListReceived(String linkFormat, String[] shareIDs) {
-            List<String> currentShares = Arrays.asList(shareIDs);
-            for (int i = 0; i < currentShares.size(); i++) {
-                String shareID = currentShares.get(i);
+            // Look up shares in a set so that reconciling large group shares takes linear time.
+            Set<String> currentShares = new HashSet<>(Arrays.asList(shareIDs));
+            for (String shareID : shareIDs) {
                 if (!SessionManager.this.knownShares.containsKey(shareID)) {
                     // A new share has been added. If the client is suddenly informed of a new
                     // share, it is always a group share because that is the only type of shares
@@ -44,9 +44,13 @@ public abstract class HaukBroadcastReceiver<T> extends BroadcastReceiver {
     public final void onReceive(Context context, Intent intent) {
         // Retrieve the registry index of the data stored for this receiver, then pass that data on
         // to the subclass.
-        int index = intent.getIntExtra(Constants.EXTRA_BROADCAST_RECEIVER_REGISTRY_INDEX, -1);
+        long index = intent.getLongExtra(Constants.EXTRA_BROADCAST_RECEIVER_REGISTRY_INDEX, -1L);
         //noinspection unchecked
         T data = (T) ReceiverDataRegistry.retrieve(index, true);
+        if (data == null) {
+            Log.w("Received broadcast for class %s, but its stored data has expired", getClass().getName()); //NON-NLS
+            return;
+        }
         Log.v("Received broadcast for class %s; fetched stored data of type %s; calling handler", getClass().getName(), data.getClass().getName()); //NON-NLS
         handle(context, data);
     }
@@ -53,8 +53,9 @@ final class Receiver<T> {
         intent.setAction(this.receiver.getConstructor().newInstance().getActionID());
 
         // Store the provided data in the registry for later retrieval, and pass the data index to
-        // the intent.
-        intent.putExtra(Constants.EXTRA_BROADCAST_RECEIVER_REGISTRY_INDEX, ReceiverDataRegistry.register(this.data));
+        // the intent. The data is kept in the registry as the action can be invoked several times;
+        // rebuilding the notification for the same data reuses the same registry entry.
+        intent.putExtra(Constants.EXTRA_BROADCAST_RECEIVER_REGISTRY_INDEX, ReceiverDataRegistry.register(this.data, true));
 
         return PendingIntent.getBroadcast(this.ctx, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
     }
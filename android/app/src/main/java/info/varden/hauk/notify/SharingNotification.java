@@ -90,6 +90,13 @@ public final class SharingNotification extends HaukNotification implements GNSSA
         push();
     }
 
+    @Override
+    public void onFineLocationIdle() {
+        this.notifyTitle = R.string.label_status_idle;
+        this.lastTitle = this.notifyTitle;
+        push();
+    }
+
     @Override
     public void onServerConnectionLost() {
         this.notifyTitle = R.string.label_status_disconnected;
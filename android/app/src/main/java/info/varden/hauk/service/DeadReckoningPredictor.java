@@ -0,0 +1,115 @@
+package info.varden.hauk.service;
+
+import info.varden.hauk.struct.LocationFix;
+import info.varden.hauk.utils.TimeUtils;
+
+/**
+ * Suppresses uploads of location fixes that viewers can predict themselves. Viewers extrapolate a
+ * user's position from the last fix they received using its speed and bearing. This class runs the
+ * same prediction from the last fix that was sent, and only lets a new fix through once the real
+ * position deviates from the prediction by more than a given error bound. While moving steadily,
+ * e.g. on a highway, this leaves only occasional fixes to be uploaded.
+ *
+ * A fix is always sent once a given time has passed since the last fix that was sent, so that
+ * viewers do not consider the user to be offline, and whenever the location provider changes.
+ *
+ * @author Marius Lindvall
+ */
+final class DeadReckoningPredictor {
+    /**
+     * The mean radius of the Earth in meters.
+     */
+    private static final double EARTH_RADIUS = 6371000.0;
+
+    private final float errorBound;
+    private final long heartbeat;
+
+    /**
+     * The newest fix that has been sent to viewers, or null if no fix has been sent yet. Fixes that
+     * pass {@link #shouldSend(LocationFix)} may still be discarded by the upload policy, so this is
+     * only updated through {@link #onSent(LocationFix)}.
+     */
+    private LocationFix lastSent = null;
+
+    private long sentCount = 0;
+    private long suppressedCount = 0;
+
+    /**
+     * Creates a predictor.
+     *
+     * @param errorBound The largest distance, in meters, that the real position may deviate from
+     *                   the predicted position before a fix is sent.
+     * @param heartbeat  The longest time, in milliseconds, to go without sending a fix.
+     */
+    DeadReckoningPredictor(float errorBound, long heartbeat) {
+        this.errorBound = errorBound;
+        this.heartbeat = heartbeat;
+    }
+
+    @Override
+    public String toString() {
+        return "DeadReckoningPredictor{errorBound=" + this.errorBound
+                + ",heartbeat=" + this.heartbeat
+                + ",sent=" + this.sentCount
+                + ",suppressed=" + this.suppressedCount
+                + "}";
+    }
+
+    /**
+     * Determines whether or not the given fix should be sent.
+     *
+     * @param fix The newest location fix.
+     * @return true if the fix should be sent; false if viewers can predict it closely enough.
+     */
+    boolean shouldSend(LocationFix fix) {
+        LocationFix last = this.lastSent;
+        if (last != null
+                && last.getProvider() == fix.getProvider()
+                && fix.getTimestamp() - last.getTimestamp() < this.heartbeat
+                && getPredictionError(last, fix) <= this.errorBound) {
+            this.suppressedCount++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called when a fix is actually sent to the backend, and makes it the fix that subsequent
+     * fixes are predicted from if it is newer than the current one.
+     *
+     * @param fix The fix that was sent.
+     */
+    void onSent(LocationFix fix) {
+        this.sentCount++;
+        if (this.lastSent == null || fix.getTimestamp() >= this.lastSent.getTimestamp()) {
+            this.lastSent = fix;
+        }
+    }
+
+    /**
+     * Calculates the distance in meters between the position of {@code fix} and the position
+     * predicted for the same time from {@code origin}. Fixes without speed or bearing are predicted
+     * to stay where they are, as viewers cannot extrapolate them.
+     */
+    private static double getPredictionError(LocationFix origin, LocationFix fix) {
+        double lat = Math.toRadians(origin.getLatitude());
+        double lon = Math.toRadians(origin.getLongitude());
+
+        if (origin.hasSpeed() && origin.hasBearing()) {
+            // Move along a great circle from the origin for the elapsed time.
+            double elapsed = Math.max(0L, fix.getTimestamp() - origin.getTimestamp()) / (double) TimeUtils.MILLIS_PER_SECOND;
+            double angle = origin.getSpeed() * elapsed / EARTH_RADIUS;
+            double bearing = Math.toRadians(origin.getBearing());
+            double predictedLat = Math.asin(Math.sin(lat) * Math.cos(angle) + Math.cos(lat) * Math.sin(angle) * Math.cos(bearing));
+            lon += Math.atan2(Math.sin(bearing) * Math.sin(angle) * Math.cos(lat), Math.cos(angle) - Math.sin(lat) * Math.sin(predictedLat));
+            lat = predictedLat;
+        }
+
+        // Haversine distance between the predicted and the real position.
+        double toLat = Math.toRadians(fix.getLatitude());
+        double havLat = Math.sin((toLat - lat) / 2);
+        double havLon = Math.sin((Math.toRadians(fix.getLongitude()) - lon) / 2);
+        double hav = havLat * havLat + Math.cos(lat) * Math.cos(toLat) * havLon * havLon;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(hav)));
+    }
+}
@@ -0,0 +1,567 @@
+package info.varden.hauk.service;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.location.Location;
+import android.location.LocationManager;
+import android.location.LocationRequest;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import info.varden.hauk.Constants;
+import info.varden.hauk.http.parameter.LocationProvider;
+import info.varden.hauk.utils.TimeUtils;
+import info.varden.hauk.utils.Log;
+
+/**
+ * Location source that receives location updates from the device's location services. Coarse
+ * (network) location updates are used until the first fine (GNSS) location update arrives. If fine
+ * location updates then stop arriving for longer than the fallback period, coarse location updates
+ * are requested again until GNSS becomes available.
+ *
+ * On Android 12 and later, fine location updates at long intervals can be batched in the location
+ * hardware, so that the device does not have to wake up for every fix. The fixes are then delivered
+ * together once the batch delay has passed.
+ *
+ * At even longer intervals, the GNSS provider can instead be duty-cycled: it is turned off after
+ * each fix and turned back on shortly before the next update is due, as scheduled by
+ * {@link GNSSDutyCycle}. If no fix is obtained before the wake window times out, this is treated
+ * the same way as fine location updates stopping, and coarse location updates are requested. The
+ * wake-ups and timeouts are scheduled as alarms on the elapsed realtime clock, as the device is
+ * likely to be suspended while the provider is off.
+ *
+ * @author Marius Lindvall
+ */
+final class DeviceLocationSource implements LocationSource {
+    /**
+     * How long {@link #stop()} waits for the location looper to remove the listeners, in
+     * milliseconds.
+     */
+    private static final long STOP_TIMEOUT = 2000L;
+
+    /**
+     * Broadcast action for the alarm that wakes up or times out the duty-cycled GNSS provider.
+     */
+    private static final String ACTION_DUTY_CYCLE_ALARM = "info.varden.hauk.GNSS_DUTY_CYCLE_ALARM";
+
+    /**
+     * Android application context.
+     */
+    private final Context ctx;
+
+    /**
+     * Android location manager instance.
+     */
+    private final LocationManager locMan;
+
+    /**
+     * The minimum distance between coarse location updates, in meters.
+     */
+    private final float minDistance;
+
+    /**
+     * How long to wait for the next fine location update beyond the update interval before falling
+     * back to coarse location updates, in milliseconds.
+     */
+    private final long fallbackDelay;
+
+    /**
+     * The maximum time fine location updates may be held back in the location hardware to be
+     * delivered in a batch, in milliseconds. 0 if batching is disabled.
+     */
+    private final long batchDelay;
+
+    /**
+     * The scheduler for turning the GNSS provider on and off between fixes, or null if duty cycling
+     * is disabled.
+     */
+    private final GNSSDutyCycle dutyCycle;
+
+    /**
+     * The interval location updates are currently requested at, in milliseconds.
+     */
+    private volatile long intervalMillis;
+
+    private Looper looper;
+    private Callback callback;
+
+    /**
+     * The source's location listener for fine (GNSS, high-accuracy) location updates.
+     */
+    private FineLocationListener listenFine;
+
+    /**
+     * The source's location listener for coarse (network, low-accuracy) location updates.
+     */
+    private volatile CoarseLocationListener listenCoarse;
+
+    /**
+     * A handler that runs the coarse location fallback if no fine location updates are received.
+     */
+    private Handler noGnssTimer;
+
+    /**
+     * Whether or not the source has been stopped. Only accessed on the location looper.
+     */
+    private boolean stopped = false;
+
+    /**
+     * The alarm used to schedule duty cycle tasks, and the receiver it is delivered to, or null if
+     * duty cycling is disabled.
+     */
+    private AlarmManager alarmMan;
+    private PendingIntent alarmIntent;
+    private BroadcastReceiver alarmReceiver;
+
+    /**
+     * The duty cycle task to run when the alarm goes off. Only accessed on the location looper.
+     */
+    private Runnable alarmTask;
+
+    /**
+     * Creates a location source for the device's location services.
+     *
+     * @param ctx            Android application context.
+     * @param locMan         Android location manager instance.
+     * @param intervalMillis The interval to request location updates at, in milliseconds.
+     * @param minDistance    The minimum distance between coarse location updates, in meters.
+     * @param fallbackDelay  How long to wait for fine location updates beyond the interval before
+     *                       falling back to coarse location updates, in milliseconds.
+     * @param batchDelay     The maximum time to batch fine location updates for, in milliseconds,
+     *                       or 0 to deliver every update immediately.
+     * @param dutyCycleAccuracy The accuracy, in meters, a fix must have for the GNSS provider to be
+     *                          turned off until the next update, or 0 to keep it on.
+     */
+    DeviceLocationSource(Context ctx, LocationManager locMan, long intervalMillis, float minDistance, long fallbackDelay, long batchDelay, float dutyCycleAccuracy) {
+        this.ctx = ctx;
+        this.locMan = locMan;
+        this.intervalMillis = intervalMillis;
+        this.minDistance = minDistance;
+        this.fallbackDelay = fallbackDelay;
+        this.batchDelay = batchDelay;
+        this.dutyCycle = dutyCycleAccuracy > 0.0F ? new GNSSDutyCycle(dutyCycleAccuracy, fallbackDelay) : null;
+    }
+
+    @Override
+    public boolean start(Looper looper, Callback callback) throws SecurityException {
+        this.looper = looper;
+        this.callback = callback;
+        this.noGnssTimer = new Handler(looper);
+        if (this.dutyCycle != null) registerAlarm();
+
+        this.listenCoarse = new CoarseLocationListener();
+        this.listenFine = new FineLocationListener();
+        if (!this.listenCoarse.request(this.locMan, looper)) this.listenCoarse = null;
+        if (!this.listenFine.request(this.locMan, looper)) this.listenFine = null;
+        return this.listenCoarse != null || this.listenFine != null;
+    }
+
+    @Override
+    public void setInterval(long intervalMillis) throws SecurityException {
+        this.intervalMillis = intervalMillis;
+        if (!this.stopped && this.listenFine != null) this.listenFine.request(this.locMan, this.looper);
+    }
+
+    @Override
+    public void stop() {
+        // Listeners are requested and removed on the location looper. Remove them there as well,
+        // so that a wake-up or coarse rebind that is already running cannot request updates after
+        // the source has been stopped.
+        if (this.noGnssTimer == null || Looper.myLooper() == this.looper) {
+            stopOnLooper();
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        boolean posted = this.noGnssTimer.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stopOnLooper();
+                } finally {
+                    latch.countDown();
+                }
+            }
+        });
+        if (!posted) {
+            // The looper has already quit, so nothing else can run on it.
+            stopOnLooper();
+            return;
+        }
+        try {
+            if (!latch.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.w("Timed out waiting for location source to stop on location thread"); //NON-NLS
+            }
+        } catch (InterruptedException ex) {
+            Log.w("Interrupted while waiting for location source to stop", ex); //NON-NLS
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Removes all location listeners and pending tasks. Must be run on the location looper.
+     */
+    private void stopOnLooper() {
+        this.stopped = true;
+        // This prevents the timeout and duty cycle tasks from running after the session has been
+        // stopped.
+        if (this.noGnssTimer != null) this.noGnssTimer.removeCallbacksAndMessages(null);
+        unregisterAlarm();
+
+        CoarseLocationListener coarse = this.listenCoarse;
+        if (coarse != null) {
+            Log.i("Removing updates from coarse location provider"); //NON-NLS
+            this.locMan.removeUpdates(coarse);
+            this.listenCoarse = null;
+        }
+        if (this.listenFine != null) {
+            Log.i("Removing updates from fine location provider"); //NON-NLS
+            this.locMan.removeUpdates(this.listenFine);
+            this.listenFine = null;
+        }
+        if (this.dutyCycle != null) {
+            Log.i("GNSS duty cycle statistics: %s", this.dutyCycle); //NON-NLS
+        }
+    }
+
+    /**
+     * Registers the receiver for the duty cycle alarm. The alarm is delivered on the location
+     * looper.
+     */
+    private void registerAlarm() {
+        this.alarmMan = (AlarmManager) this.ctx.getSystemService(Context.ALARM_SERVICE);
+        this.alarmReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Runnable task = DeviceLocationSource.this.alarmTask;
+                DeviceLocationSource.this.alarmTask = null;
+                if (task != null) task.run();
+            }
+        };
+        IntentFilter filter = new IntentFilter(ACTION_DUTY_CYCLE_ALARM);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            this.ctx.registerReceiver(this.alarmReceiver, filter, null, this.noGnssTimer, Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            this.ctx.registerReceiver(this.alarmReceiver, filter, null, this.noGnssTimer);
+        }
+        Intent intent = new Intent(ACTION_DUTY_CYCLE_ALARM).setPackage(this.ctx.getPackageName());
+        this.alarmIntent = PendingIntent.getBroadcast(this.ctx, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    /**
+     * Cancels the duty cycle alarm and unregisters its receiver.
+     */
+    private void unregisterAlarm() {
+        if (this.alarmReceiver == null) return;
+        cancelAlarm();
+        this.ctx.unregisterReceiver(this.alarmReceiver);
+        this.alarmReceiver = null;
+    }
+
+    /**
+     * Schedules a duty cycle task. Handler delays stop while the device is suspended, so the task
+     * is scheduled as an alarm that wakes the device up. Only one task is scheduled at a time.
+     *
+     * @param task  The task to run on the location looper.
+     * @param delay The time until the task should run, in milliseconds.
+     */
+    private void scheduleAlarm(Runnable task, long delay) {
+        this.alarmTask = task;
+        long triggerAt = SystemClock.elapsedRealtime() + delay;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S || this.alarmMan.canScheduleExactAlarms()) {
+            this.alarmMan.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerAt, this.alarmIntent);
+        } else {
+            // Without permission to schedule exact alarms, the system may defer the alarm slightly.
+            this.alarmMan.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerAt, this.alarmIntent);
+        }
+    }
+
+    /**
+     * Cancels the scheduled duty cycle task, if any.
+     */
+    private void cancelAlarm() {
+        this.alarmTask = null;
+        if (this.alarmMan != null) this.alarmMan.cancel(this.alarmIntent);
+    }
+
+    /**
+     * Stops coarse location updates, if they are active.
+     */
+    private void removeCoarseListener() {
+        CoarseLocationListener coarse = this.listenCoarse;
+        if (coarse != null) {
+            // Unregister the coarse location listener, since we are now receiving
+            // accurate location data.
+            Log.i("Accurate location found; removing updates from coarse location provider"); //NON-NLS
+            this.locMan.removeUpdates(coarse);
+            this.listenCoarse = null;
+        }
+    }
+
+    /**
+     * Notifies the callback that fine location updates have stopped, and requests coarse location
+     * updates until they resume.
+     */
+    private void fallBackToCoarse() {
+        if (this.stopped) return;
+        this.callback.onFineLocationLost();
+        if (this.listenCoarse != null) return;
+        CoarseLocationListener coarse = new CoarseLocationListener();
+        if (coarse.request(this.locMan, this.looper)) {
+            this.listenCoarse = coarse;
+        }
+    }
+
+    /**
+     * Coarse location provider implementation (network-based location).
+     */
+    private final class CoarseLocationListener extends LocationListenerBase {
+        @Override
+        public void onLocationChanged(Location location) {
+            Log.v("Location was received on coarse location provider"); //NON-NLS
+            DeviceLocationSource.this.callback.onLocationChanged(location, LocationProvider.COARSE);
+        }
+
+        @Override
+        boolean request(LocationManager manager, Looper looper) throws SecurityException {
+            Log.i("Requesting location updates from device location services"); //NON-NLS
+            try {
+                manager.requestLocationUpdates(
+                        LocationManager.NETWORK_PROVIDER,
+                        DeviceLocationSource.this.intervalMillis,
+                        DeviceLocationSource.this.minDistance,
+                        this,
+                        looper
+                );
+                return true;
+            } catch (IllegalArgumentException ex) {
+                Log.w("Coarse location provider does not exist!", ex); //NON-NLS
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Fine location provider implementation (GNSS-based location).
+     */
+    private final class FineLocationListener extends LocationListenerBase {
+        /**
+         * Whether or not location updates are currently batched in the location hardware.
+         */
+        private volatile boolean batching = false;
+
+        /**
+         * Whether or not the provider is currently duty-cycled.
+         */
+        private volatile boolean dutyCycling = false;
+
+        /**
+         * The most accurate fix received since the provider was last woken up, if duty-cycled.
+         */
+        private Location bestFix = null;
+
+        @Override
+        public void onLocationChanged(Location location) {
+            if (this.dutyCycling) {
+                onDutyCycledFix(location);
+                return;
+            }
+            onReceived();
+            Log.v("Location was received on fine location provider"); //NON-NLS
+            DeviceLocationSource.this.callback.onLocationChanged(location, LocationProvider.FINE);
+        }
+
+        @Override
+        public void onLocationChanged(List<Location> locations) {
+            if (locations.isEmpty()) return;
+            if (this.dutyCycling) {
+                for (Location location : locations) onDutyCycledFix(location);
+                return;
+            }
+            onReceived();
+            Log.v("%s locations were received in a batch on fine location provider", locations.size()); //NON-NLS
+            DeviceLocationSource.this.callback.onLocationsChanged(locations, LocationProvider.FINE);
+        }
+
+        /**
+         * Stops coarse location updates and resets the coarse location fallback timer.
+         */
+        private void onReceived() {
+            removeCoarseListener();
+
+            // Set a timeout for the location updates to detect if the provider stops working. If
+            // that happens, fall back to the coarse location provider. Batched updates arrive up
+            // to the batch delay later than they otherwise would.
+            long timeout = DeviceLocationSource.this.intervalMillis + DeviceLocationSource.this.fallbackDelay;
+            if (this.batching) timeout += DeviceLocationSource.this.batchDelay;
+            DeviceLocationSource.this.noGnssTimer.removeCallbacksAndMessages(null);
+            DeviceLocationSource.this.noGnssTimer.postDelayed(new CoarseLocationFallbackTask(), timeout);
+        }
+
+        /**
+         * Keeps the most accurate fix received while the provider is awake, and puts the provider
+         * to sleep once a fix meets the accuracy target.
+         */
+        private void onDutyCycledFix(Location location) {
+            GNSSDutyCycle dutyCycle = DeviceLocationSource.this.dutyCycle;
+            // Updates may still be delivered shortly after the provider was put to sleep.
+            if (!dutyCycle.isAwake()) return;
+            removeCoarseListener();
+            Log.v("Location was received on duty-cycled fine location provider"); //NON-NLS
+
+            if (this.bestFix == null || location.hasAccuracy() && (!this.bestFix.hasAccuracy() || location.getAccuracy() <= this.bestFix.getAccuracy())) {
+                this.bestFix = location;
+            }
+            if (dutyCycle.meetsTarget(location.hasAccuracy(), location.getAccuracy())) sleep(false);
+        }
+
+        /**
+         * Turns the provider on until a fix meets the accuracy target or the wake window times out.
+         */
+        private void wake() throws SecurityException {
+            GNSSDutyCycle dutyCycle = DeviceLocationSource.this.dutyCycle;
+            dutyCycle.onWake(SystemClock.elapsedRealtime());
+            this.bestFix = null;
+            Log.v("Waking up fine location provider"); //NON-NLS
+            DeviceLocationSource.this.locMan.requestLocationUpdates(
+                    LocationManager.GPS_PROVIDER,
+                    Constants.GNSS_DUTY_CYCLE_FIX_INTERVAL,
+                    0.0F,
+                    this,
+                    DeviceLocationSource.this.looper
+            );
+            scheduleAlarm(new SleepTask(), dutyCycle.getTimeout());
+        }
+
+        /**
+         * Turns the provider off, delivers the best fix obtained while it was on, and schedules the
+         * next wake-up. If no fix was obtained, coarse location updates are requested in the
+         * meantime.
+         *
+         * @param timedOut Whether or not the wake window timed out.
+         */
+        private void sleep(boolean timedOut) {
+            cancelAlarm();
+            DeviceLocationSource.this.locMan.removeUpdates(this);
+
+            Location fix = this.bestFix;
+            this.bestFix = null;
+            long delay = DeviceLocationSource.this.dutyCycle.onSleep(SystemClock.elapsedRealtime(), fix != null, timedOut, DeviceLocationSource.this.intervalMillis);
+            Log.v("Fine location provider sleeping for %s ms: %s", delay, DeviceLocationSource.this.dutyCycle); //NON-NLS
+
+            // Schedule the wake-up first, as the callback may change the interval and stop duty
+            // cycling.
+            scheduleAlarm(new WakeTask(), delay);
+            if (fix != null) {
+                DeviceLocationSource.this.callback.onLocationChanged(fix, LocationProvider.FINE);
+                DeviceLocationSource.this.callback.onFineLocationIdle();
+            } else {
+                Log.w("No location fix obtained while fine location provider was on. Rebinding coarse location provider."); //NON-NLS
+                fallBackToCoarse();
+            }
+        }
+
+        @Override
+        boolean request(LocationManager manager, Looper looper) throws SecurityException {
+            long interval = DeviceLocationSource.this.intervalMillis;
+            long batchDelay = DeviceLocationSource.this.batchDelay;
+
+            if (DeviceLocationSource.this.dutyCycle != null && interval >= Constants.GNSS_DUTY_CYCLE_MIN_INTERVAL * TimeUtils.MILLIS_PER_SECOND) {
+                // The next wake-up is scheduled with the current interval when the provider is put
+                // to sleep, so there is nothing to do if the provider is already duty-cycled.
+                if (!this.dutyCycling) {
+                    Log.i("Duty cycling fine location provider for updates every %s ms", interval); //NON-NLS
+                    this.dutyCycling = true;
+                    this.batching = false;
+                    DeviceLocationSource.this.noGnssTimer.removeCallbacksAndMessages(null);
+                    cancelAlarm();
+                    DeviceLocationSource.this.noGnssTimer.post(new WakeTask());
+                }
+                return true;
+            } else if (this.dutyCycling) {
+                Log.i("Interval is too short for duty cycling; keeping fine location provider on"); //NON-NLS
+                this.dutyCycling = false;
+                DeviceLocationSource.this.noGnssTimer.removeCallbacksAndMessages(null);
+                cancelAlarm();
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
+                    && batchDelay > interval
+                    && interval >= Constants.GNSS_BATCHING_MIN_INTERVAL * TimeUtils.MILLIS_PER_SECOND) {
+                Log.i("Requesting fine location updates every %s ms, batched for up to %s ms", interval, batchDelay); //NON-NLS
+                LocationRequest request = new LocationRequest.Builder(interval)
+                        .setQuality(LocationRequest.QUALITY_HIGH_ACCURACY)
+                        .setMinUpdateDistanceMeters(0.0F) // See https://github.com/bilde2910/Hauk/issues/124
+                        .setMaxUpdateDelayMillis(batchDelay)
+                        .build();
+                final Handler handler = new Handler(looper);
+                manager.requestLocationUpdates(LocationManager.GPS_PROVIDER, request, new Executor() {
+                    @Override
+                    public void execute(Runnable task) {
+                        handler.post(task);
+                    }
+                }, this);
+                this.batching = true;
+                return true;
+            }
+
+            manager.requestLocationUpdates(
+                    LocationManager.GPS_PROVIDER,
+                    interval,
+                    0.0F, // See https://github.com/bilde2910/Hauk/issues/124
+                    this,
+                    looper
+            );
+            this.batching = false;
+            return true;
+        }
+    }
+
+    private final class CoarseLocationFallbackTask implements Runnable {
+        @Override
+        public void run() {
+            // No location updates have been received for the timeout period. Rebind the coarse
+            // location listener while we wait for the fine listener to become functional again.
+            Log.w("Location fix lost. Rebinding coarse location provider."); //NON-NLS
+            fallBackToCoarse();
+        }
+    }
+
+    /**
+     * Turns the duty-cycled fine location provider on.
+     */
+    private final class WakeTask implements Runnable {
+        @Override
+        public void run() {
+            FineLocationListener fine = DeviceLocationSource.this.listenFine;
+            if (DeviceLocationSource.this.stopped || fine == null || !fine.dutyCycling) return;
+            try {
+                fine.wake();
+            } catch (SecurityException ex) {
+                Log.e("Location permission was revoked; could not wake up fine location provider", ex); //NON-NLS
+            }
+        }
+    }
+
+    /**
+     * Turns the duty-cycled fine location provider off when the wake window times out.
+     */
+    private final class SleepTask implements Runnable {
+        @Override
+        public void run() {
+            FineLocationListener fine = DeviceLocationSource.this.listenFine;
+            if (DeviceLocationSource.this.stopped || fine == null || !fine.dutyCycling) return;
+            Log.v("Wake window timed out for fine location provider"); //NON-NLS
+            fine.sleep(true);
+        }
+    }
+}
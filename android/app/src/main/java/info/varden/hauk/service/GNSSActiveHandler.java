@@ -21,6 +21,12 @@ public interface GNSSActiveHandler {
      */
     void onAccurateLocationReceived();
 
+    /**
+     * Called when the fine location provider has been turned off until the next location update is
+     * due, after having delivered a high-accuracy fix.
+     */
+    void onFineLocationIdle();
+
     /**
      * Called if the backend server is unreachable.
      */
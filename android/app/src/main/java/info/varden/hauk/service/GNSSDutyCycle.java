@@ -0,0 +1,175 @@
+package info.varden.hauk.service;
+
+import java.util.Locale;
+
+import info.varden.hauk.utils.TimeUtils;
+
+/**
+ * Schedules the wake-ups of the GNSS provider when it is duty-cycled, i.e. turned off between
+ * location updates at long intervals. The provider is woken up shortly before the next update is
+ * due, and put back to sleep once it has obtained a fix that meets the accuracy target, or when the
+ * wake window times out.
+ *
+ * The time the provider needs to obtain a fix is learned from previous wake windows, so that it is
+ * woken up just early enough for the fix to be ready when the update is due. The class also keeps
+ * counters of how long the provider has been awake and how long fixes took, so that the power and
+ * latency trade-off can be seen in the diagnostic log.
+ *
+ * @author Marius Lindvall
+ */
+final class GNSSDutyCycle {
+    /**
+     * The time assumed for the provider to obtain a fix before any fix has been obtained, in
+     * milliseconds.
+     */
+    private static final long INITIAL_LEAD = 15L * TimeUtils.MILLIS_PER_SECOND;
+
+    /**
+     * The shortest time to wake the provider up ahead of the next update, in milliseconds.
+     */
+    private static final long MIN_LEAD = 5L * TimeUtils.MILLIS_PER_SECOND;
+
+    /**
+     * The factor the typical time to fix is multiplied by to get the wake-up lead time, leaving
+     * room for fixes that take longer than usual.
+     */
+    private static final double LEAD_MARGIN = 1.5;
+
+    /**
+     * Smoothing factor for the exponential moving average of the time to fix.
+     */
+    private static final double TIME_TO_FIX_SMOOTHING = 0.3;
+
+    private final float accuracyTarget;
+    private final long timeout;
+
+    /**
+     * Moving average of the time it takes to obtain a fix after waking up, in milliseconds.
+     */
+    private double averageTimeToFix = -1.0;
+
+    private boolean awake = false;
+    private long wakeTime;
+    private long firstWakeTime = -1L;
+    private long lastSleepTime = -1L;
+
+    // Power and latency counters.
+    private long wakeCount = 0;
+    private long timeoutCount = 0;
+    private long missedCount = 0;
+    private long awakeMillis = 0;
+    private long fixCount = 0;
+    private long totalTimeToFix = 0;
+    private long maxTimeToFix = 0;
+
+    /**
+     * Creates a duty cycle scheduler.
+     *
+     * @param accuracyTarget The accuracy, in meters, that a fix must have for the provider to be
+     *                       put back to sleep before the wake window times out.
+     * @param timeout        The maximum time to keep the provider awake, in milliseconds.
+     */
+    GNSSDutyCycle(float accuracyTarget, long timeout) {
+        this.accuracyTarget = accuracyTarget;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public String toString() {
+        long elapsed = this.lastSleepTime - this.firstWakeTime;
+        return "GNSSDutyCycle{accuracyTarget=" + this.accuracyTarget
+                + ",timeout=" + this.timeout
+                + ",awake=" + this.awake
+                + ",wakeCount=" + this.wakeCount
+                + ",timeoutCount=" + this.timeoutCount
+                + ",missedCount=" + this.missedCount
+                + ",awakeMillis=" + this.awakeMillis
+                + ",dutyRatio=" + (elapsed > 0 ? String.format(Locale.US, "%.3f", (double) this.awakeMillis / elapsed) : "n/a") //NON-NLS
+                + ",averageTimeToFix=" + (this.fixCount > 0 ? String.valueOf(this.totalTimeToFix / this.fixCount) : "n/a") //NON-NLS
+                + ",maxTimeToFix=" + this.maxTimeToFix
+                + ",lead=" + getLead()
+                + "}";
+    }
+
+    /**
+     * Returns the maximum time to keep the provider awake, in milliseconds.
+     */
+    long getTimeout() {
+        return this.timeout;
+    }
+
+    /**
+     * Returns whether or not the provider is currently awake.
+     */
+    boolean isAwake() {
+        return this.awake;
+    }
+
+    /**
+     * Called when the provider is woken up.
+     *
+     * @param now The current time, in milliseconds since boot.
+     */
+    void onWake(long now) {
+        this.awake = true;
+        this.wakeTime = now;
+        if (this.firstWakeTime < 0) this.firstWakeTime = now;
+        this.wakeCount++;
+    }
+
+    /**
+     * Checks whether a fix is good enough for the provider to go back to sleep.
+     *
+     * @param hasAccuracy Whether or not the fix has an accuracy.
+     * @param accuracy    The accuracy of the fix, in meters.
+     * @return true if the fix meets the accuracy target.
+     */
+    boolean meetsTarget(boolean hasAccuracy, float accuracy) {
+        return hasAccuracy && accuracy <= this.accuracyTarget;
+    }
+
+    /**
+     * Called when the provider is put to sleep, and calculates when it should be woken up again.
+     *
+     * @param now      The current time, in milliseconds since boot.
+     * @param gotFix   Whether or not a fix was obtained while the provider was awake.
+     * @param timedOut Whether or not the wake window timed out.
+     * @param interval The interval between location updates, in milliseconds.
+     * @return The time until the provider should be woken up again, in milliseconds.
+     */
+    long onSleep(long now, boolean gotFix, boolean timedOut, long interval) {
+        if (!this.awake) return Math.max(0L, interval - getLead());
+        this.awake = false;
+        this.lastSleepTime = now;
+        long awakeFor = now - this.wakeTime;
+        this.awakeMillis += awakeFor;
+
+        if (!gotFix) {
+            this.missedCount++;
+        } else if (timedOut) {
+            this.timeoutCount++;
+        } else {
+            // Only fixes that met the target say anything about how long it takes to get one.
+            this.fixCount++;
+            this.totalTimeToFix += awakeFor;
+            this.maxTimeToFix = Math.max(this.maxTimeToFix, awakeFor);
+            this.averageTimeToFix = this.averageTimeToFix < 0.0 ? awakeFor : this.averageTimeToFix + TIME_TO_FIX_SMOOTHING * (awakeFor - this.averageTimeToFix);
+        }
+        if (timedOut) {
+            // Fixes are hard to get at the moment; start earlier next time.
+            this.averageTimeToFix = Math.max(this.averageTimeToFix, this.timeout / LEAD_MARGIN);
+        }
+
+        // The update that was just delivered is the reference for when the next one is due.
+        return Math.max(0L, interval - getLead());
+    }
+
+    /**
+     * Returns how long before the next update is due that the provider should be woken up, in
+     * milliseconds.
+     */
+    private long getLead() {
+        if (this.averageTimeToFix < 0.0) return Math.min(INITIAL_LEAD, this.timeout);
+        return Math.min(this.timeout, Math.max(MIN_LEAD, Math.round(this.averageTimeToFix * LEAD_MARGIN)));
+    }
+}
@@ -3,12 +3,13 @@ package info.varden.hauk.service;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Looper;
 
 import info.varden.hauk.utils.Log;
 
 /**
  * Location listener base class for Hauk. The purpose of this class is to remove unnecessary empty
- * function bodies from LocationPushService's source code.
+ * function bodies from DeviceLocationSource's source code.
  *
  * @author Marius Lindvall
  */
@@ -32,8 +33,9 @@ abstract class LocationListenerBase implements LocationListener {
      * Request location updates from the given location manager.
      *
      * @param manager The location manager to request location updates from.
+     * @param looper  The looper that location updates should be delivered on.
      * @return true if successful, false otherwise.
      * @throws SecurityException if location permission has not been granted.
      */
-    abstract boolean request(LocationManager manager) throws SecurityException;
+    abstract boolean request(LocationManager manager, Looper looper) throws SecurityException;
 }
@@ -7,20 +7,34 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.location.Location;
 import android.location.LocationManager;
+import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
 
 import androidx.annotation.Nullable;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import info.varden.hauk.BuildConfig;
 import info.varden.hauk.Constants;
-import info.varden.hauk.http.LocationUpdatePacket;
-import info.varden.hauk.http.ServerException;
+import info.varden.hauk.caching.FixJournal;
+import info.varden.hauk.http.NetworkMonitor;
+import info.varden.hauk.http.UploadDispatcher;
 import info.varden.hauk.http.parameter.LocationProvider;
 import info.varden.hauk.manager.StopSharingTask;
 import info.varden.hauk.notify.SharingNotification;
+import info.varden.hauk.service.filter.LocationFilter;
+import info.varden.hauk.struct.KeyDerivable;
+import info.varden.hauk.struct.LocationFix;
 import info.varden.hauk.struct.Share;
-import info.varden.hauk.struct.Version;
 import info.varden.hauk.system.preferences.PreferenceManager;
+import info.varden.hauk.utils.DiagnosticLog;
 import info.varden.hauk.utils.Log;
 import info.varden.hauk.utils.ReceiverDataRegistry;
 import info.varden.hauk.utils.TimeUtils;
@@ -30,6 +44,11 @@ import info.varden.hauk.utils.TimeUtils;
  * creates a persistent notification when it launches in order to stay running while the app is
  * minimized.
  *
+ * Location updates are received and processed on a dedicated {@link HandlerThread}, including the
+ * distance filter, the fallback timer and building and encrypting upload packets, so that location
+ * sharing is not affected by work on the main thread. Status changes are handed back to the main
+ * thread by {@link MultiTargetGNSSHandlerProxy}.
+ *
  * @author Marius Lindvall
  */
 public final class LocationPushService extends Service {
@@ -37,11 +56,14 @@ public final class LocationPushService extends Service {
     @SuppressWarnings("HardCodedStringLiteral")
     public static final String ACTION_ID = "info.varden.hauk.LOCATION_SERVICE";
 
+    @SuppressWarnings("HardCodedStringLiteral")
+    private static final String LOCATION_THREAD_NAME = "HaukLocation";
+
     /**
      * A task that should be run when locations start registering. Used further upstream to change a
      * label on the main activity.
      */
-    private GNSSActiveHandler gnssActiveTask;
+    private volatile GNSSActiveHandler gnssActiveTask;
 
     /**
      * An indicator of whether or the upstream GNSS handler's {@code onCoarseLocationReceived()}
@@ -59,6 +81,14 @@ public final class LocationPushService extends Service {
     @SuppressWarnings("BooleanVariableAlwaysNegated")
     private boolean hasRunAccurateTask = false;
 
+    /**
+     * An indicator of whether or the upstream GNSS handler's {@code onFineLocationIdle()} callback
+     * has been run. This call back should only run once to inform the upstream that the fine
+     * location provider is being duty-cycled.
+     */
+    @SuppressWarnings("BooleanVariableAlwaysNegated")
+    private boolean hasRunIdleTask = false;
+
     /**
      * The share that is to be represented in the notification.
      */
@@ -70,14 +100,19 @@ public final class LocationPushService extends Service {
     private LocationManager locMan;
 
     /**
-     * The service's location listener for fine (GNSS, high-accuracy) location updates.
+     * The source that location updates are received from.
      */
-    private FineLocationListener listenFine;
+    private LocationSource source;
 
     /**
-     * The service's location listener for coarse (network, low-accuracy) location updates.
+     * The thread that location updates are received and processed on.
      */
-    private CoarseLocationListener listenCoarse;
+    private HandlerThread locationThread;
+
+    /**
+     * A handler on the location processing thread.
+     */
+    private Handler locationHandler;
 
     /**
      * The handler that has scheduled the stop task. This is needed so that the callback can be
@@ -87,13 +122,36 @@ public final class LocationPushService extends Service {
     private Handler handler;
 
     /**
-     * Whether or not the last update packet was sent successfully, i.e. whether there is a
-     * connection to the backend server.
+     * Whether or not the backend server is reachable, as determined by the upload dispatcher's
+     * circuit breaker.
      */
     private boolean connected = true;
 
+    /**
+     * The dispatcher that uploads location fixes to the backend.
+     */
+    private UploadDispatcher dispatcher;
+
+    /**
+     * Tells the dispatcher which kind of network uploads are sent over.
+     */
+    private NetworkMonitor networkMonitor;
+
+    /**
+     * Smooths location updates and rejects outliers before they are uploaded, or null if location
+     * updates are uploaded as received.
+     */
+    private LocationFilter filter;
+
+    /**
+     * Suppresses fixes that viewers can extrapolate from previous fixes, or null if every fix is
+     * uploaded.
+     */
+    private DeadReckoningPredictor predictor;
+
     @Override
     public void onCreate() {
+        DiagnosticLog.init(getApplicationContext());
         Log.d("Fetching location service"); //NON-NLS
         this.locMan = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
     }
@@ -103,10 +161,10 @@ public final class LocationPushService extends Service {
         Log.i("Location push service %s was started, flags=%s, startId=%s", this, flags, startId); //NON-NLS
 
         // A task that should be run when sharing ends, either automatically or by user request.
-        StopSharingTask stopTask = (StopSharingTask) ReceiverDataRegistry.retrieve(intent.getIntExtra(Constants.EXTRA_STOP_TASK, -1));
-        this.share = (Share) ReceiverDataRegistry.retrieve(intent.getIntExtra(Constants.EXTRA_SHARE, -1));
-        GNSSActiveHandler parentHandler = (GNSSActiveHandler) ReceiverDataRegistry.retrieve(intent.getIntExtra(Constants.EXTRA_GNSS_ACTIVE_TASK, -1));
-        this.handler = (Handler) ReceiverDataRegistry.retrieve(intent.getIntExtra(Constants.EXTRA_HANDLER, -1));
+        StopSharingTask stopTask = (StopSharingTask) ReceiverDataRegistry.retrieve(intent.getLongExtra(Constants.EXTRA_STOP_TASK, -1L));
+        this.share = (Share) ReceiverDataRegistry.retrieve(intent.getLongExtra(Constants.EXTRA_SHARE, -1L));
+        GNSSActiveHandler parentHandler = (GNSSActiveHandler) ReceiverDataRegistry.retrieve(intent.getLongExtra(Constants.EXTRA_GNSS_ACTIVE_TASK, -1L));
+        this.handler = (Handler) ReceiverDataRegistry.retrieve(intent.getLongExtra(Constants.EXTRA_HANDLER, -1L));
 
         Log.d("Pusher %s was given extras stopTask=%s, share=%s, parentHandler=%s, handler=%s", this, stopTask, this.share, parentHandler, this.handler); //NON-NLS
 
@@ -127,11 +185,97 @@ public final class LocationPushService extends Service {
                 // Send status changes both to the parent handler and the notification.
                 this.gnssActiveTask = new MultiTargetGNSSHandlerProxy(parentHandler, notify);
 
-                // Create and bind location listeners.
-                this.listenCoarse = new CoarseLocationListener();
-                this.listenFine = new FineLocationListener();
-                if (!this.listenCoarse.request(this.locMan)) this.listenCoarse = null;
-                if (!this.listenFine.request(this.locMan)) this.listenFine = null;
+                // Make sure the end-to-end encryption key is ready before the first location update
+                // arrives. For resumed sessions, this unwraps the previously derived key.
+                final KeyDerivable e2eKey = this.share.getSession().getDerivableE2EKey();
+                if (e2eKey != null) {
+                    AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                e2eKey.deriveSpec();
+                            } catch (Exception e) {
+                                Log.e("Failed to prepare end-to-end encryption key", e); //NON-NLS
+                            }
+                        }
+                    });
+                }
+
+                // Start the thread that location updates are processed on.
+                this.locationThread = new HandlerThread(LOCATION_THREAD_NAME, Process.THREAD_PRIORITY_BACKGROUND);
+                this.locationThread.start();
+                this.locationHandler = new Handler(this.locationThread.getLooper());
+
+                // Create the dispatcher that uploads location fixes to the backend.
+                PreferenceManager prefs = new PreferenceManager(this);
+                this.dispatcher = new UploadDispatcher(
+                        this,
+                        this.share.getSession(),
+                        prefs.get(Constants.PREF_UPLOAD_POLICY),
+                        prefs.get(Constants.PREF_UPLOAD_QUEUE_SIZE),
+                        prefs.get(Constants.PREF_UPLOAD_KEEP_NTH),
+                        Constants.UPLOAD_MAX_IN_FLIGHT,
+                        this.locationThread.getLooper(),
+                        new UploadResponseHandler()
+                );
+                this.dispatcher.setBatching(
+                        prefs.get(Constants.PREF_UPLOAD_BATCH_SIZE),
+                        prefs.get(Constants.PREF_UPLOAD_BATCH_WINDOW) * TimeUtils.MILLIS_PER_SECOND
+                );
+                this.dispatcher.setCellularBudget(prefs.get(Constants.PREF_UPLOAD_CELLULAR_BUDGET) * TimeUtils.MILLIS_PER_SECOND);
+                this.networkMonitor = new NetworkMonitor(this, this.dispatcher);
+                this.networkMonitor.start();
+
+                // Pass location updates through the filter stage chosen in settings.
+                this.filter = prefs.get(Constants.PREF_LOCATION_FILTER).createFilter();
+
+                // Skip uploading fixes that viewers can predict from the speed and bearing of
+                // previous fixes, if enabled and supported by the backend.
+                float errorBound = prefs.get(Constants.PREF_DEAD_RECKONING_ERROR);
+                if (errorBound > 0.0F) {
+                    if (this.share.getSession().getBackendVersion().isAtLeast(Constants.VERSION_COMPAT_DEAD_RECKONING)) {
+                        this.predictor = new DeadReckoningPredictor(errorBound, prefs.get(Constants.PREF_DEAD_RECKONING_HEARTBEAT) * TimeUtils.MILLIS_PER_SECOND);
+                    } else {
+                        Log.w("Backend version %s does not support dead reckoning; uploading all fixes", this.share.getSession().getBackendVersion()); //NON-NLS
+                    }
+                }
+
+                // Keep fixes that cannot be delivered in a journal so they can be sent later. The
+                // journal is opened on the location thread, as any fixes in it are sent right away.
+                final File journalFile = new File(getFilesDir(), Constants.JOURNAL_FILE_NAME);
+                final String sessionID = this.share.getSession().getID();
+                this.locationHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            LocationPushService.this.dispatcher.setJournal(new FixJournal(journalFile, sessionID, Constants.JOURNAL_CAPACITY));
+                        } catch (IOException e) {
+                            Log.e("Could not open fix journal; undelivered fixes will be discarded", e); //NON-NLS
+                        }
+                    }
+                });
+
+                // Start receiving location updates. Debug builds can replay a recorded track
+                // instead of using the device's location services.
+                String replayTrack = prefs.get(Constants.PREF_REPLAY_TRACK);
+                if (BuildConfig.DEBUG && !replayTrack.isEmpty()) {
+                    File track = new File(replayTrack);
+                    if (!track.isAbsolute()) track = new File(getExternalFilesDir(null), replayTrack);
+                    this.source = new ReplayLocationSource(track, prefs.get(Constants.PREF_REPLAY_SPEED));
+                } else {
+                    this.source = new DeviceLocationSource(
+                            this,
+                            this.locMan,
+                            this.share.getSession().getIntervalMillis(),
+                            this.share.getSession().getMinimumDistance(),
+                            prefs.get(Constants.PREF_NO_GNSS_FALLBACK) * TimeUtils.MILLIS_PER_SECOND,
+                            prefs.get(Constants.PREF_GNSS_BATCH_DELAY) * TimeUtils.MILLIS_PER_SECOND,
+                            prefs.get(Constants.PREF_GNSS_DUTY_CYCLE_ACCURACY)
+                    );
+                }
+                if (!this.source.start(this.locationThread.getLooper(), new SourceCallback(prefs))) {
+                    Log.e("Location source %s could not be started", this.source); //NON-NLS
+                }
 
             } else {
                 Log.e("Location permission that was granted earlier has been rejected - sharing aborted"); //NON-NLS
@@ -144,13 +288,25 @@ public final class LocationPushService extends Service {
 
     @Override
     public void onDestroy() {
-        if (this.listenCoarse != null) {
-            Log.i("Service %s destroyed; removing updates from coarse location provider", this); //NON-NLS
-            this.locMan.removeUpdates(this.listenCoarse);
+        Log.i("Service %s destroyed; stopping location source %s", this, this.source); //NON-NLS
+        if (this.source != null) this.source.stop();
+
+        if (this.networkMonitor != null) this.networkMonitor.stop();
+        if (this.dispatcher != null) this.dispatcher.shutdown();
+        if (this.locationThread != null) {
+            Log.i("Stopping location processing thread"); //NON-NLS
+            this.locationThread.quitSafely();
         }
-        Log.i("Service %s destroyed; removing updates from fine location provider", this); //NON-NLS
-        this.listenFine.onStopped();
-        this.locMan.removeUpdates(this.listenFine);
+        if (this.filter != null) {
+            Log.i("Location filter state: %s", this.filter); //NON-NLS
+        }
+        if (this.predictor != null) {
+            Log.i("Dead reckoning statistics: %s", this.predictor); //NON-NLS
+        }
+        if (this.share != null) {
+            Log.i("Connection statistics for session: %s", this.share.getSession().getConnectionParameters().getTransport()); //NON-NLS
+        }
+        Log.i("Receiver data registry statistics: %s", ReceiverDataRegistry.getStats()); //NON-NLS
 
         Log.i("Removing callbacks from handler %s", this.handler); //NON-NLS
         this.handler.removeCallbacksAndMessages(null);
@@ -166,90 +322,155 @@ public final class LocationPushService extends Service {
      * Called when either the coarse or the fine location provider has received a location update.
      * Pushes the location update to the session backend.
      *
-     * @param location The location received from the device's location services.
+     * @param location The location received from the location source.
      */
     private void onLocationChanged(Location location, LocationProvider accuracy) {
-        Log.v("Sending location update packet"); //NON-NLS
-        new LocationUpdatePacketImpl(location, accuracy).send();
+        LocationFix fix = toFix(location, accuracy, System.currentTimeMillis());
+        if (fix == null) return;
+        Log.v("Submitting location update for upload"); //NON-NLS
+        this.dispatcher.submit(fix);
     }
 
-    @Nullable
-    @Override
-    public IBinder onBind(Intent intent) {
-        return null;
+    /**
+     * Called when the location source has delivered several location updates at once. Pushes the
+     * location updates to the session backend together.
+     *
+     * @param locations The locations received from the location source, oldest first.
+     */
+    private void onLocationsChanged(List<Location> locations, LocationProvider accuracy) {
+        // The fixes were obtained before they were delivered. Their times are derived from the
+        // time since boot rather than taken from the fix, so that they match the clock used for
+        // locations that are delivered immediately.
+        long now = System.currentTimeMillis();
+        long nowNanos = SystemClock.elapsedRealtimeNanos();
+        List<LocationFix> fixes = new ArrayList<>(locations.size());
+        for (Location location : locations) {
+            long age = (nowNanos - location.getElapsedRealtimeNanos()) / TimeUtils.NANOS_PER_MILLI;
+            LocationFix fix = toFix(location, accuracy, now - Math.max(0L, age));
+            if (fix != null) fixes.add(fix);
+        }
+        Log.v("Submitting %s of %s batched location update(s) for upload", fixes.size(), locations.size()); //NON-NLS
+        this.dispatcher.submit(fixes);
     }
 
     /**
-     * Coarse location provider implementation (network-based location).
+     * Passes a location update through the location filter and dead reckoning predictor.
+     *
+     * @param location The location received from the location source.
+     * @param accuracy The provider the location was received from.
+     * @param time     The time the location was obtained, in milliseconds since the Unix epoch.
+     * @return A fix to upload, or null if the location should not be uploaded.
      */
-    private final class CoarseLocationListener extends LocationListenerBase {
-        @Override
-        public void onLocationChanged(Location location) {
-            if (!LocationPushService.this.hasRunCoarseTask) {
-                // Notify the main activity that coarse GPS data is now being received,
-                // such that the UI can be updated.
-                LocationPushService.this.hasRunCoarseTask = true;
-                LocationPushService.this.gnssActiveTask.onCoarseLocationReceived();
-            }
-            Log.v("Location was received on coarse location provider"); //NON-NLS
-            LocationPushService.this.onLocationChanged(location, LocationProvider.COARSE);
+    @Nullable
+    private LocationFix toFix(Location location, LocationProvider accuracy, long time) {
+        LocationFix fix;
+        if (this.filter == null) {
+            fix = new LocationFix(location, accuracy, time);
+        } else if (this.filter.update(time, location.getLatitude(), location.getLongitude(), location.hasAccuracy() ? location.getAccuracy() : 0.0F)) {
+            fix = new LocationFix(
+                    this.filter.getLatitude(), this.filter.getLongitude(), time, accuracy,
+                    location.hasSpeed(), location.getSpeed(),
+                    true, this.filter.getAccuracy(),
+                    location.hasBearing(), location.getBearing()
+            );
+        } else {
+            Log.v("Location update was rejected as an outlier by %s", this.filter); //NON-NLS
+            return null;
         }
-
-        @Override
-        boolean request(LocationManager manager) throws SecurityException {
-            Log.i("Requesting location updates from device location services"); //NON-NLS
-            try {
-                manager.requestLocationUpdates(
-                        LocationManager.NETWORK_PROVIDER,
-                        LocationPushService.this.share.getSession().getIntervalMillis(),
-                        LocationPushService.this.share.getSession().getMinimumDistance(),
-                        this
-                );
-                return true;
-            } catch (IllegalArgumentException ex) {
-                Log.w("Coarse location provider does not exist!", ex); //NON-NLS
-                return false;
-            }
+        if (this.predictor != null && !this.predictor.shouldSend(fix)) {
+            Log.v("Location update is within the dead reckoning error bound; not uploading"); //NON-NLS
+            return null;
         }
+        return fix;
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     /**
-     * Fine location provider implementation (GNSS-based location).
+     * Receives location updates from the location source, notifies upstream about location
+     * provider state changes and applies the distance filter and adaptive update interval to fine
+     * location updates.
      */
-    private final class FineLocationListener extends LocationListenerBase {
-        private final Handler noGnssTimer;
-        private final PreferenceManager prefs;
+    private final class SourceCallback implements LocationSource.Callback {
         private Location locationOfLastUpdate;
-        private float minDistance;
+        private final float minDistance;
 
-        private FineLocationListener() {
-            this.noGnssTimer = new Handler();
-            this.prefs = new PreferenceManager(LocationPushService.this);
+        /**
+         * Detects the motion state of the device if the update interval is adaptive, or null if
+         * location updates are always requested at the session's interval.
+         */
+        private final MotionStateDetector motion;
+
+        /**
+         * The last fine location received, used to estimate the speed of the device.
+         */
+        private Location lastLocation;
+
+        private SourceCallback(PreferenceManager prefs) {
             this.locationOfLastUpdate = null;
             this.minDistance = LocationPushService.this.share.getSession().getMinimumDistance();
+
+            if (prefs.get(Constants.PREF_ADAPTIVE_INTERVAL)) {
+                this.motion = new MotionStateDetector(LocationPushService.this.share.getSession().getIntervalMillis(), prefs.get(Constants.PREF_ADAPTIVE_MAX_INTERVAL) * TimeUtils.MILLIS_PER_SECOND);
+                LocationPushService.this.dispatcher.setReportedInterval(LocationPushService.this.share.getSession().getIntervalSeconds());
+            } else {
+                this.motion = null;
+            }
         }
 
         @Override
-        public void onLocationChanged(Location location) {
-            if (LocationPushService.this.listenCoarse != null) {
-                // Unregister the coarse location listener, since we are now receiving
-                // accurate location data.
-                Log.i("Accurate location found; removing updates from coarse location provider"); //NON-NLS
-                LocationPushService.this.locMan.removeUpdates(LocationPushService.this.listenCoarse);
-                LocationPushService.this.listenCoarse = null;
+        public void onLocationChanged(Location location, LocationProvider provider) {
+            if (provider == LocationProvider.COARSE) {
+                if (!LocationPushService.this.hasRunCoarseTask) {
+                    // Notify the main activity that coarse GPS data is now being received,
+                    // such that the UI can be updated.
+                    LocationPushService.this.hasRunCoarseTask = true;
+                    LocationPushService.this.gnssActiveTask.onCoarseLocationReceived();
+                }
+                LocationPushService.this.onLocationChanged(location, provider);
+                return;
+            }
+
+            onAccurateLocationReceived();
+            if (accept(location)) LocationPushService.this.onLocationChanged(location, provider);
+        }
+
+        @Override
+        public void onLocationsChanged(List<Location> locations, LocationProvider provider) {
+            if (provider == LocationProvider.COARSE) {
+                for (Location location : locations) onLocationChanged(location, provider);
+                return;
+            }
+
+            onAccurateLocationReceived();
+            List<Location> accepted = new ArrayList<>(locations.size());
+            for (Location location : locations) {
+                if (accept(location)) accepted.add(location);
             }
+            if (!accepted.isEmpty()) LocationPushService.this.onLocationsChanged(accepted, provider);
+        }
+
+        private void onAccurateLocationReceived() {
             if (!LocationPushService.this.hasRunAccurateTask) {
                 // Notify the main activity that accurate GPS data is now being
                 // received, such that the UI can be updated.
                 LocationPushService.this.hasRunAccurateTask = true;
                 LocationPushService.this.gnssActiveTask.onAccurateLocationReceived();
             }
-            Log.v("Location was received on fine location provider"); //NON-NLS
+        }
 
-            // Set a timeout for the location updates to detect if the provider stops working. If
-            // that happens, fall back to the coarse location provider.
-            this.noGnssTimer.removeCallbacksAndMessages(null);
-            this.noGnssTimer.postDelayed(new CoarseLocationFallbackTask(), LocationPushService.this.share.getSession().getIntervalMillis() + this.prefs.get(Constants.PREF_NO_GNSS_FALLBACK) * TimeUtils.MILLIS_PER_SECOND);
+        /**
+         * Updates the motion state with a fine location and checks it against the distance filter.
+         *
+         * @param location The location received from the fine location provider.
+         * @return true if the location should be uploaded, false otherwise.
+         */
+        private boolean accept(Location location) {
+            if (this.motion != null) updateMotionState(location);
 
             // Only update the location if it is more than the minimum distance specified in
             // settings. Done manually rather than delegating to
@@ -258,53 +479,64 @@ public final class LocationPushService extends Service {
             if (this.locationOfLastUpdate == null || distance >= this.minDistance) {
                 Log.v("Received distance %s, more than minimum distance %s", distance, this.minDistance); //NON-NLS
                 this.locationOfLastUpdate = location;
-                LocationPushService.this.onLocationChanged(location, LocationProvider.FINE);
+                return true;
             } else {
                 Log.v("Received distance %s, less than minimum distance %s", distance, this.minDistance); //NON-NLS
+                return false;
             }
         }
 
-        /**
-         * Should be called when the session is stopped and updates removed from this listener. This
-         * prevents the timeout from activating after the session has been stopped.
-         */
-        private void onStopped() {
-            this.noGnssTimer.removeCallbacksAndMessages(false);
+        @Override
+        public void onFineLocationLost() {
+            LocationPushService.this.gnssActiveTask.onCoarseRebound();
+            LocationPushService.this.hasRunCoarseTask = false;
+            LocationPushService.this.hasRunAccurateTask = false;
+            LocationPushService.this.hasRunIdleTask = false;
         }
 
         @Override
-        boolean request(LocationManager manager) throws SecurityException {
-            manager.requestLocationUpdates(
-                    LocationManager.GPS_PROVIDER,
-                    LocationPushService.this.share.getSession().getIntervalMillis(),
-                    0.0F, // See https://github.com/bilde2910/Hauk/issues/124
-                    this
-            );
-            return true;
+        public void onFineLocationIdle() {
+            if (!LocationPushService.this.hasRunIdleTask) {
+                LocationPushService.this.hasRunIdleTask = true;
+                LocationPushService.this.gnssActiveTask.onFineLocationIdle();
+            }
         }
 
-        private final class CoarseLocationFallbackTask implements Runnable {
-            @Override
-            public void run() {
-                // No location updates have been received for the timeout period. Rebind the coarse
-                // location listener while we wait for the fine listener to become functional again.
-                Log.w("Location fix lost. Rebinding coarse location provider."); //NON-NLS
-                LocationPushService.this.gnssActiveTask.onCoarseRebound();
-                LocationPushService.this.hasRunCoarseTask = false;
-                LocationPushService.this.hasRunAccurateTask = false;
-                LocationPushService.this.listenCoarse = new CoarseLocationListener();
-                if (!LocationPushService.this.listenCoarse.request(LocationPushService.this.locMan)) {
-                    LocationPushService.this.listenCoarse = null;
-                }
+        /**
+         * Updates the motion state of the device with the given location, and requests location
+         * updates at a new interval if the state change calls for it. The new interval is reported
+         * to the backend with the following uploads.
+         *
+         * @param location The location received from the fine location provider.
+         */
+        private void updateMotionState(Location location) {
+            float displacement = -1.0F;
+            float accuracy = 0.0F;
+            if (this.lastLocation != null) {
+                displacement = this.lastLocation.distanceTo(location);
+                if (location.hasAccuracy()) accuracy += location.getAccuracy();
+                if (this.lastLocation.hasAccuracy()) accuracy += this.lastLocation.getAccuracy();
             }
-        }
-    }
+            this.lastLocation = location;
+
+            if (!this.motion.onFix(location.getTime(), displacement, accuracy, location.hasSpeed() ? location.getSpeed() : -1.0F)) return;
 
-    private final class LocationUpdatePacketImpl extends LocationUpdatePacket {
-        private LocationUpdatePacketImpl(Location location, LocationProvider accuracy) {
-            super(LocationPushService.this, LocationPushService.this.share.getSession(), location, accuracy);
+            long intervalMillis = this.motion.getIntervalMillis();
+            Log.i("Motion state changed: %s; requesting location updates every %s ms", this.motion, intervalMillis); //NON-NLS
+            try {
+                LocationPushService.this.source.setInterval(intervalMillis);
+                LocationPushService.this.dispatcher.setReportedInterval((int) (intervalMillis / TimeUtils.MILLIS_PER_SECOND));
+            } catch (SecurityException ex) {
+                Log.e("Location permission was revoked; could not change update interval", ex); //NON-NLS
+            }
         }
+    }
 
+    /**
+     * Handles the results of location uploads and notifies upstream about changes in connectivity
+     * to the backend.
+     */
+    private final class UploadResponseHandler implements UploadDispatcher.ResponseHandler {
         @Override
         public void onShareListReceived(String linkFormat, String[] shares) {
             Log.v("Received list of shares from server"); //NON-NLS
@@ -312,19 +544,23 @@ public final class LocationPushService extends Service {
         }
 
         @Override
-        protected void onSuccess(String[] data, Version backendVersion) throws ServerException {
-            // Check if connection was lost previously, and notify upstream if that's the case.
-            if (!LocationPushService.this.connected) {
-                LocationPushService.this.connected = true;
-                Log.i("Connection to the backend was restored."); //NON-NLS
-                LocationPushService.this.gnssActiveTask.onServerConnectionRestored();
-            }
-            super.onSuccess(data, backendVersion);
+        public void onSuccess() {
         }
 
         @Override
-        protected void onFailure(Exception ex) {
+        public void onFixesSent(List<LocationFix> fixes) {
+            // Viewers extrapolate from the newest fix they receive, so the predictor must too.
+            DeadReckoningPredictor predictor = LocationPushService.this.predictor;
+            if (predictor != null) predictor.onSent(fixes.get(fixes.size() - 1));
+        }
+
+        @Override
+        public void onFailure(Exception ex) {
             Log.w("Failed to push location update to server", ex); //NON-NLS
+        }
+
+        @Override
+        public void onServerConnectionLost() {
             // Notify upstream about connectivity loss.
             if (LocationPushService.this.connected) {
                 LocationPushService.this.connected = false;
@@ -332,5 +568,15 @@ public final class LocationPushService extends Service {
                 LocationPushService.this.gnssActiveTask.onServerConnectionLost();
             }
         }
+
+        @Override
+        public void onServerConnectionRestored() {
+            // Check if connection was lost previously, and notify upstream if that's the case.
+            if (!LocationPushService.this.connected) {
+                LocationPushService.this.connected = true;
+                Log.i("Connection to the backend was restored."); //NON-NLS
+                LocationPushService.this.gnssActiveTask.onServerConnectionRestored();
+            }
+        }
     }
 }
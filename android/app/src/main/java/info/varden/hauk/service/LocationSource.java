@@ -0,0 +1,79 @@
+package info.varden.hauk.service;
+
+import android.location.Location;
+import android.os.Looper;
+
+import java.util.List;
+
+import info.varden.hauk.http.parameter.LocationProvider;
+
+/**
+ * A source of location updates for {@link LocationPushService}. The service uses
+ * {@link DeviceLocationSource} to receive locations from the device's location services, but can
+ * also be fed a recorded track through {@link ReplayLocationSource}, e.g. to test uploads without
+ * GNSS hardware.
+ *
+ * @author Marius Lindvall
+ */
+public interface LocationSource {
+    /**
+     * Starts delivering location updates.
+     *
+     * @param looper   The looper that callbacks should be delivered on.
+     * @param callback The callback that receives location updates.
+     * @return true if location updates will be delivered, false otherwise.
+     * @throws SecurityException if location permission has not been granted.
+     */
+    boolean start(Looper looper, Callback callback) throws SecurityException;
+
+    /**
+     * Changes the interval that fine location updates are requested at. Sources that deliver
+     * locations at a fixed rate may ignore this. Must be called on the looper passed to
+     * {@link #start(Looper, Callback)}.
+     *
+     * @param intervalMillis The new interval, in milliseconds.
+     * @throws SecurityException if location permission has been revoked.
+     */
+    void setInterval(long intervalMillis) throws SecurityException;
+
+    /**
+     * Stops delivering location updates. May be called from any thread; once this returns, no
+     * further location updates are requested from the device.
+     */
+    void stop();
+
+    /**
+     * Receives location updates from a {@link LocationSource}. All callbacks are run on the looper
+     * passed to {@link #start(Looper, Callback)}.
+     */
+    interface Callback {
+        /**
+         * Called when a location update is received.
+         *
+         * @param location The location.
+         * @param provider Whether the location came from the fine or the coarse provider.
+         */
+        void onLocationChanged(Location location, LocationProvider provider);
+
+        /**
+         * Called when several location updates are delivered at once, e.g. when they have been
+         * batched by the location hardware.
+         *
+         * @param locations The locations, oldest first.
+         * @param provider  Whether the locations came from the fine or the coarse provider.
+         */
+        void onLocationsChanged(List<Location> locations, LocationProvider provider);
+
+        /**
+         * Called when fine location updates have stopped arriving and the source has fallen back to
+         * coarse location updates until fine location updates resume.
+         */
+        void onFineLocationLost();
+
+        /**
+         * Called when the source has turned off the fine location provider after delivering a
+         * location update, and will turn it back on when the next update is due.
+         */
+        void onFineLocationIdle();
+    }
+}
@@ -0,0 +1,161 @@
+package info.varden.hauk.service;
+
+/**
+ * Classifies the device as stationary, walking or driving from the speed and displacement of
+ * successive location fixes, and derives the location update interval to use in each state. Fixes
+ * are requested at the session's interval while driving, less often while walking, and at the
+ * user's maximum interval while stationary, which saves both GNSS time and uploads during long
+ * stationary periods.
+ *
+ * The speed is smoothed over several fixes to avoid reacting to GNSS noise. The device is
+ * considered to have started moving as soon as the smoothed speed says so, so that no movement is
+ * missed, but it must be classified as slower for several fixes in a row before the interval is
+ * increased.
+ *
+ * @author Marius Lindvall
+ */
+final class MotionStateDetector {
+    /**
+     * The motion states the device can be in, from slowest to fastest.
+     */
+    enum State {
+        STATIONARY,
+        WALKING,
+        DRIVING
+    }
+
+    /**
+     * Speeds, in meters per second, at or above which the device is considered to be walking and
+     * driving, respectively.
+     */
+    private static final float WALKING_SPEED = 0.5F;
+    private static final float DRIVING_SPEED = 3.0F;
+
+    /**
+     * The weight of a new speed sample in the smoothed speed.
+     */
+    private static final float SMOOTHING_FACTOR = 0.4F;
+
+    /**
+     * The number of consecutive fixes that must be classified as slower than the current state
+     * before the device is considered to have slowed down.
+     */
+    private static final int SLOWDOWN_FIXES = 3;
+
+    /**
+     * The factor the session interval is multiplied with while walking.
+     */
+    private static final int WALKING_INTERVAL_FACTOR = 2;
+
+    private final long baseInterval;
+    private final long maxInterval;
+
+    private State state = State.DRIVING;
+    private State candidate = null;
+    private int candidateCount = 0;
+
+    private float smoothedSpeed = -1.0F;
+    private long lastTime = 0;
+
+    /**
+     * Creates a detector. The device is assumed to be moving until fixes show otherwise.
+     *
+     * @param baseInterval The update interval of the session, in milliseconds.
+     * @param maxInterval  The longest update interval to use, in milliseconds.
+     */
+    MotionStateDetector(long baseInterval, long maxInterval) {
+        this.baseInterval = baseInterval;
+        this.maxInterval = Math.max(baseInterval, maxInterval);
+    }
+
+    @Override
+    public String toString() {
+        return "MotionStateDetector{state=" + this.state
+                + ",smoothedSpeed=" + this.smoothedSpeed
+                + ",interval=" + getIntervalMillis()
+                + "}";
+    }
+
+    /**
+     * Updates the motion state with a new location fix.
+     *
+     * @param time         The time the fix was obtained, in milliseconds.
+     * @param displacement The distance from the previous fix in meters, or a negative value if
+     *                     there is no previous fix.
+     * @param accuracy     The combined accuracy radius of this and the previous fix in meters, or 0
+     *                     if unknown. Displacement within this radius is treated as noise.
+     * @param speed        The speed reported by the location provider in meters per second, or a
+     *                     negative value if the provider does not report speed.
+     * @return true if the update interval changed as a result of this fix.
+     */
+    boolean onFix(long time, float displacement, float accuracy, float speed) {
+        float sample = speed;
+        if (sample < 0.0F) {
+            // Estimate the speed from the displacement since the previous fix.
+            long elapsed = time - this.lastTime;
+            if (displacement < 0.0F || this.lastTime <= 0 || elapsed <= 0) {
+                this.lastTime = time;
+                return false;
+            }
+            sample = Math.max(0.0F, displacement - accuracy) * 1000.0F / elapsed;
+        }
+        this.lastTime = time;
+
+        this.smoothedSpeed = this.smoothedSpeed < 0.0F ? sample : this.smoothedSpeed + SMOOTHING_FACTOR * (sample - this.smoothedSpeed);
+        return setState(classify(this.smoothedSpeed));
+    }
+
+    /**
+     * Returns the current motion state.
+     */
+    State getState() {
+        return this.state;
+    }
+
+    /**
+     * Returns the update interval to use in the current motion state, in milliseconds.
+     */
+    long getIntervalMillis() {
+        switch (this.state) {
+            case STATIONARY:
+                return this.maxInterval;
+            case WALKING:
+                return Math.min(this.maxInterval, this.baseInterval * WALKING_INTERVAL_FACTOR);
+            default:
+                return this.baseInterval;
+        }
+    }
+
+    private static State classify(float speed) {
+        if (speed >= DRIVING_SPEED) return State.DRIVING;
+        if (speed >= WALKING_SPEED) return State.WALKING;
+        return State.STATIONARY;
+    }
+
+    /**
+     * Moves to the given state, immediately if it is faster than the current state, or after it
+     * has been observed for enough consecutive fixes if it is slower.
+     *
+     * @return true if the update interval changed.
+     */
+    private boolean setState(State observed) {
+        if (observed == this.state) {
+            this.candidate = null;
+            this.candidateCount = 0;
+            return false;
+        }
+        if (observed.compareTo(this.state) < 0) {
+            if (observed != this.candidate) {
+                this.candidate = observed;
+                this.candidateCount = 0;
+            }
+            if (++this.candidateCount < SLOWDOWN_FIXES) return false;
+        }
+
+        long previousInterval = getIntervalMillis();
+        this.state = observed;
+        this.candidate = null;
+        this.candidateCount = 0;
+        return getIntervalMillis() != previousInterval;
+    }
+}
@@ -1,44 +1,101 @@
 package info.varden.hauk.service;
 
+import android.os.Handler;
+import android.os.Looper;
+
 /**
  * Proxy class that forwards GNSS activity events to multiple upstream {@link GNSSActiveHandler}s.
+ * Events may be raised on the location processing thread; they are always delivered to the
+ * upstream handlers on the main thread, as the upstream handlers update the UI.
  *
  * @author Marius Lindvall
  */
 final class MultiTargetGNSSHandlerProxy implements GNSSActiveHandler {
     private final GNSSActiveHandler[] upstream;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     MultiTargetGNSSHandlerProxy(GNSSActiveHandler... upstream) {
         this.upstream = upstream.clone();
     }
 
+    /**
+     * Runs the given task on the main thread; immediately if already called from it.
+     */
+    private void onMainThread(Runnable task) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            task.run();
+        } else {
+            this.mainHandler.post(task);
+        }
+    }
+
     @Override
     public void onCoarseRebound() {
-        for (GNSSActiveHandler up : this.upstream) up.onCoarseRebound();
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                for (GNSSActiveHandler up : MultiTargetGNSSHandlerProxy.this.upstream) up.onCoarseRebound();
+            }
+        });
     }
 
     @Override
     public void onCoarseLocationReceived() {
-        for (GNSSActiveHandler up : this.upstream) up.onCoarseLocationReceived();
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                for (GNSSActiveHandler up : MultiTargetGNSSHandlerProxy.this.upstream) up.onCoarseLocationReceived();
+            }
+        });
     }
 
     @Override
     public void onAccurateLocationReceived() {
-        for (GNSSActiveHandler up : this.upstream) up.onAccurateLocationReceived();
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                for (GNSSActiveHandler up : MultiTargetGNSSHandlerProxy.this.upstream) up.onAccurateLocationReceived();
+            }
+        });
+    }
+
+    @Override
+    public void onFineLocationIdle() {
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                for (GNSSActiveHandler up : MultiTargetGNSSHandlerProxy.this.upstream) up.onFineLocationIdle();
+            }
+        });
     }
 
     @Override
     public void onServerConnectionLost() {
-        for (GNSSActiveHandler up : this.upstream) up.onServerConnectionLost();
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                for (GNSSActiveHandler up : MultiTargetGNSSHandlerProxy.this.upstream) up.onServerConnectionLost();
+            }
+        });
     }
 
     @Override
     public void onServerConnectionRestored() {
-        for (GNSSActiveHandler up : this.upstream) up.onServerConnectionRestored();
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                for (GNSSActiveHandler up : MultiTargetGNSSHandlerProxy.this.upstream) up.onServerConnectionRestored();
+            }
+        });
     }
 
     @Override
-    public void onShareListReceived(String linkFormat, String[] shareIDs) {
-        for (GNSSActiveHandler up : this.upstream) up.onShareListReceived(linkFormat, shareIDs);
+    public void onShareListReceived(final String linkFormat, final String[] shareIDs) {
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                for (GNSSActiveHandler up : MultiTargetGNSSHandlerProxy.this.upstream) up.onShareListReceived(linkFormat, shareIDs);
+            }
+        });
     }
 }
@@ -0,0 +1,128 @@
+package info.varden.hauk.service;
+
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import info.varden.hauk.struct.LocationFix;
+import info.varden.hauk.utils.Log;
+
+/**
+ * Location source that replays a recorded track instead of using the device's location services.
+ * The track is read by {@link TrackParser} and its points are delivered with the same spacing in
+ * time as when they were recorded, divided by a speed factor, so that a long drive can be replayed
+ * in a few minutes. Points are stamped with the current time when they are delivered. This allows
+ * upload, batching and filtering behavior to be tested deterministically, without GNSS hardware.
+ *
+ * @author Marius Lindvall
+ */
+final class ReplayLocationSource implements LocationSource {
+    private final File track;
+    private final float speed;
+
+    private Handler handler;
+    private Callback callback;
+    private List<LocationFix> points;
+    private int next = 0;
+
+    /**
+     * Creates a source that replays a track.
+     *
+     * @param track The GPX, NMEA or CSV file to replay.
+     * @param speed The factor to speed up the replay by. If zero or negative, points are delivered
+     *              as fast as they can be processed.
+     */
+    ReplayLocationSource(File track, float speed) {
+        this.track = track;
+        this.speed = speed;
+    }
+
+    @Override
+    public String toString() {
+        return "ReplayLocationSource{track=" + this.track
+                + ",speed=" + this.speed
+                + ",delivered=" + this.next
+                + ",total=" + (this.points == null ? "null" : String.valueOf(this.points.size()))
+                + "}";
+    }
+
+    @Override
+    public boolean start(Looper looper, Callback callback) {
+        this.callback = callback;
+        try (Reader in = new InputStreamReader(new FileInputStream(this.track), StandardCharsets.UTF_8)) {
+            this.points = TrackParser.parse(in);
+        } catch (IOException ex) {
+            Log.e("Could not read replay track %s", ex, this.track); //NON-NLS
+            return false;
+        }
+        if (this.points.isEmpty()) {
+            Log.e("Replay track %s contains no points", this.track); //NON-NLS
+            return false;
+        }
+
+        Log.i("Replaying %s point(s) from %s at %sx speed", this.points.size(), this.track, this.speed); //NON-NLS
+        this.handler = new Handler(looper);
+        this.handler.post(new DeliveryTask());
+        return true;
+    }
+
+    @Override
+    public void setInterval(long intervalMillis) {
+        // Points are delivered at the rate they were recorded.
+        Log.v("Ignoring interval change to %s ms for replayed track", intervalMillis); //NON-NLS
+    }
+
+    @Override
+    public void stop() {
+        if (this.handler != null) this.handler.removeCallbacksAndMessages(null);
+        Log.i("Stopped replay: %s", this); //NON-NLS
+    }
+
+    /**
+     * Converts a track point into a location, as if it had been received now.
+     */
+    private static Location toLocation(LocationFix point) {
+        Location location = new Location(LocationManager.GPS_PROVIDER);
+        location.setLatitude(point.getLatitude());
+        location.setLongitude(point.getLongitude());
+        location.setTime(System.currentTimeMillis());
+        location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+        if (point.hasSpeed()) location.setSpeed(point.getSpeed());
+        if (point.hasBearing()) location.setBearing(point.getBearing());
+        if (point.hasAccuracy()) location.setAccuracy(point.getAccuracy());
+        return location;
+    }
+
+    /**
+     * Delivers the next point of the track and schedules delivery of the one after it.
+     */
+    private final class DeliveryTask implements Runnable {
+        @Override
+        public void run() {
+            List<LocationFix> points = ReplayLocationSource.this.points;
+            int index = ReplayLocationSource.this.next++;
+            LocationFix point = points.get(index);
+            ReplayLocationSource.this.callback.onLocationChanged(toLocation(point), point.getProvider());
+
+            if (index + 1 >= points.size()) {
+                Log.i("Replay finished: %s", ReplayLocationSource.this); //NON-NLS
+                return;
+            }
+            long delay = 0;
+            if (ReplayLocationSource.this.speed > 0.0F) {
+                delay = Math.max(0L, (long) ((points.get(index + 1).getTimestamp() - point.getTimestamp()) / ReplayLocationSource.this.speed));
+            }
+            ReplayLocationSource.this.handler.postDelayed(this, delay);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package info.varden.hauk.service;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import info.varden.hauk.http.parameter.LocationProvider;
+import info.varden.hauk.struct.LocationFix;
+import info.varden.hauk.utils.TimeUtils;
+
+/**
+ * Reads recorded tracks for {@link ReplayLocationSource}. Three formats are supported, and detected
+ * from the contents of the track:
+ * <ul>
+ *     <li>GPX, using the {@code trkpt} elements of all tracks and their {@code time} element, and
+ *     the {@code speed} and {@code course} elements written by some GPX 1.0 loggers.</li>
+ *     <li>NMEA 0183, using {@code RMC} sentences from any talker. Sentences with an invalid
+ *     checksum or without a valid fix are skipped.</li>
+ *     <li>CSV, with the columns time (seconds since the Unix epoch), latitude, longitude and
+ *     optionally speed (m/s), bearing (degrees) and accuracy (meters). Lines that do not start
+ *     with a number, such as headers and comments, are skipped.</li>
+ * </ul>
+ *
+ * @author Marius Lindvall
+ */
+final class TrackParser {
+    private static final double KNOTS_TO_MPS = 1852.0 / 3600.0;
+
+    @SuppressWarnings("HardCodedStringLiteral")
+    private static final Pattern ISO_8601 = Pattern.compile("(\\d{4})-(\\d{2})-(\\d{2})T(\\d{2}):(\\d{2}):(\\d{2})(\\.\\d+)?(Z|([+-])(\\d{2}):?(\\d{2}))?");
+
+    private TrackParser() {
+    }
+
+    /**
+     * Reads all points of a track, in the order they appear.
+     *
+     * @param in A reader for the track.
+     * @return The points of the track as fine location fixes, with the times they were recorded.
+     * @throws IOException if the track could not be read or is not in a supported format.
+     */
+    static List<LocationFix> parse(Reader in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[8192];
+        int read;
+        while ((read = in.read(buf)) != -1) sb.append(buf, 0, read);
+        String track = sb.toString().trim();
+
+        if (track.startsWith("<")) return parseGPX(track);
+        if (track.startsWith("$")) return parseNMEA(track);
+        return parseCSV(track);
+    }
+
+    private static List<LocationFix> parseGPX(String track) throws IOException {
+        GPXHandler handler = new GPXHandler();
+        try {
+            SAXParserFactory.newInstance().newSAXParser().parse(new InputSource(new StringReader(track)), handler);
+        } catch (ParserConfigurationException | SAXException ex) {
+            throw new IOException("Malformed GPX track", ex); //NON-NLS
+        }
+        return handler.points;
+    }
+
+    private static List<LocationFix> parseNMEA(String track) throws IOException {
+        List<LocationFix> points = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new StringReader(track));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (!line.startsWith("$") || !hasValidChecksum(line)) continue;
+            int checksum = line.indexOf('*');
+            String[] fields = (checksum >= 0 ? line.substring(1, checksum) : line.substring(1)).split(",", -1);
+
+            // $xxRMC,hhmmss.ss,status,lat,N/S,lon,E/W,speed (knots),course,ddmmyy,...
+            if (fields.length < 10 || !fields[0].endsWith("RMC") || !"A".equals(fields[2])) continue;
+            try {
+                long time = parseNMEATime(fields[9], fields[1]);
+                double lat = parseNMEACoordinate(fields[3], 2, "S".equals(fields[4]));
+                double lon = parseNMEACoordinate(fields[5], 3, "W".equals(fields[6]));
+                boolean hasSpeed = !fields[7].isEmpty();
+                boolean hasBearing = !fields[8].isEmpty();
+                points.add(new LocationFix(lat, lon, time, LocationProvider.FINE,
+                        hasSpeed, hasSpeed ? (float) (Double.parseDouble(fields[7]) * KNOTS_TO_MPS) : 0.0F,
+                        false, 0.0F,
+                        hasBearing, hasBearing ? Float.parseFloat(fields[8]) : 0.0F
+                ));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException ex) {
+                // Skip sentences with malformed fields.
+            }
+        }
+        return points;
+    }
+
+    private static List<LocationFix> parseCSV(String track) throws IOException {
+        List<LocationFix> points = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new StringReader(track));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.trim().split("\\s*[,;\\t]\\s*", -1);
+            if (fields.length < 3 || fields[0].isEmpty() || !(Character.isDigit(fields[0].charAt(0)) || fields[0].charAt(0) == '.')) continue;
+            try {
+                long time = Math.round(Double.parseDouble(fields[0]) * TimeUtils.MILLIS_PER_SECOND);
+                boolean hasSpeed = fields.length > 3 && !fields[3].isEmpty();
+                boolean hasBearing = fields.length > 4 && !fields[4].isEmpty();
+                boolean hasAccuracy = fields.length > 5 && !fields[5].isEmpty();
+                points.add(new LocationFix(
+                        Double.parseDouble(fields[1]), Double.parseDouble(fields[2]), time, LocationProvider.FINE,
+                        hasSpeed, hasSpeed ? Float.parseFloat(fields[3]) : 0.0F,
+                        hasAccuracy, hasAccuracy ? Float.parseFloat(fields[5]) : 0.0F,
+                        hasBearing, hasBearing ? Float.parseFloat(fields[4]) : 0.0F
+                ));
+            } catch (NumberFormatException ex) {
+                throw new IOException("Malformed CSV track line: " + line, ex); //NON-NLS
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Checks the XOR checksum of an NMEA sentence, if it has one.
+     */
+    private static boolean hasValidChecksum(String sentence) {
+        int star = sentence.indexOf('*');
+        if (star < 0) return true;
+        int sum = 0;
+        for (int i = 1; i < star; i++) sum ^= sentence.charAt(i);
+        try {
+            return Integer.parseInt(sentence.substring(star + 1).trim(), 16) == sum;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Converts an NMEA coordinate in the form (d)ddmm.mmmm to degrees.
+     */
+    private static double parseNMEACoordinate(String value, int degreeDigits, boolean negative) {
+        double degrees = Integer.parseInt(value.substring(0, degreeDigits)) + Double.parseDouble(value.substring(degreeDigits)) / 60.0;
+        return negative ? -degrees : degrees;
+    }
+
+    /**
+     * Converts an NMEA date (ddmmyy) and UTC time (hhmmss.ss) to milliseconds since the Unix epoch.
+     */
+    private static long parseNMEATime(String date, String time) {
+        // NMEA only has two-digit years; GPS time starts in 1980.
+        int year = Integer.parseInt(date.substring(4, 6));
+        year += year < 80 ? 2000 : 1900;
+
+        Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"), Locale.US); //NON-NLS
+        cal.clear();
+        cal.set(year, Integer.parseInt(date.substring(2, 4)) - 1, Integer.parseInt(date.substring(0, 2)),
+                Integer.parseInt(time.substring(0, 2)), Integer.parseInt(time.substring(2, 4)), Integer.parseInt(time.substring(4, 6)));
+        long millis = time.length() > 6 ? Math.round(Double.parseDouble(time.substring(6)) * TimeUtils.MILLIS_PER_SECOND) : 0;
+        return cal.getTimeInMillis() + millis;
+    }
+
+    /**
+     * Converts an ISO 8601 timestamp, as used in GPX, to milliseconds since the Unix epoch.
+     * Timestamps without a time zone are treated as UTC.
+     *
+     * @throws SAXException if the timestamp is malformed.
+     */
+    private static long parseISO8601(String value) throws SAXException {
+        Matcher m = ISO_8601.matcher(value.trim());
+        if (!m.matches()) throw new SAXException("Malformed GPX timestamp " + value); //NON-NLS
+
+        Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"), Locale.US); //NON-NLS
+        cal.clear();
+        cal.set(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)) - 1, Integer.parseInt(m.group(3)),
+                Integer.parseInt(m.group(4)), Integer.parseInt(m.group(5)), Integer.parseInt(m.group(6)));
+        long millis = cal.getTimeInMillis();
+        if (m.group(7) != null) millis += Math.round(Double.parseDouble(m.group(7)) * TimeUtils.MILLIS_PER_SECOND);
+        if (m.group(9) != null) {
+            long offset = (Integer.parseInt(m.group(10)) * 60L + Integer.parseInt(m.group(11))) * 60L * TimeUtils.MILLIS_PER_SECOND;
+            millis -= "-".equals(m.group(9)) ? -offset : offset;
+        }
+        return millis;
+    }
+
+    /**
+     * Collects the track points of a GPX document.
+     */
+    @SuppressWarnings("HardCodedStringLiteral")
+    private static final class GPXHandler extends DefaultHandler {
+        private final List<LocationFix> points = new ArrayList<>();
+        private final StringBuilder text = new StringBuilder();
+
+        private boolean inPoint = false;
+        private double lat;
+        private double lon;
+        private long time;
+        private Float speed;
+        private Float course;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            this.text.setLength(0);
+            if ("trkpt".equals(name(localName, qName))) {
+                try {
+                    this.lat = Double.parseDouble(attributes.getValue("lat"));
+                    this.lon = Double.parseDouble(attributes.getValue("lon"));
+                } catch (NullPointerException | NumberFormatException ex) {
+                    throw new SAXException("GPX track point without valid coordinates"); //NON-NLS
+                }
+                this.inPoint = true;
+                this.time = -1;
+                this.speed = null;
+                this.course = null;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            this.text.append(ch, start, length);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (!this.inPoint) return;
+            String name = name(localName, qName);
+            try {
+                switch (name) {
+                    case "time":
+                        this.time = parseISO8601(this.text.toString());
+                        break;
+                    case "speed":
+                        this.speed = Float.parseFloat(this.text.toString().trim());
+                        break;
+                    case "course":
+                        this.course = Float.parseFloat(this.text.toString().trim());
+                        break;
+                    case "trkpt":
+                        this.inPoint = false;
+                        if (this.time < 0) throw new SAXException("GPX track point without time"); //NON-NLS
+                        this.points.add(new LocationFix(this.lat, this.lon, this.time, LocationProvider.FINE,
+                                this.speed != null, this.speed != null ? this.speed : 0.0F,
+                                false, 0.0F,
+                                this.course != null, this.course != null ? this.course : 0.0F
+                        ));
+                        break;
+                    default:
+                        break;
+                }
+            } catch (NumberFormatException ex) {
+                throw new SAXException("Malformed GPX element " + name); //NON-NLS
+            }
+        }
+
+        /**
+         * Returns the name of an element without its namespace prefix.
+         */
+        private static String name(String localName, String qName) {
+            String name = localName == null || localName.isEmpty() ? qName : localName;
+            int colon = name.indexOf(':');
+            return colon >= 0 ? name.substring(colon + 1) : name;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package info.varden.hauk.service.filter;
+
+import info.varden.hauk.utils.TimeUtils;
+
+/**
+ * A constant-velocity Kalman filter for location measurements. The state consists of the position
+ * and velocity along the north and east axes, with the position kept in degrees and the velocity
+ * and all variances in meters, measured in a local flat projection around the current estimate.
+ * Both axes use the same measurement and process noise, so they share a single 2x2 covariance
+ * matrix, and the filter state fits in a handful of primitive fields.
+ *
+ * Measurements are weighted by their reported accuracy, so a coarse network location barely moves
+ * an estimate that is based on GNSS fixes. A measurement whose distance from the predicted position
+ * is implausible given the combined uncertainty of the prediction and the measurement is rejected.
+ * If several measurements in a row are rejected, the device has most likely really moved, e.g.
+ * after leaving a tunnel, and the filter restarts from the newest measurement.
+ *
+ * @author Marius Lindvall
+ */
+public final class KalmanLocationFilter implements LocationFilter {
+    /**
+     * Mean radius of the Earth, in meters.
+     */
+    private static final double EARTH_RADIUS = 6371000.0;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180.0;
+
+    /**
+     * Variance of the acceleration of the device, in (m/s^2)^2. Models how far the device can
+     * deviate from moving at a constant velocity.
+     */
+    private static final double ACCELERATION_VARIANCE = 9.0;
+
+    /**
+     * Variance of the velocity before any movement has been observed, in (m/s)^2.
+     */
+    private static final double INITIAL_VELOCITY_VARIANCE = 900.0;
+
+    /**
+     * Accuracy radius, in meters, assumed for measurements that do not report their accuracy.
+     */
+    private static final float DEFAULT_ACCURACY = 50.0F;
+
+    /**
+     * Threshold for the squared normalized distance between a measurement and the prediction.
+     * Noise alone exceeds this with a probability of about 3e-7, which leaves room for sharp turns
+     * that the constant-velocity model does not predict.
+     */
+    private static final double GATE_THRESHOLD = 30.0;
+
+    /**
+     * The number of consecutive rejected measurements after which the filter is restarted.
+     */
+    private static final int MAX_CONSECUTIVE_REJECTIONS = 3;
+
+    private boolean initialized = false;
+    private long lastTime;
+
+    // Estimated position in degrees, and velocity in meters per second.
+    private double latitude;
+    private double longitude;
+    private double velocityNorth;
+    private double velocityEast;
+
+    // Covariance of position and velocity along each axis, in meters and meters per second.
+    private double positionVariance;
+    private double covariance;
+    private double velocityVariance;
+
+    private int rejections = 0;
+
+    @Override
+    public String toString() {
+        return "KalmanLocationFilter{initialized=" + this.initialized
+                + ",latitude=" + this.latitude
+                + ",longitude=" + this.longitude
+                + ",velocityNorth=" + this.velocityNorth
+                + ",velocityEast=" + this.velocityEast
+                + ",accuracy=" + getAccuracy()
+                + ",rejections=" + this.rejections
+                + "}";
+    }
+
+    @Override
+    public boolean update(long time, double latitude, double longitude, float accuracy) {
+        double variance = accuracy > 0.0F ? (double) accuracy * accuracy : (double) DEFAULT_ACCURACY * DEFAULT_ACCURACY;
+        if (!this.initialized) {
+            start(time, latitude, longitude, variance);
+            return true;
+        }
+
+        predict(time);
+
+        // Distance between the measurement and the prediction along each axis, in meters.
+        double metersPerDegreeEast = METERS_PER_DEGREE * Math.cos(Math.toRadians(this.latitude));
+        double innovationNorth = (latitude - this.latitude) * METERS_PER_DEGREE;
+        double innovationEast = wrapLongitude(longitude - this.longitude) * metersPerDegreeEast;
+        double innovationVariance = this.positionVariance + variance;
+
+        // Reject measurements that are too far away to be explained by noise.
+        double distance = (innovationNorth * innovationNorth + innovationEast * innovationEast) / innovationVariance;
+        if (distance > GATE_THRESHOLD) {
+            if (++this.rejections < MAX_CONSECUTIVE_REJECTIONS) return false;
+            start(time, latitude, longitude, variance);
+            return true;
+        }
+        this.rejections = 0;
+
+        double positionGain = this.positionVariance / innovationVariance;
+        double velocityGain = this.covariance / innovationVariance;
+
+        this.latitude += positionGain * innovationNorth / METERS_PER_DEGREE;
+        this.longitude = wrapLongitude(this.longitude + positionGain * innovationEast / metersPerDegreeEast);
+        this.velocityNorth += velocityGain * innovationNorth;
+        this.velocityEast += velocityGain * innovationEast;
+
+        this.velocityVariance -= velocityGain * this.covariance;
+        this.positionVariance *= 1.0 - positionGain;
+        this.covariance *= 1.0 - positionGain;
+        return true;
+    }
+
+    @Override
+    public double getLatitude() {
+        return this.latitude;
+    }
+
+    @Override
+    public double getLongitude() {
+        return this.longitude;
+    }
+
+    @Override
+    public float getAccuracy() {
+        return (float) Math.sqrt(this.positionVariance);
+    }
+
+    @Override
+    public void reset() {
+        this.initialized = false;
+        this.rejections = 0;
+    }
+
+    /**
+     * Starts estimating from the given measurement, with an unknown velocity.
+     */
+    private void start(long time, double latitude, double longitude, double variance) {
+        this.initialized = true;
+        this.lastTime = time;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.velocityNorth = 0.0;
+        this.velocityEast = 0.0;
+        this.positionVariance = variance;
+        this.covariance = 0.0;
+        this.velocityVariance = INITIAL_VELOCITY_VARIANCE;
+        this.rejections = 0;
+    }
+
+    /**
+     * Moves the estimate forward to the given time, assuming constant velocity.
+     */
+    private void predict(long time) {
+        double dt = (time - this.lastTime) / (double) TimeUtils.MILLIS_PER_SECOND;
+        if (dt <= 0.0) return;
+        this.lastTime = time;
+
+        this.latitude += this.velocityNorth * dt / METERS_PER_DEGREE;
+        this.longitude = wrapLongitude(this.longitude + this.velocityEast * dt / (METERS_PER_DEGREE * Math.cos(Math.toRadians(this.latitude))));
+
+        double dt2 = dt * dt;
+        this.positionVariance += dt * (2.0 * this.covariance + dt * this.velocityVariance) + ACCELERATION_VARIANCE * dt2 * dt2 / 4.0;
+        this.covariance += dt * this.velocityVariance + ACCELERATION_VARIANCE * dt2 * dt / 2.0;
+        this.velocityVariance += ACCELERATION_VARIANCE * dt2;
+    }
+
+    /**
+     * Wraps a longitude or longitude difference into the range [-180, 180).
+     */
+    private static double wrapLongitude(double degrees) {
+        if (degrees >= -180.0 && degrees < 180.0) return degrees;
+        return ((degrees + 180.0) % 360.0 + 360.0) % 360.0 - 180.0;
+    }
+}
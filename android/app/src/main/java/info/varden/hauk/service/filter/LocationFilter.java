@@ -0,0 +1,44 @@
+package info.varden.hauk.service.filter;
+
+/**
+ * A stage between the location listeners and the upload dispatcher that smooths location
+ * measurements and rejects measurements that are inconsistent with previous ones. Filters keep
+ * their estimate in primitive fields so that processing a measurement does not allocate.
+ *
+ * @author Marius Lindvall
+ */
+public interface LocationFilter {
+    /**
+     * Processes a new location measurement. If it is accepted, the filtered position is available
+     * from {@link #getLatitude()}, {@link #getLongitude()} and {@link #getAccuracy()} until the next
+     * call.
+     *
+     * @param time      The time the measurement was obtained, in milliseconds.
+     * @param latitude  The measured latitude, in degrees.
+     * @param longitude The measured longitude, in degrees.
+     * @param accuracy  The accuracy radius of the measurement in meters, or 0 if unknown.
+     * @return true if the measurement was accepted; false if it was rejected as an outlier and
+     * should not be uploaded.
+     */
+    boolean update(long time, double latitude, double longitude, float accuracy);
+
+    /**
+     * Returns the filtered latitude, in degrees.
+     */
+    double getLatitude();
+
+    /**
+     * Returns the filtered longitude, in degrees.
+     */
+    double getLongitude();
+
+    /**
+     * Returns the estimated accuracy radius of the filtered position, in meters.
+     */
+    float getAccuracy();
+
+    /**
+     * Discards the current estimate, so that the next measurement is accepted as is.
+     */
+    void reset();
+}
@@ -0,0 +1,42 @@
+package info.varden.hauk.service.filter;
+
+import info.varden.hauk.system.preferences.IndexedEnum;
+
+/**
+ * An enum representing the {@link LocationFilter} that location updates are passed through before
+ * they are uploaded, and their ID when stored in preferences.
+ *
+ * @author Marius Lindvall
+ */
+public final class LocationFilterMode extends IndexedEnum<LocationFilterMode> {
+    private static final long serialVersionUID = -4386512371035841470L;
+
+    /**
+     * Location updates are uploaded as received.
+     */
+    public static final LocationFilterMode NONE = new LocationFilterMode(0);
+
+    /**
+     * Location updates are smoothed and outliers rejected by a {@link KalmanLocationFilter}.
+     */
+    public static final LocationFilterMode KALMAN = new LocationFilterMode(1);
+
+    private LocationFilterMode(int index) {
+        super(index);
+    }
+
+    /**
+     * Creates a filter for this mode.
+     *
+     * @return A new filter, or null if location updates should not be filtered.
+     */
+    public LocationFilter createFilter() {
+        if (equals(KALMAN)) return new KalmanLocationFilter();
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "LocationFilterMode{" + super.toString() + "}";
+    }
+}
@@ -1,6 +1,8 @@
 package info.varden.hauk.struct;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
@@ -10,16 +12,34 @@ import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import info.varden.hauk.Constants;
+import info.varden.hauk.system.security.EncryptedData;
+import info.varden.hauk.system.security.EncryptionException;
+import info.varden.hauk.system.security.KeyStoreAlias;
+import info.varden.hauk.system.security.KeyStoreHelper;
+import info.varden.hauk.utils.EnvelopeCipher;
+import info.varden.hauk.utils.Log;
 import info.varden.hauk.utils.StringUtils;
+import info.varden.hauk.utils.TLVReader;
+import info.varden.hauk.utils.TLVWriter;
+import info.varden.hauk.utils.TimeUtils;
 
 /**
  * Serializable key spec that stores a password and salt for deriving a secret AES key spec.
  *
+ * Deriving the key is deliberately slow. Once derived, the key is wrapped using a key in the
+ * Android key store and serialized along with this object, so that a resumed session can unwrap
+ * the key instead of deriving it again.
+ *
  * @author Marius Lindvall
  */
 public final class KeyDerivable implements Serializable {
     private static final long serialVersionUID = -4298542521894801298L;
 
+    // Field tags for the binary representation.
+    private static final int FIELD_SALT = 1;
+    private static final int FIELD_PASSWORD = 2;
+    private static final int FIELD_WRAPPED_KEY = 3;
+
     /**
      * Salt used in PBKDF2 for key derivation.
      */
@@ -37,6 +57,25 @@ public final class KeyDerivable implements Serializable {
     @SuppressWarnings("FieldNotUsedInToString")
     private transient SecretKeySpec keySpec = null;
 
+    /**
+     * The derived key, encrypted with {@link KeyStoreAlias#E2E_KEY}. Null if the key has not been
+     * derived yet or could not be wrapped.
+     */
+    @SuppressWarnings("FieldNotUsedInToString")
+    private EncryptedData wrappedKey = null;
+
+    /**
+     * The time it took to derive the key, in milliseconds, or -1 if it has not been derived in
+     * this process.
+     */
+    private transient long derivationTime = -1;
+
+    /**
+     * Cached cipher for sealing location records with the derived key.
+     */
+    @SuppressWarnings("FieldNotUsedInToString")
+    private transient EnvelopeCipher envelopeCipher = null;
+
     public KeyDerivable(String password, byte[] salt) {
         this.password = password;
         this.salt = salt.clone();
@@ -49,22 +88,101 @@ public final class KeyDerivable implements Serializable {
      * @throws InvalidKeySpecException if the key spec doesn't exist.
      * @throws NoSuchAlgorithmException if the algorithm doesn't exist.
      */
-    public SecretKeySpec deriveSpec() throws InvalidKeySpecException, NoSuchAlgorithmException {
+    public synchronized SecretKeySpec deriveSpec() throws InvalidKeySpecException, NoSuchAlgorithmException {
+        if (this.keySpec == null && this.wrappedKey != null) {
+            // The key was derived previously, e.g. before the session was resumed. Unwrap it.
+            try {
+                this.keySpec = new SecretKeySpec(new KeyStoreHelper(KeyStoreAlias.E2E_KEY).decryptBytes(this.wrappedKey), Constants.E2E_KEY_SPEC);
+                Log.i("Restored end-to-end encryption key from key store"); //NON-NLS
+            } catch (EncryptionException e) {
+                Log.w("Could not unwrap end-to-end encryption key; deriving it again", e); //NON-NLS
+                this.wrappedKey = null;
+            }
+        }
         if (this.keySpec == null) {
             // E2E encryption is used, but the key spec hasn't been cached yet. Generate and cache
             // it, then return the spec.
+            long start = System.nanoTime();
             KeySpec ks = new PBEKeySpec(this.password.toCharArray(), this.salt, Constants.E2E_PBKDF2_ITERATIONS, Constants.E2E_AES_KEY_SIZE);
             SecretKeyFactory kf = SecretKeyFactory.getInstance(Constants.E2E_KD_FUNCTION);
             byte[] key = kf.generateSecret(ks).getEncoded();
             this.keySpec = new SecretKeySpec(key, Constants.E2E_KEY_SPEC);
+            this.derivationTime = (System.nanoTime() - start) / TimeUtils.NANOS_PER_MILLI;
+            Log.i("Derived end-to-end encryption key in %s ms", this.derivationTime); //NON-NLS
+
+            try {
+                this.wrappedKey = new KeyStoreHelper(KeyStoreAlias.E2E_KEY).encryptBytes(key);
+            } catch (EncryptionException e) {
+                Log.w("Could not wrap end-to-end encryption key for resumption", e); //NON-NLS
+            }
         }
         return this.keySpec;
     }
 
+    /**
+     * Returns the time it took to derive the key in this process, in milliseconds, or -1 if the
+     * key has not been derived, or was unwrapped from the key store instead.
+     */
+    public synchronized long getDerivationTime() {
+        return this.derivationTime;
+    }
+
+    /**
+     * Returns a cipher that seals records with the key derived from this derivable key.
+     *
+     * @throws GeneralSecurityException if the key could not be derived or the cipher could not be
+     *                                  created.
+     */
+    public synchronized EnvelopeCipher getEnvelopeCipher() throws GeneralSecurityException {
+        if (this.envelopeCipher == null) this.envelopeCipher = new EnvelopeCipher(deriveSpec());
+        return this.envelopeCipher;
+    }
+
+    /**
+     * Writes the key derivation parameters, and the wrapped key if it has been derived, in a binary
+     * representation that can be read by {@link #readFrom}.
+     */
+    public synchronized TLVWriter writeTo(TLVWriter out) {
+        out.putBytes(FIELD_SALT, this.salt).putString(FIELD_PASSWORD, this.password);
+        if (this.wrappedKey != null) out.putRecord(FIELD_WRAPPED_KEY, this.wrappedKey.writeTo(new TLVWriter()));
+        return out;
+    }
+
+    /**
+     * Reads key derivation parameters written by {@link #writeTo}.
+     *
+     * @throws IOException if the record is malformed or incomplete.
+     */
+    public static KeyDerivable readFrom(TLVReader in) throws IOException {
+        byte[] salt = null;
+        String password = null;
+        EncryptedData wrappedKey = null;
+        while (in.next()) {
+            switch (in.getTag()) {
+                case FIELD_SALT:
+                    salt = in.getBytes();
+                    break;
+                case FIELD_PASSWORD:
+                    password = in.getString();
+                    break;
+                case FIELD_WRAPPED_KEY:
+                    wrappedKey = EncryptedData.readFrom(in.getRecord());
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (salt == null || password == null) throw new IOException("Incomplete key derivation record"); //NON-NLS
+        KeyDerivable params = new KeyDerivable(password, salt);
+        params.wrappedKey = wrappedKey;
+        return params;
+    }
+
     @Override
     public String toString() {
         return "KeyDerivable{password=<hidden>"
                 + ",salt=0x" + StringUtils.bytesToHex(this.salt)
+                + ",derivationTime=" + this.derivationTime
                 + "}";
     }
 }
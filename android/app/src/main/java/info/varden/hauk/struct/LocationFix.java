@@ -0,0 +1,143 @@
+package info.varden.hauk.struct;
+
+import android.location.Location;
+
+import info.varden.hauk.http.parameter.LocationProvider;
+
+/**
+ * A single location fix that is waiting to be uploaded to the backend. Fixes are decoupled from
+ * Android's {@link Location} so that they can be queued, batched and stored without keeping
+ * references to the location objects handed out by the location manager.
+ *
+ * @author Marius Lindvall
+ */
+public final class LocationFix {
+    /**
+     * The latitude of the fix, in degrees.
+     */
+    private final double latitude;
+
+    /**
+     * The longitude of the fix, in degrees.
+     */
+    private final double longitude;
+
+    /**
+     * The time at which the fix was obtained, in milliseconds since the Unix epoch.
+     */
+    private final long timestamp;
+
+    /**
+     * The location provider that produced this fix.
+     */
+    private final LocationProvider provider;
+
+    /**
+     * The speed of the device, in meters per second. Only valid if {@link #hasSpeed()}.
+     */
+    private final float speed;
+
+    /**
+     * The horizontal accuracy of the fix, in meters. Only valid if {@link #hasAccuracy()}.
+     */
+    private final float accuracy;
+
+    /**
+     * The direction of travel, in degrees clockwise from true north. Only valid if
+     * {@link #hasBearing()}.
+     */
+    private final float bearing;
+
+    private final boolean hasSpeed;
+    private final boolean hasAccuracy;
+    private final boolean hasBearing;
+
+    /**
+     * Creates a fix from a location received from the device's location services.
+     *
+     * @param location  The location received from the location manager.
+     * @param provider  The location provider that produced the location.
+     * @param timestamp The time at which the location was received, in milliseconds since the Unix
+     *                  epoch.
+     */
+    public LocationFix(Location location, LocationProvider provider, long timestamp) {
+        this(
+                location.getLatitude(),
+                location.getLongitude(),
+                timestamp,
+                provider,
+                location.hasSpeed(), location.getSpeed(),
+                location.hasAccuracy(), location.getAccuracy(),
+                location.hasBearing(), location.getBearing()
+        );
+    }
+
+    @SuppressWarnings("ConstructorWithTooManyParameters")
+    public LocationFix(double latitude, double longitude, long timestamp, LocationProvider provider, boolean hasSpeed, float speed, boolean hasAccuracy, float accuracy, boolean hasBearing, float bearing) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.timestamp = timestamp;
+        this.provider = provider;
+        this.hasSpeed = hasSpeed;
+        this.speed = speed;
+        this.hasAccuracy = hasAccuracy;
+        this.accuracy = accuracy;
+        this.hasBearing = hasBearing;
+        this.bearing = bearing;
+    }
+
+    @Override
+    public String toString() {
+        return "LocationFix{latitude=" + this.latitude
+                + ",longitude=" + this.longitude
+                + ",timestamp=" + this.timestamp
+                + ",provider=" + this.provider
+                + ",speed=" + (this.hasSpeed ? String.valueOf(this.speed) : "null")
+                + ",accuracy=" + (this.hasAccuracy ? String.valueOf(this.accuracy) : "null")
+                + ",bearing=" + (this.hasBearing ? String.valueOf(this.bearing) : "null")
+                + "}";
+    }
+
+    public double getLatitude() {
+        return this.latitude;
+    }
+
+    public double getLongitude() {
+        return this.longitude;
+    }
+
+    /**
+     * Returns the time at which the fix was obtained, in milliseconds since the Unix epoch.
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public LocationProvider getProvider() {
+        return this.provider;
+    }
+
+    public boolean hasSpeed() {
+        return this.hasSpeed;
+    }
+
+    public float getSpeed() {
+        return this.speed;
+    }
+
+    public boolean hasAccuracy() {
+        return this.hasAccuracy;
+    }
+
+    public float getAccuracy() {
+        return this.accuracy;
+    }
+
+    public boolean hasBearing() {
+        return this.hasBearing;
+    }
+
+    public float getBearing() {
+        return this.bearing;
+    }
+}
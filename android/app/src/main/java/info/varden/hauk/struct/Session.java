@@ -2,6 +2,7 @@ package info.varden.hauk.struct;
 
 import androidx.annotation.Nullable;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -9,6 +10,8 @@ import java.util.Locale;
 
 import info.varden.hauk.Constants;
 import info.varden.hauk.http.ConnectionParameters;
+import info.varden.hauk.utils.TLVReader;
+import info.varden.hauk.utils.TLVWriter;
 import info.varden.hauk.utils.TimeUtils;
 
 /**
@@ -19,6 +22,16 @@ import info.varden.hauk.utils.TimeUtils;
 public final class Session implements Serializable {
     private static final long serialVersionUID = 315568255735934584L;
 
+    // Field tags for the binary representation.
+    private static final int FIELD_SERVER_URL = 1;
+    private static final int FIELD_CONNECTION_PARAMETERS = 2;
+    private static final int FIELD_BACKEND_VERSION = 3;
+    private static final int FIELD_SESSION_ID = 4;
+    private static final int FIELD_EXPIRY = 5;
+    private static final int FIELD_INTERVAL = 6;
+    private static final int FIELD_MIN_DISTANCE = 7;
+    private static final int FIELD_E2E_PARAMS = 8;
+
     /**
      * The Hauk backend server base URL.
      */
@@ -73,6 +86,69 @@ public final class Session implements Serializable {
         this.connParams = connParams;
     }
 
+    /**
+     * Writes the session in a binary representation that can be read by {@link #readFrom}.
+     */
+    public TLVWriter writeTo(TLVWriter out) {
+        out.putString(FIELD_SERVER_URL, this.serverURL)
+                .putRecord(FIELD_CONNECTION_PARAMETERS, this.connParams.writeTo(new TLVWriter()))
+                .putString(FIELD_BACKEND_VERSION, this.backendVersion.toString())
+                .putString(FIELD_SESSION_ID, this.sessionID)
+                .putLong(FIELD_EXPIRY, this.expiry)
+                .putInt(FIELD_INTERVAL, this.interval)
+                .putFloat(FIELD_MIN_DISTANCE, this.minDistance);
+        if (this.e2eParams != null) out.putRecord(FIELD_E2E_PARAMS, this.e2eParams.writeTo(new TLVWriter()));
+        return out;
+    }
+
+    /**
+     * Reads a session written by {@link #writeTo}.
+     *
+     * @throws IOException if the record is malformed or incomplete.
+     */
+    public static Session readFrom(TLVReader in) throws IOException {
+        String serverURL = null;
+        ConnectionParameters connParams = null;
+        String backendVersion = null;
+        String sessionID = null;
+        long expiry = 0;
+        int interval = 0;
+        float minDistance = 0.0F;
+        KeyDerivable e2eParams = null;
+        while (in.next()) {
+            switch (in.getTag()) {
+                case FIELD_SERVER_URL:
+                    serverURL = in.getString();
+                    break;
+                case FIELD_CONNECTION_PARAMETERS:
+                    connParams = ConnectionParameters.readFrom(in.getRecord());
+                    break;
+                case FIELD_BACKEND_VERSION:
+                    backendVersion = in.getString();
+                    break;
+                case FIELD_SESSION_ID:
+                    sessionID = in.getString();
+                    break;
+                case FIELD_EXPIRY:
+                    expiry = in.getLong();
+                    break;
+                case FIELD_INTERVAL:
+                    interval = in.getInt();
+                    break;
+                case FIELD_MIN_DISTANCE:
+                    minDistance = in.getFloat();
+                    break;
+                case FIELD_E2E_PARAMS:
+                    e2eParams = KeyDerivable.readFrom(in.getRecord());
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (serverURL == null || connParams == null || sessionID == null) throw new IOException("Incomplete session record"); //NON-NLS
+        return new Session(serverURL, connParams, new Version(backendVersion), sessionID, expiry, interval, minDistance, e2eParams);
+    }
+
     @Override
     public String toString() {
         return "Session{serverURL=" + this.serverURL
@@ -1,7 +1,11 @@
 package info.varden.hauk.struct;
 
+import java.io.IOException;
 import java.io.Serializable;
 
+import info.varden.hauk.utils.TLVReader;
+import info.varden.hauk.utils.TLVWriter;
+
 /**
  * A data structure that contains parameters for a given share.
  *
@@ -10,6 +14,12 @@ import java.io.Serializable;
 public final class Share implements Serializable {
     private static final long serialVersionUID = -1922979390994061774L;
 
+    // Field tags for the binary representation.
+    private static final int FIELD_VIEW_URL = 1;
+    private static final int FIELD_VIEW_ID = 2;
+    private static final int FIELD_JOIN_CODE = 3;
+    private static final int FIELD_SHARE_MODE = 4;
+
     // The session is transient to avoid it being saved as duplicate when serialized by
     // ResumableSessions. Instead, the session is attached to each share when recreated using
     // setSession().
@@ -68,6 +78,55 @@ public final class Share implements Serializable {
         this.type = type;
     }
 
+    /**
+     * Writes the share in a binary representation that can be read by {@link #readFrom}. The
+     * session is not included.
+     */
+    public TLVWriter writeTo(TLVWriter out) {
+        return out.putString(FIELD_VIEW_URL, this.viewURL)
+                .putString(FIELD_VIEW_ID, this.viewID)
+                .putString(FIELD_JOIN_CODE, this.joinCode)
+                .putInt(FIELD_SHARE_MODE, this.type.getIndex());
+    }
+
+    /**
+     * Reads a share written by {@link #writeTo}.
+     *
+     * @param in      The record to read.
+     * @param session The session the share belongs to.
+     * @throws IOException if the record is malformed or incomplete.
+     */
+    public static Share readFrom(TLVReader in, Session session) throws IOException {
+        String viewURL = null;
+        String viewID = null;
+        String joinCode = null;
+        ShareMode type = null;
+        try {
+            while (in.next()) {
+                switch (in.getTag()) {
+                    case FIELD_VIEW_URL:
+                        viewURL = in.getString();
+                        break;
+                    case FIELD_VIEW_ID:
+                        viewID = in.getString();
+                        break;
+                    case FIELD_JOIN_CODE:
+                        joinCode = in.getString();
+                        break;
+                    case FIELD_SHARE_MODE:
+                        type = ShareMode.fromMode(in.getInt());
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (EnumConstantNotPresentException ex) {
+            throw new IOException("Unknown share mode in share record", ex); //NON-NLS
+        }
+        if (viewURL == null || viewID == null || type == null) throw new IOException("Incomplete share record"); //NON-NLS
+        return new Share(session, viewURL, viewID, joinCode, type);
+    }
+
     @Override
     public String toString() {
         return "Share{session=" + this.session
@@ -0,0 +1,78 @@
+package info.varden.hauk.system.launcher;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.widget.Toast;
+
+import androidx.core.content.FileProvider;
+import androidx.preference.Preference;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import info.varden.hauk.Constants;
+import info.varden.hauk.R;
+import info.varden.hauk.utils.DiagnosticLog;
+import info.varden.hauk.utils.Log;
+
+/**
+ * Listener that exports the diagnostic log through the share sheet on click. The log is too large
+ * to be passed in the intent itself, so it is written to a file in the cache directory and shared
+ * through a content URI.
+ *
+ * @author Marius Lindvall
+ */
+public final class ShareDiagnosticsListener implements Preference.OnPreferenceClickListener {
+    private final Context ctx;
+
+    /**
+     * Creates the click listener.
+     *
+     * @param ctx Android activity context.
+     */
+    public ShareDiagnosticsListener(Context ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public boolean onPreferenceClick(Preference preference) {
+        DiagnosticLog log = DiagnosticLog.getInstance();
+        Uri uri;
+        try {
+            uri = FileProvider.getUriForFile(this.ctx, this.ctx.getPackageName() + Constants.FILE_PROVIDER_AUTHORITY_SUFFIX, writeExport(log == null ? "" : log.export()));
+        } catch (IOException | IllegalArgumentException ex) {
+            Log.e("Could not export diagnostic log", ex); //NON-NLS
+            Toast.makeText(this.ctx, R.string.about_export_diagnostics_failed, Toast.LENGTH_LONG).show();
+            return false;
+        }
+
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/plain"); //NON-NLS
+        intent.putExtra(Intent.EXTRA_SUBJECT, this.ctx.getString(R.string.about_export_diagnostics_subject));
+        intent.putExtra(Intent.EXTRA_STREAM, uri);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        this.ctx.startActivity(Intent.createChooser(intent, this.ctx.getString(R.string.about_export_diagnostics_title)));
+        return false;
+    }
+
+    /**
+     * Writes the exported log to the cache directory, replacing any earlier export.
+     *
+     * @param contents The exported log.
+     * @return The file the log was written to.
+     * @throws IOException if the file could not be written.
+     */
+    private File writeExport(String contents) throws IOException {
+        File dir = new File(this.ctx.getCacheDir(), Constants.DIAGNOSTIC_EXPORT_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create directory " + dir); //NON-NLS
+        File file = new File(dir, Constants.DIAGNOSTIC_EXPORT_FILE_NAME);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(contents.getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+}
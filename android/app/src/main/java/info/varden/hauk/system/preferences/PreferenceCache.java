@@ -0,0 +1,155 @@
+package info.varden.hauk.system.preferences;
+
+import android.content.SharedPreferences;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import info.varden.hauk.utils.Log;
+
+/**
+ * Process-wide cache of preference values read through {@link PreferenceManager}. Encrypted
+ * preferences are decrypted through the Android key store on every uncached read, which is slow;
+ * with the cache, each preference is decrypted once and then served from memory until it changes.
+ *
+ * The cache listens for changes to the backing {@link SharedPreferences}, so values written from
+ * anywhere in the app (including the settings screen) invalidate the cached copy. Values written
+ * through {@link PreferenceManager} are written through to the cache directly.
+ *
+ * @author Marius Lindvall
+ */
+final class PreferenceCache implements SharedPreferences.OnSharedPreferenceChangeListener {
+    /**
+     * The cache for the connection preferences, or null if it has not been created yet. Also keeps
+     * the change listener strongly reachable, as {@link SharedPreferences} only holds a weak
+     * reference to it.
+     */
+    private static PreferenceCache instance = null;
+
+    /**
+     * Returns the process-wide cache for the given shared preferences, creating it if necessary.
+     *
+     * @param prefs The shared preferences to cache values from. There is a single instance of this
+     *              per preferences file in a process, so this is always the same object.
+     */
+    static synchronized PreferenceCache getInstance(SharedPreferences prefs) {
+        if (instance == null) {
+            instance = new PreferenceCache(prefs);
+            prefs.registerOnSharedPreferenceChangeListener(instance);
+        }
+        return instance;
+    }
+
+    private final SharedPreferences prefs;
+
+    /**
+     * Cached values by preference key.
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented whenever a value is invalidated, so that a value read from storage concurrently
+     * with an invalidation is not put back into the cache.
+     */
+    private long generation = 0;
+
+    private PreferenceCache(SharedPreferences prefs) {
+        this.prefs = prefs;
+    }
+
+    /**
+     * Returns the value of a preference, reading and decrypting it from storage only if it is not
+     * already cached.
+     *
+     * @param pair The preference to return the current value for.
+     * @param <T>  The type of preference to return.
+     */
+    <T> T get(Preference<T> pair) {
+        Entry entry = this.entries.get(pair.getKey());
+        if (entry != null) {
+            //noinspection unchecked
+            return (T) entry.value;
+        }
+
+        long readGeneration;
+        synchronized (this) {
+            readGeneration = this.generation;
+        }
+        T value = pair.get(this.prefs);
+        synchronized (this) {
+            if (readGeneration == this.generation) {
+                this.entries.put(pair.getKey(), new Entry(value, storedCiphertext(pair)));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Updates the cached value of a preference after it has been written to storage.
+     *
+     * @param pair  The preference that was written.
+     * @param value The new value of the preference.
+     * @param <T>   The type of the preference.
+     */
+    synchronized <T> void put(Preference<T> pair, T value) {
+        this.generation++;
+        this.entries.put(pair.getKey(), new Entry(value, storedCiphertext(pair)));
+    }
+
+    /**
+     * Removes a preference from the cache.
+     *
+     * @param key The key of the preference to remove.
+     */
+    synchronized void invalidate(String key) {
+        this.generation++;
+        this.entries.remove(key);
+    }
+
+    /**
+     * Returns the serialized ciphertext currently stored for an encrypted preference, or null if
+     * the preference is not encrypted. Used to recognize change notifications for values that were
+     * already written through to the cache.
+     */
+    private String storedCiphertext(Preference<?> pair) {
+        return pair instanceof Preference.EncryptedString ? this.prefs.getString(pair.getKey(), null) : null;
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (key == null) {
+            // All preferences were cleared.
+            Log.v("Preferences were cleared, invalidating preference cache"); //NON-NLS
+            synchronized (this) {
+                this.generation++;
+                this.entries.clear();
+            }
+            return;
+        }
+
+        synchronized (this) {
+            Entry entry = this.entries.get(key);
+            if (entry == null) return;
+
+            // Keep encrypted values that were written through PreferenceManager, as decrypting them
+            // again would give the value that is already cached.
+            if (entry.ciphertext != null && entry.ciphertext.equals(sharedPreferences.getString(key, null))) return;
+
+            Log.v("Preference %s changed, invalidating cached value", key); //NON-NLS
+            invalidate(key);
+        }
+    }
+
+    /**
+     * A cached preference value.
+     */
+    private static final class Entry {
+        private final Object value;
+        private final String ciphertext;
+
+        private Entry(Object value, String ciphertext) {
+            this.value = value;
+            this.ciphertext = ciphertext;
+        }
+    }
+}
@@ -7,15 +7,19 @@ import info.varden.hauk.Constants;
 import info.varden.hauk.utils.Log;
 
 /**
- * Utility class that manages connection preferences in Hauk.
+ * Utility class that manages connection preferences in Hauk. Values are served from a process-wide
+ * {@link PreferenceCache}, so creating many instances of this class is cheap, and encrypted
+ * preferences are only decrypted the first time they are read after they change.
  *
  * @author Marius Lindvall
  */
 public final class PreferenceManager {
     private final SharedPreferences prefs;
+    private final PreferenceCache cache;
 
     public PreferenceManager(Context ctx) {
         this.prefs = ctx.getSharedPreferences(Constants.SHARED_PREFS_CONNECTION, Context.MODE_PRIVATE);
+        this.cache = PreferenceCache.getInstance(this.prefs);
     }
 
     /**
@@ -28,7 +32,7 @@ public final class PreferenceManager {
      */
     public <T> T get(Preference<T> pair) {
         Log.v("Getting preference %s", pair); //NON-NLS
-        return pair.get(this.prefs);
+        return this.cache.get(pair);
     }
 
     /**
@@ -44,6 +48,7 @@ public final class PreferenceManager {
         SharedPreferences.Editor editor = this.prefs.edit();
         pair.set(editor, value);
         editor.apply();
+        this.cache.put(pair, value);
     }
 
     /**
@@ -68,5 +73,6 @@ public final class PreferenceManager {
         SharedPreferences.Editor editor = this.prefs.edit();
         pair.clear(editor);
         editor.apply();
+        this.cache.invalidate(pair.getKey());
     }
 }
@@ -15,6 +15,7 @@ import info.varden.hauk.BuildConfig;
 import info.varden.hauk.Constants;
 import info.varden.hauk.R;
 import info.varden.hauk.system.launcher.OpenLinkListener;
+import info.varden.hauk.system.launcher.ShareDiagnosticsListener;
 import info.varden.hauk.system.preferences.PreferenceHandler;
 import info.varden.hauk.system.preferences.ui.listener.CascadeBindListener;
 import info.varden.hauk.system.preferences.ui.listener.CascadeChangeListener;
@@ -70,6 +71,18 @@ public final class SettingsActivity extends AppCompatActivity {
             setTextEditParams(manager, Constants.PREF_E2E_PASSWORD, new InputTypeBindListener(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_PASSWORD));
             setTextEditParams(manager, Constants.PREF_INTERVAL, new InputTypeBindListener(InputType.TYPE_CLASS_NUMBER));
             setTextEditParams(manager, Constants.PREF_UPDATE_DISTANCE, new InputTypeBindListener(InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_DECIMAL));
+            setTextEditParams(manager, Constants.PREF_ADAPTIVE_MAX_INTERVAL, new InputTypeBindListener(InputType.TYPE_CLASS_NUMBER));
+            setTextEditParams(manager, Constants.PREF_GNSS_BATCH_DELAY, new InputTypeBindListener(InputType.TYPE_CLASS_NUMBER));
+            setTextEditParams(manager, Constants.PREF_GNSS_DUTY_CYCLE_ACCURACY, new InputTypeBindListener(InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_DECIMAL));
+            setTextEditParams(manager, Constants.PREF_REPLAY_TRACK, new InputTypeBindListener(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_URI), new HintBindListener(R.string.pref_replayTrack_hint));
+            setTextEditParams(manager, Constants.PREF_REPLAY_SPEED, new InputTypeBindListener(InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_DECIMAL));
+            setTextEditParams(manager, Constants.PREF_DEAD_RECKONING_ERROR, new InputTypeBindListener(InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_DECIMAL));
+            setTextEditParams(manager, Constants.PREF_DEAD_RECKONING_HEARTBEAT, new InputTypeBindListener(InputType.TYPE_CLASS_NUMBER));
+            setTextEditParams(manager, Constants.PREF_UPLOAD_QUEUE_SIZE, new InputTypeBindListener(InputType.TYPE_CLASS_NUMBER));
+            setTextEditParams(manager, Constants.PREF_UPLOAD_KEEP_NTH, new InputTypeBindListener(InputType.TYPE_CLASS_NUMBER));
+            setTextEditParams(manager, Constants.PREF_UPLOAD_BATCH_SIZE, new InputTypeBindListener(InputType.TYPE_CLASS_NUMBER));
+            setTextEditParams(manager, Constants.PREF_UPLOAD_BATCH_WINDOW, new InputTypeBindListener(InputType.TYPE_CLASS_NUMBER));
+            setTextEditParams(manager, Constants.PREF_UPLOAD_CELLULAR_BUDGET, new InputTypeBindListener(InputType.TYPE_CLASS_NUMBER));
             setTextEditParams(manager, Constants.PREF_CUSTOM_ID, new InputTypeBindListener(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_SHORT_MESSAGE), new HintBindListener(R.string.pref_requestLink_hint));
             setTextEditParams(manager, Constants.PREF_PROXY_HOST, new InputTypeBindListener(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_URI));
             setTextEditParams(manager, Constants.PREF_PROXY_PORT, new InputTypeBindListener(InputType.TYPE_CLASS_NUMBER));
@@ -78,6 +91,17 @@ public final class SettingsActivity extends AppCompatActivity {
             // Set value bounds checks.
             setChangeListeners(manager, Constants.PREF_INTERVAL, new IntegerBoundChangeListener(1, Integer.MAX_VALUE));
             setChangeListeners(manager, Constants.PREF_UPDATE_DISTANCE, new FloatBoundChangeListener(0.0F, Float.MAX_VALUE));
+            setChangeListeners(manager, Constants.PREF_ADAPTIVE_MAX_INTERVAL, new IntegerBoundChangeListener(1, Integer.MAX_VALUE));
+            setChangeListeners(manager, Constants.PREF_GNSS_BATCH_DELAY, new IntegerBoundChangeListener(0, Integer.MAX_VALUE));
+            setChangeListeners(manager, Constants.PREF_GNSS_DUTY_CYCLE_ACCURACY, new FloatBoundChangeListener(0.0F, Float.MAX_VALUE));
+            setChangeListeners(manager, Constants.PREF_REPLAY_SPEED, new FloatBoundChangeListener(0.0F, Float.MAX_VALUE));
+            setChangeListeners(manager, Constants.PREF_DEAD_RECKONING_ERROR, new FloatBoundChangeListener(0.0F, Float.MAX_VALUE));
+            setChangeListeners(manager, Constants.PREF_DEAD_RECKONING_HEARTBEAT, new IntegerBoundChangeListener(1, Integer.MAX_VALUE));
+            setChangeListeners(manager, Constants.PREF_UPLOAD_QUEUE_SIZE, new IntegerBoundChangeListener(1, Integer.MAX_VALUE));
+            setChangeListeners(manager, Constants.PREF_UPLOAD_KEEP_NTH, new IntegerBoundChangeListener(1, Integer.MAX_VALUE));
+            setChangeListeners(manager, Constants.PREF_UPLOAD_BATCH_SIZE, new IntegerBoundChangeListener(1, Integer.MAX_VALUE));
+            setChangeListeners(manager, Constants.PREF_UPLOAD_BATCH_WINDOW, new IntegerBoundChangeListener(0, Integer.MAX_VALUE));
+            setChangeListeners(manager, Constants.PREF_UPLOAD_CELLULAR_BUDGET, new IntegerBoundChangeListener(0, Integer.MAX_VALUE));
             setChangeListeners(manager, Constants.PREF_PROXY_PORT, new IntegerBoundChangeListener(Constants.PORT_MIN, Constants.PORT_MAX));
             setChangeListeners(manager, Constants.PREF_CONNECTION_TIMEOUT, new IntegerBoundChangeListener(1, Integer.MAX_VALUE));
 
@@ -89,12 +113,17 @@ public final class SettingsActivity extends AppCompatActivity {
             Preference proxyTypePref = manager.findPreference(Constants.PREF_PROXY_TYPE.getKey());
             if (proxyTypePref != null) proxyTypePref.callChangeListener(String.valueOf(prefs.get(Constants.PREF_PROXY_TYPE).getIndex()));
 
+            // Track replay is only available in debug builds.
+            manager.findPreference(Constants.PREF_REPLAY_TRACK.getKey()).setVisible(BuildConfig.DEBUG);
+            manager.findPreference(Constants.PREF_REPLAY_SPEED.getKey()).setVisible(BuildConfig.DEBUG);
+
             // Update night mode when its preference is changed.
             setChangeListeners(manager, Constants.PREF_NIGHT_MODE, new NightModeChangeListener());
 
             manager.findPreference("dummy_version").setSummary(BuildConfig.VERSION_NAME);
             manager.findPreference("dummy_sourceCode").setOnPreferenceClickListener(new OpenLinkListener(this.ctx, R.string.label_source_link));
             manager.findPreference("dummy_reportIssue").setOnPreferenceClickListener(new OpenLinkListener(this.ctx, R.string.link_issue_tracker));
+            manager.findPreference("dummy_exportDiagnostics").setOnPreferenceClickListener(new ShareDiagnosticsListener(this.ctx));
         }
 
         private static void setTextEditParams(PreferenceManager manager, info.varden.hauk.system.preferences.Preference<?> preference, EditTextPreference.OnBindEditTextListener... listeners) {
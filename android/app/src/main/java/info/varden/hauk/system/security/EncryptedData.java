@@ -1,7 +1,11 @@
 package info.varden.hauk.system.security;
 
+import java.io.IOException;
 import java.io.Serializable;
 
+import info.varden.hauk.utils.TLVReader;
+import info.varden.hauk.utils.TLVWriter;
+
 /**
  * Structure that contains encrypted data along with an initialization vector.
  *
@@ -10,6 +14,10 @@ import java.io.Serializable;
 public final class EncryptedData implements Serializable {
     private static final long serialVersionUID = -6247689274316948477L;
 
+    // Field tags for the binary representation.
+    private static final int FIELD_IV = 1;
+    private static final int FIELD_DATA = 2;
+
     private final byte[] iv;
     private final byte[] data;
 
@@ -31,4 +39,35 @@ public final class EncryptedData implements Serializable {
     byte[] getMessage() {
         return this.data.clone();
     }
+
+    /**
+     * Writes this instance in a binary representation that can be read by {@link #readFrom}.
+     */
+    public TLVWriter writeTo(TLVWriter out) {
+        return out.putBytes(FIELD_IV, this.iv).putBytes(FIELD_DATA, this.data);
+    }
+
+    /**
+     * Reads an instance written by {@link #writeTo}.
+     *
+     * @throws IOException if the record is malformed or incomplete.
+     */
+    public static EncryptedData readFrom(TLVReader in) throws IOException {
+        byte[] iv = null;
+        byte[] data = null;
+        while (in.next()) {
+            switch (in.getTag()) {
+                case FIELD_IV:
+                    iv = in.getBytes();
+                    break;
+                case FIELD_DATA:
+                    data = in.getBytes();
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (iv == null || data == null) throw new IOException("Incomplete encrypted data record"); //NON-NLS
+        return new EncryptedData(iv, data);
+    }
 }
@@ -10,7 +10,14 @@ public enum KeyStoreAlias {
      * Key store alias for use in encrypting and decrypting shared preferences.
      */
     @SuppressWarnings("HardCodedStringLiteral")
-    PREFERENCES("sharedPrefs");
+    PREFERENCES("sharedPrefs"),
+
+    /**
+     * Key store alias for use in wrapping derived end-to-end encryption keys, so that they do not
+     * have to be derived again when a session is resumed.
+     */
+    @SuppressWarnings("HardCodedStringLiteral")
+    E2E_KEY("e2eKeyWrap");
 
     /**
      * The alias of the key in the key store.
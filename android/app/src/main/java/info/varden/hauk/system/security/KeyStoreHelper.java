@@ -129,6 +129,28 @@ public final class KeyStoreHelper {
         return new String(decrypt(data), StandardCharsets.UTF_8);
     }
 
+    /**
+     * Encrypts the given binary data.
+     *
+     * @param data The data to encrypt.
+     * @return The encrypted data and IV.
+     * @throws EncryptionException if there was an error while encrypting.
+     */
+    public EncryptedData encryptBytes(byte[] data) throws EncryptionException {
+        return encrypt(data);
+    }
+
+    /**
+     * Decrypts the given binary data.
+     *
+     * @param data The data to decrypt.
+     * @return The cleartext data.
+     * @throws EncryptionException if there was an error while decrypting.
+     */
+    public byte[] decryptBytes(EncryptedData data) throws EncryptionException {
+        return decrypt(data);
+    }
+
     /**
      * Loads the Android key store.
      *
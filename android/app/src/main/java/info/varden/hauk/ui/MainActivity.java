@@ -48,6 +48,7 @@ import info.varden.hauk.ui.listener.AddLinkClickListener;
 import info.varden.hauk.ui.listener.InitiateAdoptionClickListener;
 import info.varden.hauk.ui.listener.SelectionModeChangedListener;
 import info.varden.hauk.utils.DeprecationMigrator;
+import info.varden.hauk.utils.DiagnosticLog;
 import info.varden.hauk.utils.Log;
 import info.varden.hauk.utils.TimeUtils;
 
@@ -99,6 +100,7 @@ public final class MainActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        DiagnosticLog.init(getApplicationContext());
 
         // Ensure that all deprecated preferences have been migrated before we continue.
         new DeprecationMigrator(this).migrate();
@@ -0,0 +1,340 @@
+package info.varden.hauk.utils;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import info.varden.hauk.Constants;
+
+/**
+ * Background sink for {@link Log} that keeps the most recent log messages in a fixed-size ring
+ * buffer on disk, so that they can be exported and attached to bug reports.
+ *
+ * Logging threads only add records to a lock-free queue; a dedicated writer thread writes them to
+ * logcat and appends them to the ring buffer. Errors are written to logcat by the logging thread
+ * itself, so that they are not lost if the app crashes before the writer gets to them. The ring
+ * buffer is a memory-mapped file, so writes are memory copies and survive the app being killed.
+ * Once the buffer is full, the oldest messages are overwritten. If the writer falls too far
+ * behind, new records below the error level are dropped and counted rather than letting the queue
+ * grow without bounds.
+ *
+ * @author Marius Lindvall
+ */
+public final class DiagnosticLog {
+    /**
+     * Identifies a diagnostic log file, and its format version.
+     */
+    private static final int MAGIC = 0x484B4C31; // "HKL1"
+
+    // Header layout.
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_SIZE = 4;
+    private static final int OFFSET_POSITION = 8;
+    private static final int OFFSET_WRAPPED = 12;
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * Maximum number of records waiting to be written before new records are dropped.
+     */
+    private static final int MAX_PENDING = 1024;
+
+    /**
+     * How long the writer thread sleeps when there is nothing to write if it is not woken up.
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    @SuppressWarnings("HardCodedStringLiteral")
+    private static final String WRITER_THREAD_NAME = "HaukLogWriter";
+
+    private static final char[] LEVEL_CHARS = {'V', 'D', 'I', 'W', 'E', 'A'};
+
+    /**
+     * The process-wide diagnostic log, or null if it has not been initialized.
+     */
+    private static DiagnosticLog instance = null;
+
+    private final Queue<Record> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread writer;
+
+    /**
+     * Whether the writer thread has no more records to write and is about to park.
+     */
+    private volatile boolean idle = false;
+
+    /**
+     * The memory mapping of the whole ring buffer file.
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * The size of the data region of the ring buffer.
+     */
+    private final int capacity;
+
+    /**
+     * Offset in the data region where the next message is written, and whether the ring buffer has
+     * wrapped around at least once. Mirrored in the header.
+     */
+    private int position;
+    private boolean wrapped;
+
+    /**
+     * Formats timestamps of records in the ring buffer. Only used by the writer thread.
+     */
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US); //NON-NLS
+    private final Date date = new Date();
+    private final StringBuilder line = new StringBuilder();
+
+    // Statistics.
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private volatile long maxLatency = 0;
+
+    /**
+     * Initializes the process-wide diagnostic log and routes all log messages through it. Calling
+     * this more than once has no effect.
+     *
+     * @param ctx Android application context.
+     */
+    public static synchronized void init(Context ctx) {
+        if (instance != null) return;
+        try {
+            instance = new DiagnosticLog(new File(ctx.getFilesDir(), Constants.DIAGNOSTIC_LOG_FILE_NAME), Constants.DIAGNOSTIC_LOG_SIZE);
+            Log.setSink(instance);
+        } catch (IOException ex) {
+            Log.e("Failed to open diagnostic log, logging to logcat only", ex); //NON-NLS
+        }
+    }
+
+    /**
+     * Returns the process-wide diagnostic log, or null if it has not been initialized.
+     */
+    public static synchronized DiagnosticLog getInstance() {
+        return instance;
+    }
+
+    /**
+     * Opens or creates a diagnostic log and starts its writer thread.
+     *
+     * @param path The ring buffer file.
+     * @param size The total size of the ring buffer file in bytes.
+     * @throws IOException if the file could not be opened or mapped.
+     */
+    private DiagnosticLog(File path, int size) throws IOException {
+        // The mapping stays valid after the file is closed.
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) { //NON-NLS
+            this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        this.capacity = size - HEADER_SIZE;
+
+        int storedPosition = this.buffer.getInt(OFFSET_POSITION);
+        if (this.buffer.getInt(OFFSET_MAGIC) == MAGIC && this.buffer.getInt(OFFSET_SIZE) == size && storedPosition >= 0 && storedPosition < this.capacity) {
+            // Keep the messages from previous runs; they are often the interesting ones.
+            this.position = storedPosition;
+            this.wrapped = this.buffer.getInt(OFFSET_WRAPPED) != 0;
+        } else {
+            this.buffer.putInt(OFFSET_MAGIC, MAGIC);
+            this.buffer.putInt(OFFSET_SIZE, size);
+            this.position = 0;
+            this.wrapped = false;
+            writePointers();
+        }
+
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, WRITER_THREAD_NAME);
+        this.writer.setDaemon(true);
+        this.writer.setPriority(Thread.MIN_PRIORITY);
+        this.writer.start();
+    }
+
+    @Override
+    public String toString() {
+        return "DiagnosticLog{written=" + this.writtenCount.get()
+                + ",dropped=" + this.droppedCount.get()
+                + ",pending=" + this.pending.get()
+                + ",avgLatencyUs=" + getAverageLatencyMicros()
+                + ",maxLatencyUs=" + TimeUnit.NANOSECONDS.toMicros(this.maxLatency)
+                + "}";
+    }
+
+    /**
+     * Hands a log record off to the writer thread. Called by {@link Log} on the logging thread;
+     * this does not block or perform any I/O. Errors are never dropped, as they are rare and
+     * usually the records that matter most.
+     *
+     * @param toLogcat Whether or not the writer thread should write the record to logcat, in
+     *                 addition to appending it to the ring buffer.
+     */
+    void enqueue(int priority, long time, String caller, String message, Throwable tr, boolean toLogcat) {
+        if (this.pending.incrementAndGet() > MAX_PENDING && priority < Log.ERROR) {
+            this.pending.decrementAndGet();
+            this.droppedCount.incrementAndGet();
+            return;
+        }
+        this.queue.offer(new Record(priority, time, Thread.currentThread().getName(), caller, message, tr, toLogcat));
+        if (this.idle) LockSupport.unpark(this.writer);
+    }
+
+    /**
+     * Main loop of the writer thread.
+     */
+    private void runWriter() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            Record record = this.queue.poll();
+            if (record == null) {
+                this.idle = true;
+                // Re-check after publishing the idle flag so that a concurrent enqueue is not missed.
+                if (this.queue.isEmpty()) LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                this.idle = false;
+                continue;
+            }
+            this.pending.decrementAndGet();
+
+            if (record.toLogcat) Log.write(record.priority, record.time, record.caller, record.message, record.tr);
+            append(record);
+
+            long latency = System.nanoTime() - record.enqueued;
+            this.totalLatency.addAndGet(latency);
+            if (latency > this.maxLatency) this.maxLatency = latency;
+            this.writtenCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Formats a record as one or more lines and appends it to the ring buffer.
+     */
+    private void append(Record record) {
+        this.date.setTime(record.time);
+        this.line.setLength(0);
+        this.line.append(this.dateFormat.format(this.date)).append(' ')
+                .append(levelChar(record.priority)).append(' ')
+                .append('[').append(record.thread).append("] ");
+        if (record.caller != null) this.line.append(record.caller).append(": ");
+        this.line.append(record.message).append('\n');
+        if (record.tr != null) this.line.append(android.util.Log.getStackTraceString(record.tr));
+
+        byte[] data = this.line.toString().getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            int offset = 0;
+            // A single record larger than the buffer only keeps its tail.
+            if (data.length > this.capacity) offset = data.length - this.capacity;
+            while (offset < data.length) {
+                int chunk = Math.min(data.length - offset, this.capacity - this.position);
+                for (int i = 0; i < chunk; i++) {
+                    this.buffer.put(HEADER_SIZE + this.position + i, data[offset + i]);
+                }
+                offset += chunk;
+                this.position += chunk;
+                if (this.position == this.capacity) {
+                    this.position = 0;
+                    this.wrapped = true;
+                }
+            }
+            writePointers();
+        }
+    }
+
+    private void writePointers() {
+        this.buffer.putInt(OFFSET_POSITION, this.position);
+        this.buffer.putInt(OFFSET_WRAPPED, this.wrapped ? 1 : 0);
+    }
+
+    private static char levelChar(int priority) {
+        int index = priority - Log.VERBOSE;
+        return index >= 0 && index < LEVEL_CHARS.length ? LEVEL_CHARS[index] : '?';
+    }
+
+    /**
+     * Returns the contents of the ring buffer, oldest message first, preceded by a summary of the
+     * logging statistics.
+     */
+    public String export() {
+        byte[] data;
+        boolean partial;
+        synchronized (this) {
+            partial = this.wrapped;
+            int start = this.wrapped ? this.position : 0;
+            int length = this.wrapped ? this.capacity : this.position;
+            data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = this.buffer.get(HEADER_SIZE + (start + i) % this.capacity);
+            }
+        }
+
+        // The oldest line is usually partially overwritten; skip ahead to the first whole line.
+        int from = 0;
+        if (partial) {
+            while (from < data.length && data[from] != '\n') from++;
+            from = Math.min(from + 1, data.length);
+        }
+        return "# " + this + '\n' + new String(data, from, data.length - from, StandardCharsets.UTF_8); //NON-NLS
+    }
+
+    /**
+     * Returns the number of records written to the ring buffer since the app was started.
+     */
+    public long getWrittenCount() {
+        return this.writtenCount.get();
+    }
+
+    /**
+     * Returns the number of records dropped because the writer thread could not keep up.
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    /**
+     * Returns the average time between a record being logged and written, in microseconds.
+     */
+    public long getAverageLatencyMicros() {
+        long written = this.writtenCount.get();
+        return written == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(this.totalLatency.get() / written);
+    }
+
+    /**
+     * A log message waiting to be written.
+     */
+    private static final class Record {
+        private final int priority;
+        private final long time;
+        private final long enqueued;
+        private final String thread;
+        private final String caller;
+        private final String message;
+        private final Throwable tr;
+        private final boolean toLogcat;
+
+        private Record(int priority, long time, String thread, String caller, String message, Throwable tr, boolean toLogcat) {
+            this.priority = priority;
+            this.time = time;
+            this.enqueued = System.nanoTime();
+            this.thread = thread;
+            this.caller = caller;
+            this.message = message;
+            this.tr = tr;
+            this.toLogcat = toLogcat;
+        }
+    }
+}
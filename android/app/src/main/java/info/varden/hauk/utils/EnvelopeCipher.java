@@ -0,0 +1,91 @@
+package info.varden.hauk.utils;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import info.varden.hauk.Constants;
+
+/**
+ * Authenticated encryption of end-to-end encrypted location records using AES-GCM. A single cipher
+ * instance is reused for all records encrypted with the same key.
+ *
+ * GCM must never reuse a nonce under the same key. Nonces are built from a random 8-byte prefix,
+ * chosen when the envelope cipher is created, followed by a 4-byte counter that is incremented for
+ * every record. A new random prefix is chosen if the counter wraps around.
+ *
+ * @author Marius Lindvall
+ */
+public final class EnvelopeCipher {
+    private static final int NONCE_PREFIX_SIZE = 8;
+    private static final int NONCE_SIZE = 12;
+    private static final long MAX_COUNTER = 0xFFFFFFFFL;
+
+    private final Cipher cipher;
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+    private final byte[] nonce = new byte[NONCE_SIZE];
+    private long counter;
+
+    /**
+     * Creates an envelope cipher for the given key.
+     *
+     * @param key The AES key to encrypt records with.
+     * @throws GeneralSecurityException if AES-GCM is not available.
+     */
+    public EnvelopeCipher(SecretKeySpec key) throws GeneralSecurityException {
+        this.cipher = Cipher.getInstance(Constants.E2E_ENVELOPE_TRANSFORMATION);
+        this.key = key;
+        newNoncePrefix();
+    }
+
+    private void newNoncePrefix() {
+        byte[] prefix = new byte[NONCE_PREFIX_SIZE];
+        this.random.nextBytes(prefix);
+        System.arraycopy(prefix, 0, this.nonce, 0, NONCE_PREFIX_SIZE);
+        this.counter = 0;
+    }
+
+    /**
+     * Encrypts and authenticates a record.
+     *
+     * @param plaintext The record to encrypt.
+     * @return The nonce and the ciphertext, including the authentication tag.
+     * @throws GeneralSecurityException if encryption fails.
+     */
+    public synchronized Sealed seal(byte[] plaintext) throws GeneralSecurityException {
+        if (this.counter > MAX_COUNTER) newNoncePrefix();
+        for (int i = 0; i < NONCE_SIZE - NONCE_PREFIX_SIZE; i++) {
+            this.nonce[NONCE_SIZE - 1 - i] = (byte) (this.counter >>> (8 * i));
+        }
+        this.counter++;
+
+        byte[] iv = this.nonce.clone();
+        this.cipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(Constants.E2E_ENVELOPE_TAG_SIZE, iv));
+        return new Sealed(iv, this.cipher.doFinal(plaintext));
+    }
+
+    /**
+     * An encrypted record.
+     */
+    public static final class Sealed {
+        private final byte[] iv;
+        private final byte[] ciphertext;
+
+        private Sealed(byte[] iv, byte[] ciphertext) {
+            this.iv = iv;
+            this.ciphertext = ciphertext;
+        }
+
+        public byte[] getIV() {
+            return this.iv.clone();
+        }
+
+        public byte[] getCiphertext() {
+            return this.ciphertext.clone();
+        }
+    }
+}
@@ -10,24 +10,114 @@ import info.varden.hauk.Constants;
 /**
  * Log wrapper to simplify logging in Hauk.
  *
+ * Messages below the current log level are discarded before any formatting takes place, so that
+ * suppressed verbose and debug calls on hot paths only cost a field read. Callers that build
+ * expensive arguments should additionally check {@link #isLoggable(int)} first. Looking up the
+ * calling class and line for the log prefix requires walking the stack, and is therefore only done
+ * in debug builds.
+ *
  * @author Marius Lindvall
  */
 @SuppressWarnings({"unused", "ClassWithTooManyMethods", "OverloadedVarargsMethod"})
 public enum Log {
     ;
-    private static final int STACK_DEPTH = 4;
+
+    // Log levels, in increasing order of severity. These match the priorities in android.util.Log.
+    public static final int VERBOSE = android.util.Log.VERBOSE;
+    public static final int DEBUG = android.util.Log.DEBUG;
+    public static final int INFO = android.util.Log.INFO;
+    public static final int WARN = android.util.Log.WARN;
+    public static final int ERROR = android.util.Log.ERROR;
+    public static final int ASSERT = android.util.Log.ASSERT;
+
+    /**
+     * The lowest level of messages that are logged.
+     */
+    private static volatile int level = BuildConfig.DEBUG ? VERBOSE : INFO;
+
+    /**
+     * Whether or not the calling class and line should be included in log messages.
+     */
+    private static final boolean CALLER_LOOKUP = BuildConfig.DEBUG;
+
+    /**
+     * A background sink that log records are handed off to, or null to log synchronously.
+     */
+    private static volatile DiagnosticLog sink = null;
+
+    /**
+     * Per-thread formatting state for log prefixes, reused between log calls.
+     */
+    private static final ThreadLocal<PrefixFormatter> PREFIX_FORMATTER = new ThreadLocal<PrefixFormatter>() {
+        @Override
+        protected PrefixFormatter initialValue() {
+            return new PrefixFormatter();
+        }
+    };
+
+    /**
+     * Sets the lowest level of messages that are logged. The level is otherwise determined by the
+     * build type; this is used by tests.
+     *
+     * @param minLevel One of the level constants in this class, e.g. {@link #INFO}.
+     */
+    static void setLevel(int minLevel) {
+        level = minLevel;
+    }
+
+    static int getLevel() {
+        return level;
+    }
+
+    /**
+     * Checks whether messages of the given level are currently logged.
+     *
+     * @param priority One of the level constants in this class.
+     */
+    public static boolean isLoggable(int priority) {
+        return priority >= level;
+    }
+
+    /**
+     * Sets a sink that writes log records on a background thread. When a sink is set, logging
+     * threads only enqueue records; the sink writes them to logcat as well as to its own storage.
+     * Errors are still written to logcat on the logging thread.
+     *
+     * @param diagnosticLog The sink to hand log records to, or null to log synchronously.
+     */
+    static void setSink(DiagnosticLog diagnosticLog) {
+        sink = diagnosticLog;
+    }
 
     /**
-     * Returns the timestamp and caller of the log function.
+     * Returns the timestamp and, if available, the caller of the log function.
+     *
+     * @param time   The time the message was logged, in milliseconds since the Unix epoch.
+     * @param caller The calling stack frame, or null.
      */
-    private static String getLogPrefix() {
-        String timestamp = new SimpleDateFormat(Constants.DATE_FORMAT_LOG, Locale.US).format(new Date());
+    private static String getLogPrefix(long time, String caller) {
+        StringBuilder prefix = PREFIX_FORMATTER.get().format(time);
+        if (caller != null) {
+            prefix.append(caller).append(": ");
+        }
+        return prefix.toString();
+    }
 
-        String caller = Thread.currentThread().getStackTrace()[STACK_DEPTH].toString();
-        if (caller.startsWith(BuildConfig.APPLICATION_ID)) {
-            caller = caller.substring(BuildConfig.APPLICATION_ID.length());
+    /**
+     * Finds the first stack frame outside of this class.
+     */
+    private static String getCaller() {
+        StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+        boolean inLog = false;
+        for (StackTraceElement frame : stack) {
+            boolean isLog = frame.getClassName().equals(Log.class.getName());
+            if (inLog && !isLog) {
+                String caller = frame.toString();
+                return caller.startsWith(BuildConfig.APPLICATION_ID) ? caller.substring(BuildConfig.APPLICATION_ID.length()) : caller;
+            }
+            inLog = isLog;
         }
-        return timestamp + ": " + caller + ": ";
+        return "<unknown>";
     }
 
     /**
@@ -43,99 +133,175 @@ public enum Log {
         return safeArgs;
     }
 
+    /**
+     * Formats and writes a log message if its level is loggable.
+     *
+     * @param priority The level of the message.
+     * @param msg      The message, or format string if {@code args} is not null.
+     * @param tr       An exception to log, or null.
+     * @param args     Format arguments, or null.
+     */
+    private static void log(int priority, String msg, Throwable tr, Object[] args) {
+        if (priority < level) return;
+        // Arguments are formatted immediately, as they may change after this call returns.
+        String message = args == null ? msg : String.format(msg, argsToStrings(args));
+        String caller = CALLER_LOOKUP ? getCaller() : null;
+        long time = System.currentTimeMillis();
+
+        DiagnosticLog diagnosticLog = sink;
+        if (diagnosticLog == null) {
+            write(priority, time, caller, message, tr);
+        } else if (priority >= ERROR) {
+            // Errors are often logged right before a crash, so they are written to logcat before
+            // returning. Only the ring buffer append is left to the sink.
+            write(priority, time, caller, message, tr);
+            diagnosticLog.enqueue(priority, time, caller, message, tr, false);
+        } else {
+            diagnosticLog.enqueue(priority, time, caller, message, tr, true);
+        }
+    }
+
+    /**
+     * Writes a log message to logcat.
+     *
+     * @param priority The level of the message.
+     * @param time     The time the message was logged, in milliseconds since the Unix epoch.
+     * @param caller   The calling stack frame, or null.
+     * @param message  The formatted message.
+     * @param tr       An exception to log, or null.
+     */
+    static void write(int priority, long time, String caller, String message, Throwable tr) {
+        String text = getLogPrefix(time, caller) + message;
+        switch (priority) {
+            case VERBOSE:
+                android.util.Log.v(BuildConfig.APPLICATION_ID, text, tr);
+                break;
+            case DEBUG:
+                android.util.Log.d(BuildConfig.APPLICATION_ID, text, tr);
+                break;
+            case INFO:
+                android.util.Log.i(BuildConfig.APPLICATION_ID, text, tr);
+                break;
+            case WARN:
+                android.util.Log.w(BuildConfig.APPLICATION_ID, text, tr);
+                break;
+            case ERROR:
+                android.util.Log.e(BuildConfig.APPLICATION_ID, text, tr);
+                break;
+            default:
+                android.util.Log.wtf(BuildConfig.APPLICATION_ID, text, tr);
+                break;
+        }
+    }
+
     public static void e(String msg) {
-        android.util.Log.e(BuildConfig.APPLICATION_ID, getLogPrefix() + msg);
+        log(ERROR, msg, null, null);
     }
 
     public static void e(String msg, Object... args) {
-        android.util.Log.e(BuildConfig.APPLICATION_ID, getLogPrefix() + String.format(msg, argsToStrings(args)));
+        log(ERROR, msg, null, args);
     }
 
     public static void e(String msg, Throwable tr) {
-        android.util.Log.e(BuildConfig.APPLICATION_ID, getLogPrefix() + msg, tr);
+        log(ERROR, msg, tr, null);
     }
 
     public static void e(String msg, Throwable tr, Object... args) {
-        android.util.Log.e(BuildConfig.APPLICATION_ID, getLogPrefix() + String.format(msg, argsToStrings(args)), tr);
+        log(ERROR, msg, tr, args);
     }
 
     public static void w(String msg) {
-        android.util.Log.w(BuildConfig.APPLICATION_ID, getLogPrefix() + msg);
+        log(WARN, msg, null, null);
     }
 
     public static void w(String msg, Object... args) {
-        android.util.Log.w(BuildConfig.APPLICATION_ID, getLogPrefix() + String.format(msg, argsToStrings(args)));
+        log(WARN, msg, null, args);
     }
 
     public static void w(String msg, Throwable tr) {
-        android.util.Log.w(BuildConfig.APPLICATION_ID, getLogPrefix() + msg, tr);
+        log(WARN, msg, tr, null);
     }
 
     public static void w(String msg, Throwable tr, Object... args) {
-        android.util.Log.w(BuildConfig.APPLICATION_ID, getLogPrefix() + String.format(msg, argsToStrings(args)), tr);
+        log(WARN, msg, tr, args);
     }
 
     public static void i(String msg) {
-        android.util.Log.i(BuildConfig.APPLICATION_ID, getLogPrefix() + msg);
+        log(INFO, msg, null, null);
     }
 
     public static void i(String msg, Object... args) {
-        android.util.Log.i(BuildConfig.APPLICATION_ID, getLogPrefix() + String.format(msg, argsToStrings(args)));
+        log(INFO, msg, null, args);
     }
 
     public static void i(String msg, Throwable tr) {
-        android.util.Log.i(BuildConfig.APPLICATION_ID, getLogPrefix() + msg, tr);
+        log(INFO, msg, tr, null);
     }
 
     public static void i(String msg, Throwable tr, Object... args) {
-        android.util.Log.i(BuildConfig.APPLICATION_ID, getLogPrefix() + String.format(msg, argsToStrings(args)), tr);
+        log(INFO, msg, tr, args);
     }
 
     public static void v(String msg) {
-        android.util.Log.v(BuildConfig.APPLICATION_ID, getLogPrefix() + msg);
+        log(VERBOSE, msg, null, null);
     }
 
     public static void v(String msg, Object... args) {
-        android.util.Log.v(BuildConfig.APPLICATION_ID, getLogPrefix() + String.format(msg, argsToStrings(args)));
+        log(VERBOSE, msg, null, args);
     }
 
     public static void v(String msg, Throwable tr) {
-        android.util.Log.v(BuildConfig.APPLICATION_ID, getLogPrefix() + msg, tr);
+        log(VERBOSE, msg, tr, null);
     }
 
     public static void v(String msg, Throwable tr, Object... args) {
-        android.util.Log.v(BuildConfig.APPLICATION_ID, getLogPrefix() + String.format(msg, argsToStrings(args)), tr);
+        log(VERBOSE, msg, tr, args);
     }
 
     public static void d(String msg) {
-        android.util.Log.d(BuildConfig.APPLICATION_ID, getLogPrefix() + msg);
+        log(DEBUG, msg, null, null);
     }
 
     public static void d(String msg, Object... args) {
-        android.util.Log.d(BuildConfig.APPLICATION_ID, getLogPrefix() + String.format(msg, argsToStrings(args)));
+        log(DEBUG, msg, null, args);
     }
 
     public static void d(String msg, Throwable tr) {
-        android.util.Log.v(BuildConfig.APPLICATION_ID, getLogPrefix() + msg, tr);
+        log(DEBUG, msg, tr, null);
     }
 
     public static void d(String msg, Throwable tr, Object... args) {
-        android.util.Log.d(BuildConfig.APPLICATION_ID, getLogPrefix() + String.format(msg, argsToStrings(args)), tr);
+        log(DEBUG, msg, tr, args);
     }
 
     public static void wtf(String msg) {
-        android.util.Log.wtf(BuildConfig.APPLICATION_ID, getLogPrefix() + msg);
+        log(ASSERT, msg, null, null);
     }
 
     public static void wtf(String msg, Object... args) {
-        android.util.Log.wtf(BuildConfig.APPLICATION_ID, getLogPrefix() + String.format(msg, argsToStrings(args)));
+        log(ASSERT, msg, null, args);
     }
 
     public static void wtf(String msg, Throwable tr) {
-        android.util.Log.wtf(BuildConfig.APPLICATION_ID, getLogPrefix() + msg, tr);
+        log(ASSERT, msg, tr, null);
     }
 
     public static void wtf(String msg, Throwable tr, Object... args) {
-        android.util.Log.wtf(BuildConfig.APPLICATION_ID, getLogPrefix() + String.format(msg, argsToStrings(args)), tr);
+        log(ASSERT, msg, tr, args);
+    }
+
+    /**
+     * Formats log timestamps. Date formats are not thread-safe, so each thread has its own.
+     */
+    private static final class PrefixFormatter {
+        private final SimpleDateFormat format = new SimpleDateFormat(Constants.DATE_FORMAT_LOG, Locale.US);
+        private final Date date = new Date();
+        private final StringBuilder prefix = new StringBuilder();
+
+        private StringBuilder format(long time) {
+            this.date.setTime(time);
+            this.prefix.setLength(0);
+            return this.prefix.append(this.format.format(this.date)).append(": ");
+        }
     }
 }
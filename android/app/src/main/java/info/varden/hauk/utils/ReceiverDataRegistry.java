@@ -1,8 +1,12 @@
 package info.varden.hauk.utils;
 
-import android.util.SparseArray;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-import java.util.Random;
+import info.varden.hauk.Constants;
 
 /**
  * Receiver classes and services are instantiated by Android itself, and we cannot pass arbitrary
@@ -13,33 +17,95 @@ import java.util.Random;
  * to retrieve the object itself from the registry, allowing transfers of complex objects to
  * receiver classes.
  *
+ * The registry is safe to use from any thread. Indices are never reused within a process, and
+ * carry a random 32-bit per-process generation, so that an index from an intent created by a
+ * previous process (e.g. a notification action that outlived the app) is practically certain not
+ * to resolve to an unrelated object. Registering an object that is already registered for repeated retrieval returns its
+ * existing index, so that rebuilding a notification does not add new entries. Entries expire after
+ * {@link Constants#RECEIVER_REGISTRY_TTL} milliseconds without being registered or retrieved, so
+ * that objects which are never retrieved do not stay in memory for the lifetime of the process.
+ *
  * @author Marius Lindvall
  */
 public enum ReceiverDataRegistry {
     ;
 
-    private static final SparseArray<Object> data = new SparseArray<>();
-    private static final Random random = new Random();
+    // Indices are positive, and consist of a generation in the upper bits and a sequence number in
+    // the lower bits.
+    private static final int SEQUENCE_BITS = 31;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long GENERATION_MASK = 0xFFFFFFFFL;
 
     /**
-     * Registers the given object in the registry.
+     * Minimum time between two sweeps for expired entries, in milliseconds.
+     */
+    private static final long SWEEP_INTERVAL = 60L * TimeUtils.MILLIS_PER_SECOND;
+
+    private static final long generation = new SecureRandom().nextInt() & GENERATION_MASK;
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private static final Map<Long, Entry> data = new ConcurrentHashMap<>();
+    private static final Map<IdentityKey, Long> indices = new ConcurrentHashMap<>();
+
+    private static volatile long nextSweep = 0;
+
+    // Statistics.
+    private static final AtomicLong registeredCount = new AtomicLong();
+    private static final AtomicLong reusedCount = new AtomicLong();
+    private static final AtomicLong expiredCount = new AtomicLong();
+
+    /**
+     * Registers the given object in the registry for a single retrieval.
      *
      * @param obj The object to register.
      * @return An index which can be used to retrieve the object later using retrieve().
      */
-    public static int register(Object obj) {
-        int index = random.nextInt();
-        data.put(index, obj);
-        return index;
+    public static long register(Object obj) {
+        return register(obj, false);
+    }
+
+    /**
+     * Registers the given object in the registry.
+     *
+     * @param obj  The object to register.
+     * @param keep Whether the object will be retrieved with {@code keep} set, e.g. from a
+     *             notification action that can be invoked several times. Such registrations of the
+     *             same object share a single index.
+     * @return An index which can be used to retrieve the object later using retrieve().
+     */
+    public static long register(Object obj, boolean keep) {
+        long now = System.currentTimeMillis();
+        if (now >= nextSweep) sweep(now);
+
+        synchronized (ReceiverDataRegistry.class) {
+            // Reuse the existing entry if this object is already registered.
+            IdentityKey key = new IdentityKey(obj);
+            Long existing = keep ? indices.get(key) : null;
+            if (existing != null) {
+                Entry entry = data.get(existing);
+                if (entry != null) {
+                    entry.touch(now);
+                    reusedCount.incrementAndGet();
+                    return existing;
+                }
+            }
+
+            long index = (generation << SEQUENCE_BITS) | (sequence.incrementAndGet() & SEQUENCE_MASK);
+            data.put(index, new Entry(obj, now));
+            if (keep) indices.put(key, index);
+            registeredCount.incrementAndGet();
+            return index;
+        }
     }
 
     /**
      * Retrieves an object from the registry given its index and deletes the object.
      *
      * @param index The index obtained when registering the object using register().
-     * @return The object that was stored in the registry.
+     * @return The object that was stored in the registry, or null if it has expired or the index is
+     * invalid.
      */
-    public static Object retrieve(int index) {
+    public static Object retrieve(long index) {
         return retrieve(index, false);
     }
 
@@ -48,11 +114,104 @@ public enum ReceiverDataRegistry {
      *
      * @param index The index obtained when registering the object using register().
      * @param keep  Whether or not to keep the object in the registry after retrieval.
-     * @return The object that was stored in the registry.
+     * @return The object that was stored in the registry, or null if it has expired or the index is
+     * invalid.
+     */
+    public static Object retrieve(long index, boolean keep) {
+        if (keep) {
+            Entry entry = data.get(index);
+            if (entry == null) return null;
+            entry.touch(System.currentTimeMillis());
+            return entry.obj;
+        }
+        synchronized (ReceiverDataRegistry.class) {
+            Entry entry = data.remove(index);
+            if (entry == null) return null;
+            indices.remove(new IdentityKey(entry.obj), index);
+            return entry.obj;
+        }
+    }
+
+    /**
+     * Returns the number of objects currently stored in the registry.
+     */
+    public static int getLiveCount() {
+        return data.size();
+    }
+
+    /**
+     * Returns a summary of registry usage for logging.
+     */
+    public static String getStats() {
+        return "ReceiverDataRegistry{live=" + data.size()
+                + ",registered=" + registeredCount.get()
+                + ",reused=" + reusedCount.get()
+                + ",expired=" + expiredCount.get()
+                + "}";
+    }
+
+    /**
+     * Removes expired entries, unless this was already done within the last sweep interval.
+     */
+    private static synchronized void sweep(long now) {
+        if (now < nextSweep) return;
+        nextSweep = now + SWEEP_INTERVAL;
+        removeExpired(now);
+    }
+
+    /**
+     * Removes entries that had not been registered or retrieved within the time-to-live at the
+     * given time. Only called directly by tests; otherwise, this is done by periodic sweeps.
+     *
+     * @param now The current time, in milliseconds since the epoch.
+     */
+    static synchronized void removeExpired(long now) {
+        for (Iterator<Map.Entry<Long, Entry>> it = data.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Long, Entry> entry = it.next();
+            if (now - entry.getValue().lastAccess > Constants.RECEIVER_REGISTRY_TTL) {
+                it.remove();
+                indices.remove(new IdentityKey(entry.getValue().obj), entry.getKey());
+                expiredCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * An object stored in the registry.
+     */
+    private static final class Entry {
+        private final Object obj;
+        private volatile long lastAccess;
+
+        private Entry(Object obj, long now) {
+            this.obj = obj;
+            this.lastAccess = now;
+        }
+
+        private void touch(long now) {
+            this.lastAccess = now;
+        }
+    }
+
+    /**
+     * Map key that compares objects by identity rather than by equality, so that distinct but
+     * equal objects get separate entries.
      */
-    public static Object retrieve(int index, boolean keep) {
-        Object obj = data.get(index);
-        if (!keep) data.remove(index);
-        return obj;
+    private static final class IdentityKey {
+        private final Object obj;
+
+        private IdentityKey(Object obj) {
+            this.obj = obj;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof IdentityKey && ((IdentityKey) other).obj == this.obj;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this.obj);
+        }
     }
 }
@@ -0,0 +1,110 @@
+package info.varden.hauk.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads records written by {@link TLVWriter}. Fields are read in a loop over {@link #next()},
+ * switching on {@link #getTag()}; fields that are not read are skipped automatically.
+ *
+ * @author Marius Lindvall
+ */
+public final class TLVReader {
+    private final byte[] data;
+    private final int end;
+    private int position;
+
+    // The current field.
+    private int tag = -1;
+    private int valueOffset;
+    private int valueLength;
+
+    public TLVReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    private TLVReader(byte[] data, int offset, int length) {
+        this.data = data;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Advances to the next field.
+     *
+     * @return true if there is another field, false at the end of the record.
+     * @throws IOException if the record is truncated or malformed.
+     */
+    public boolean next() throws IOException {
+        if (this.position >= this.end) return false;
+        long fieldTag = readVarint();
+        long length = readVarint();
+        if (fieldTag > Integer.MAX_VALUE || length > this.end - this.position) {
+            throw new IOException("Malformed field in record"); //NON-NLS
+        }
+        this.tag = (int) fieldTag;
+        this.valueOffset = this.position;
+        this.valueLength = (int) length;
+        this.position += this.valueLength;
+        return true;
+    }
+
+    /**
+     * Returns the tag of the current field.
+     */
+    public int getTag() {
+        return this.tag;
+    }
+
+    public String getString() {
+        return new String(this.data, this.valueOffset, this.valueLength, StandardCharsets.UTF_8);
+    }
+
+    public byte[] getBytes() {
+        return Arrays.copyOfRange(this.data, this.valueOffset, this.valueOffset + this.valueLength);
+    }
+
+    public long getLong() throws IOException {
+        long zigzag = 0;
+        int shift = 0;
+        for (int i = 0; i < this.valueLength; i++, shift += 7) {
+            if (shift > 63) throw new IOException("Integer field is too long"); //NON-NLS
+            zigzag |= (long) (this.data[this.valueOffset + i] & 0x7F) << shift;
+        }
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    public int getInt() throws IOException {
+        return (int) getLong();
+    }
+
+    public boolean getBoolean() throws IOException {
+        return getLong() != 0;
+    }
+
+    public float getFloat() throws IOException {
+        if (this.valueLength != 4) throw new IOException("Float field has wrong length"); //NON-NLS
+        int bits = 0;
+        for (int i = 0; i < 4; i++) bits = (bits << 8) | (this.data[this.valueOffset + i] & 0xFF);
+        return Float.intBitsToFloat(bits);
+    }
+
+    /**
+     * Returns a reader for a nested record.
+     */
+    public TLVReader getRecord() {
+        return new TLVReader(this.data, this.valueOffset, this.valueLength);
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (this.position >= this.end) throw new IOException("Record is truncated"); //NON-NLS
+            byte b = this.data[this.position++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint is too long"); //NON-NLS
+    }
+}
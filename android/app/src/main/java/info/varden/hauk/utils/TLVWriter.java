@@ -0,0 +1,89 @@
+package info.varden.hauk.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes records in a simple tag-length-value format. Each field is written as a varint tag, a
+ * varint length and the field value. Readers skip fields with tags they do not recognize, so fields
+ * can be added to a record without breaking older readers, and fields can be dropped as long as
+ * readers have a sensible default for them.
+ *
+ * @author Marius Lindvall
+ * @see TLVReader
+ */
+public final class TLVWriter {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final byte[] scratch = new byte[8];
+
+    /**
+     * Writes a string field in UTF-8. Nothing is written if the value is null.
+     */
+    public TLVWriter putString(int tag, String value) {
+        if (value != null) putBytes(tag, value.getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+    /**
+     * Writes a byte array field. Nothing is written if the value is null.
+     */
+    public TLVWriter putBytes(int tag, byte[] value) {
+        if (value == null) return this;
+        writeVarint(tag);
+        writeVarint(value.length);
+        this.out.write(value, 0, value.length);
+        return this;
+    }
+
+    /**
+     * Writes a signed integer field as a zigzag-encoded varint.
+     */
+    public TLVWriter putLong(int tag, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        int length = 1;
+        for (long v = zigzag >>> 7; v != 0; v >>>= 7) length++;
+        writeVarint(tag);
+        writeVarint(length);
+        writeVarint(zigzag);
+        return this;
+    }
+
+    public TLVWriter putInt(int tag, int value) {
+        return putLong(tag, value);
+    }
+
+    public TLVWriter putBoolean(int tag, boolean value) {
+        return putLong(tag, value ? 1 : 0);
+    }
+
+    /**
+     * Writes a float field as its four-byte IEEE 754 representation.
+     */
+    public TLVWriter putFloat(int tag, float value) {
+        int bits = Float.floatToIntBits(value);
+        for (int i = 0; i < 4; i++) this.scratch[i] = (byte) (bits >>> (24 - 8 * i));
+        writeVarint(tag);
+        writeVarint(4);
+        this.out.write(this.scratch, 0, 4);
+        return this;
+    }
+
+    /**
+     * Writes a nested record. Nothing is written if the record is null.
+     */
+    public TLVWriter putRecord(int tag, TLVWriter record) {
+        return record == null ? this : putBytes(tag, record.toByteArray());
+    }
+
+    public byte[] toByteArray() {
+        return this.out.toByteArray();
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            this.out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        this.out.write((int) value);
+    }
+}
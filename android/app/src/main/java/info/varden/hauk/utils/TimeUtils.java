@@ -11,6 +11,7 @@ public enum TimeUtils {
     ;
 
     public static final long MILLIS_PER_SECOND = 1000;
+    public static final long NANOS_PER_MILLI = 1000000;
 
     private static final int SECONDS_PER_MINUTE = 60;
     private static final int SECONDS_PER_HOUR = 3600;
@@ -0,0 +1,157 @@
+package info.varden.hauk.caching;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import info.varden.hauk.utils.TestLogs;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+public final class ShareJournalTest {
+    private static final int COMPACT_AFTER = 100;
+
+    private static final byte[] RECORD_A = {1, 2, 3};
+    private static final byte[] RECORD_B = {4, 5};
+    private static final byte[] RECORD_C = {6};
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File path;
+    private int previousLevel;
+
+    @Before
+    public void setUp() throws IOException {
+        this.previousLevel = TestLogs.silence();
+        this.path = new File(this.folder.getRoot(), "journal");
+    }
+
+    @After
+    public void tearDown() {
+        TestLogs.restore(this.previousLevel);
+    }
+
+    /**
+     * Returns the size of an entry that adds a share with a single-character ID.
+     */
+    private static long addEntrySize(byte[] record) {
+        return 1 + 2 + 1 + 4 + record.length;
+    }
+
+    private ShareJournal reopen(ShareJournal journal, int compactAfter) throws IOException {
+        journal.close();
+        return new ShareJournal(this.path, compactAfter);
+    }
+
+    @Test
+    public void replaysEntries() throws IOException {
+        ShareJournal journal = new ShareJournal(this.path, COMPACT_AFTER);
+        journal.add("a", RECORD_A);
+        journal.add("b", RECORD_B);
+        journal.remove("a");
+        journal.add("c", RECORD_C);
+
+        journal = reopen(journal, COMPACT_AFTER);
+        List<byte[]> records = journal.getRecords();
+        assertThat("Wrong number of shares replayed", records.size(), is(2));
+        assertThat("Wrong first share replayed", records.get(0), is(RECORD_B));
+        assertThat("Wrong second share replayed", records.get(1), is(RECORD_C));
+        journal.close();
+    }
+
+    @Test
+    public void truncatesIncompleteEntry() throws IOException {
+        ShareJournal journal = new ShareJournal(this.path, COMPACT_AFTER);
+        journal.add("a", RECORD_A);
+        journal.add("b", RECORD_B);
+        journal.close();
+
+        // Cut the last entry short, as if the app was killed while writing it.
+        long validLength = addEntrySize(RECORD_A);
+        try (RandomAccessFile file = new RandomAccessFile(this.path, "rw")) {
+            file.setLength(file.length() - 2);
+        }
+
+        journal = new ShareJournal(this.path, COMPACT_AFTER);
+        List<byte[]> records = journal.getRecords();
+        assertThat("Incomplete entry replayed", records.size(), is(1));
+        assertThat("Complete entry not replayed", records.get(0), is(RECORD_A));
+        assertThat("Incomplete entry not truncated", this.path.length(), is(validLength));
+
+        // New entries must be appended after the last complete entry.
+        journal.add("c", RECORD_C);
+        journal = reopen(journal, COMPACT_AFTER);
+        records = journal.getRecords();
+        assertThat("Entry after truncation not replayed", records.size(), is(2));
+        assertThat("Wrong share after truncation", records.get(1), is(RECORD_C));
+        journal.close();
+    }
+
+    @Test
+    public void truncatesUnknownOperation() throws IOException {
+        ShareJournal journal = new ShareJournal(this.path, COMPACT_AFTER);
+        journal.add("a", RECORD_A);
+        journal.close();
+
+        // Append an entry with an operation that does not exist.
+        try (RandomAccessFile file = new RandomAccessFile(this.path, "rw")) {
+            file.seek(file.length());
+            file.writeByte(99);
+            file.writeUTF("b");
+            file.write("garbage".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        journal = new ShareJournal(this.path, COMPACT_AFTER);
+        List<byte[]> records = journal.getRecords();
+        assertThat("Corrupt entry replayed", records.size(), is(1));
+        assertThat("Valid entry not replayed", records.get(0), is(RECORD_A));
+        assertThat("Corrupt entry not truncated", this.path.length(), is(addEntrySize(RECORD_A)));
+        journal.close();
+    }
+
+    @Test
+    public void compactsSupersededEntries() throws IOException {
+        ShareJournal journal = new ShareJournal(this.path, 2);
+        journal.add("a", RECORD_A);
+        journal.add("b", RECORD_B);
+        assertThat("Compacted before threshold", this.path.length(), is(addEntrySize(RECORD_A) + addEntrySize(RECORD_B)));
+
+        // Removing a share supersedes two entries, which triggers compaction.
+        journal.remove("a");
+        assertThat("Journal not compacted", this.path.length(), is(addEntrySize(RECORD_B)));
+        assertThat("Compacted copy left behind", new File(this.path.getPath() + ".tmp").exists(), is(false));
+
+        // The compacted journal must still be appendable and replayable.
+        journal.add("c", RECORD_C);
+        journal = reopen(journal, 2);
+        List<byte[]> records = journal.getRecords();
+        assertThat("Wrong number of shares after compaction", records.size(), is(2));
+        assertThat("Wrong first share after compaction", records.get(0), is(RECORD_B));
+        assertThat("Wrong second share after compaction", records.get(1), is(RECORD_C));
+        journal.close();
+    }
+
+    @Test
+    public void clearRemovesAllShares() throws IOException {
+        ShareJournal journal = new ShareJournal(this.path, COMPACT_AFTER);
+        journal.add("a", RECORD_A);
+        journal.clear();
+        journal.add("b", RECORD_B);
+
+        journal = reopen(journal, COMPACT_AFTER);
+        List<byte[]> records = journal.getRecords();
+        assertThat("Cleared share replayed", records.size(), is(1));
+        assertThat("Wrong share after clear", records.get(0), is(RECORD_B));
+        journal.close();
+    }
+}
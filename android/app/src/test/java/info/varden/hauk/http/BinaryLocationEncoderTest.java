@@ -0,0 +1,102 @@
+package info.varden.hauk.http;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import info.varden.hauk.http.parameter.LocationProvider;
+import info.varden.hauk.struct.LocationFix;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+public final class BinaryLocationEncoderTest {
+    private static final String SESSION_ID = "ab";
+    private static final long START_TIME = 1000000000000L;
+
+    /**
+     * The header of a body for {@link #SESSION_ID} with the given number of fixes, starting at
+     * {@link #START_TIME}.
+     */
+    private static int[] header(int fixCount) {
+        return new int[] {
+                0x01,                                           // format version
+                0x02, 0x61, 0x62,                               // session ID "ab"
+                fixCount,                                       // number of fixes
+                0x00, 0x00, 0x00, 0xE8, 0xD4, 0xA5, 0x10, 0x00  // first timestamp
+        };
+    }
+
+    @Test
+    public void encodesBatch() {
+        List<LocationFix> fixes = Arrays.asList(
+                // Negative latitude, no optional fields.
+                new LocationFix(-33.8688, 151.2093, START_TIME, LocationProvider.FINE, false, 0.0F, false, 0.0F, false, 0.0F),
+                // Negative longitude, coarse provider, speed and accuracy.
+                new LocationFix(51.5, -0.1275, START_TIME + 1500L, LocationProvider.COARSE, true, 2.5F, true, 12.3F, false, 0.0F),
+                // Fix recorded before the previous one, with bearing.
+                new LocationFix(0.0, 0.0, START_TIME + 1200L, LocationProvider.FINE, false, 0.0F, false, 0.0F, true, 359.9F)
+        );
+
+        assertThat("Wrong encoding", BinaryLocationEncoder.encode(SESSION_ID, fixes, 30), is(bytes(
+                header(3),
+                new int[] {
+                        0xEB, 0xD0, 0x08, 0x00,     // latitude -338688000
+                        0x5A, 0x20, 0xB5, 0x48,     // longitude 1512093000
+                        0x00,                       // time delta 0
+                        0x00                        // flags
+                },
+                new int[] {
+                        0x1E, 0xB2, 0x46, 0xC0,     // latitude 515000000
+                        0xFF, 0xEC, 0x8B, 0x88,     // longitude -1275000
+                        0xB8, 0x17,                 // time delta +1500, zigzag-encoded as 3000
+                        0x07,                       // flags: coarse, speed, accuracy
+                        0x19,                       // speed 2.5 m/s
+                        0x7B                        // accuracy 12.3 m
+                },
+                new int[] {
+                        0x00, 0x00, 0x00, 0x00,     // latitude 0
+                        0x00, 0x00, 0x00, 0x00,     // longitude 0
+                        0xD7, 0x04,                 // time delta -300, zigzag-encoded as 599
+                        0x08,                       // flags: bearing
+                        0x8F, 0x1C                  // bearing 359.9 degrees
+                },
+                new int[] {
+                        0x1E                        // interval 30 seconds
+                }
+        )));
+    }
+
+    @Test
+    public void omitsUnreportedInterval() {
+        List<LocationFix> fixes = Collections.singletonList(
+                new LocationFix(-33.8688, 151.2093, START_TIME, LocationProvider.FINE, false, 0.0F, false, 0.0F, false, 0.0F)
+        );
+
+        assertThat("Wrong encoding", BinaryLocationEncoder.encode(SESSION_ID, fixes, 0), is(bytes(
+                header(1),
+                new int[] {
+                        0xEB, 0xD0, 0x08, 0x00,     // latitude -338688000
+                        0x5A, 0x20, 0xB5, 0x48,     // longitude 1512093000
+                        0x00,                       // time delta 0
+                        0x00                        // flags
+                }
+        )));
+    }
+
+    /**
+     * Concatenates groups of unsigned byte values into a byte array.
+     */
+    private static byte[] bytes(int[]... groups) {
+        int length = 0;
+        for (int[] group : groups) length += group.length;
+        byte[] out = new byte[length];
+        int i = 0;
+        for (int[] group : groups) {
+            for (int value : group) out[i++] = (byte) value;
+        }
+        return out;
+    }
+}
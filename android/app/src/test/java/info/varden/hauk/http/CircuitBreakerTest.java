@@ -0,0 +1,83 @@
+package info.varden.hauk.http;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+public final class CircuitBreakerTest {
+
+    private static CircuitBreaker create() {
+        return new CircuitBreaker(3, 1000L, 8000L, new Random(42L));
+    }
+
+    @Test
+    public void opensAfterThreshold() {
+        CircuitBreaker breaker = create();
+        breaker.onFailure(0L);
+        breaker.onFailure(0L);
+        assertThat("Breaker opened before threshold", breaker.getState(), is(CircuitBreaker.State.CLOSED));
+        assertThat("Request rejected while closed", breaker.allowRequest(0L), is(true));
+        breaker.onFailure(0L);
+        assertThat("Breaker did not open at threshold", breaker.getState(), is(CircuitBreaker.State.OPEN));
+        assertThat("Request allowed while open", breaker.allowRequest(0L), is(false));
+    }
+
+    @Test
+    public void successResetsFailures() {
+        CircuitBreaker breaker = create();
+        breaker.onFailure(0L);
+        breaker.onFailure(0L);
+        breaker.onSuccess();
+        breaker.onFailure(0L);
+        breaker.onFailure(0L);
+        assertThat("Failures not reset by success", breaker.getState(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void singleProbeWhenDue() {
+        CircuitBreaker breaker = create();
+        for (int i = 0; i < 3; i++) breaker.onFailure(0L);
+        long delay = breaker.getProbeDelay(0L);
+        assertTrue("Probe delay below half of base delay", delay >= 500L);
+        assertTrue("Probe delay above base delay", delay <= 1000L);
+
+        assertThat("Probe allowed early", breaker.allowRequest(delay - 1L), is(false));
+        assertThat("Probe not allowed when due", breaker.allowRequest(delay), is(true));
+        assertThat("Breaker not half-open during probe", breaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        assertThat("Second request allowed during probe", breaker.allowRequest(delay), is(false));
+        assertThat("Probe delay reported during probe", breaker.getProbeDelay(delay), is(-1L));
+
+        breaker.onSuccess();
+        assertThat("Successful probe did not close breaker", breaker.getState(), is(CircuitBreaker.State.CLOSED));
+        assertThat("Request rejected after recovery", breaker.allowRequest(delay), is(true));
+    }
+
+    @Test
+    public void probeSpacingGrowsUpToCap() {
+        CircuitBreaker breaker = create();
+        long now = 0L;
+        for (int i = 0; i < 3; i++) breaker.onFailure(now);
+        long[] maxDelays = {1000L, 2000L, 4000L, 8000L, 8000L, 8000L};
+        for (long maxDelay : maxDelays) {
+            long delay = breaker.getProbeDelay(now);
+            assertTrue("Probe delay " + delay + " below jitter range of " + maxDelay, delay >= maxDelay / 2);
+            assertTrue("Probe delay " + delay + " above " + maxDelay, delay <= maxDelay);
+            now += delay;
+            assertThat("Probe not allowed when due", breaker.allowRequest(now), is(true));
+            breaker.onFailure(now);
+            assertThat("Failed probe did not reopen breaker", breaker.getState(), is(CircuitBreaker.State.OPEN));
+        }
+    }
+
+    @Test
+    public void probeNow() {
+        CircuitBreaker breaker = create();
+        for (int i = 0; i < 3; i++) breaker.onFailure(0L);
+        breaker.probeNow(10L);
+        assertThat("Probe delay not cleared", breaker.getProbeDelay(10L), is(0L));
+        assertThat("Probe not allowed", breaker.allowRequest(10L), is(true));
+    }
+}
@@ -0,0 +1,36 @@
+package info.varden.hauk.http;
+
+import org.junit.Test;
+
+import java.net.SocketTimeoutException;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+public final class HttpStatusExceptionTest {
+
+    @Test
+    public void serverErrorsAreTransient() {
+        assertThat("500 not transient", new HttpStatusException("", 500).isTransient(), is(true));
+        assertThat("502 not transient", new HttpStatusException("", 502).isTransient(), is(true));
+        assertThat("503 not transient", new HttpStatusException("", 503).isTransient(), is(true));
+        assertThat("504 not transient", new HttpStatusException("", 504).isTransient(), is(true));
+        assertThat("408 not transient", new HttpStatusException("", 408).isTransient(), is(true));
+        assertThat("429 not transient", new HttpStatusException("", 429).isTransient(), is(true));
+    }
+
+    @Test
+    public void clientErrorsAreNotTransient() {
+        assertThat("400 transient", new HttpStatusException("", 400).isTransient(), is(false));
+        assertThat("403 transient", new HttpStatusException("", 403).isTransient(), is(false));
+        assertThat("404 transient", new HttpStatusException("", 404).isTransient(), is(false));
+    }
+
+    @Test
+    public void classifiesFailures() {
+        assertThat("Connection error not transient", HttpStatusException.isTransientFailure(new SocketTimeoutException()), is(true));
+        assertThat("Gateway error not transient", HttpStatusException.isTransientFailure(new HttpStatusException("", 502)), is(true));
+        assertThat("Backend rejection transient", HttpStatusException.isTransientFailure(new ServerException("Session expired")), is(false));
+        assertThat("Parse error transient", HttpStatusException.isTransientFailure(new IndexOutOfBoundsException()), is(false));
+    }
+}
@@ -0,0 +1,70 @@
+package info.varden.hauk.http;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+public final class ResponseBodyTest {
+
+    @Test
+    public void lines() {
+        ResponseBody body = ResponseBody.of("OK\r\nhttps://example.com/?%s\n\nlast");
+        assertThat("Wrong number of lines", body.getLineCount(), is(4));
+        assertThat("Carriage return not stripped", body.getLine(0), is("OK"));
+        assertThat("Wrong line", body.getLine(1), is("https://example.com/?%s"));
+        assertThat("Empty line not kept", body.getLine(2), is(""));
+        assertThat("Unterminated last line not read", body.getLine(3), is("last"));
+        assertThat("Line comparison failed", body.lineEquals(0, "OK"), is(true));
+        assertThat("Prefix compared as equal", body.lineEquals(0, "O"), is(false));
+        assertThat("Line compared beyond its end", body.lineEquals(0, "OK\r"), is(false));
+    }
+
+    @Test
+    public void trailingNewline() {
+        assertThat("Trailing newline started a new line", ResponseBody.of("OK\n").getLineCount(), is(1));
+        assertThat("Empty body has lines", ResponseBody.of("").getLineCount(), is(0));
+    }
+
+    @Test
+    public void splitLine() {
+        ResponseBody body = ResponseBody.of("a,b,,c\n\n");
+        assertThat("Wrong fields", body.splitLine(0, ','), is(new String[] {"a", "b", "", "c"}));
+        assertThat("Empty line has fields", body.splitLine(1, ',').length, is(0));
+    }
+
+    @Test
+    public void roundTrip() {
+        String[] lines = {"OK", "", "x,y"};
+        assertThat("Lines changed in round trip", ResponseBody.of(lines).toArray(), is(lines));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void missingLine() {
+        ResponseBody.of("OK\n").getLine(1);
+    }
+
+    @Test
+    public void shareListDecodedOnlyOnChange() {
+        ShareListDecoder decoder = new ShareListDecoder();
+        assertThat("First list not decoded", decoder.decode(ResponseBody.of("OK\nfmt\nA,B\n"), 1, 2, 3), is(true));
+        assertThat("Wrong shares", decoder.getShares(), is(new String[] {"A", "B"}));
+        assertThat("Unchanged list decoded", decoder.decode(ResponseBody.of("OK\nfmt\nA,B\n"), 1, 2, 3), is(false));
+        assertThat("Changed list not decoded", decoder.decode(ResponseBody.of("OK\nfmt\nA,B,C\n"), 1, 2, 3), is(true));
+        assertThat("Changed link format not decoded", decoder.decode(ResponseBody.of("OK\nfmt2\nA,B,C\n"), 1, 2, 3), is(true));
+        assertThat("Wrong link format", decoder.getLinkFormat(), is("fmt2"));
+        assertThat("Emptied list not decoded", decoder.decode(ResponseBody.of("OK\nfmt2\n\n"), 1, 2, 3), is(true));
+        assertThat("Shares in empty list", decoder.getShares().length, is(0));
+    }
+
+    @Test
+    public void shareListToken() {
+        ShareListDecoder decoder = new ShareListDecoder();
+        decoder.decode(ResponseBody.of("OK\nfmt\nA,B\n"), 1, 2, 3);
+        assertThat("Token without token line", decoder.getToken(), is(nullValue()));
+        assertThat("Unchanged list decoded", decoder.decode(ResponseBody.of("OK\nfmt\nA,B\n1a2b\n"), 1, 2, 3), is(false));
+        assertThat("Token not read for unchanged list", decoder.getToken(), is("1a2b"));
+        decoder.decode(ResponseBody.of("OK\nfmt\nA\n3c4d\n"), 1, 2, 3);
+        assertThat("Token not updated", decoder.getToken(), is("3c4d"));
+    }
+}
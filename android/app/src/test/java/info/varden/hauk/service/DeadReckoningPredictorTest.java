@@ -0,0 +1,105 @@
+package info.varden.hauk.service;
+
+import org.junit.Test;
+
+import info.varden.hauk.http.parameter.LocationProvider;
+import info.varden.hauk.struct.LocationFix;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+public final class DeadReckoningPredictorTest {
+    private static final float ERROR_BOUND = 10.0F;
+    private static final long HEARTBEAT = 60000L;
+
+    private static final double START_LAT = 59.9;
+    private static final double START_LON = 10.7;
+    private static final long START_TIME = 1000000000000L;
+
+    /**
+     * Moving due north at 20 m/s.
+     */
+    private static final float SPEED = 20.0F;
+    private static final float BEARING = 0.0F;
+
+    /**
+     * The length of one degree of latitude in meters, on the sphere used by the predictor.
+     */
+    private static final double METERS_PER_DEGREE = 6371000.0 * Math.PI / 180.0;
+
+    /**
+     * Returns a fix on the steady northbound track, the given time after the start, optionally
+     * displaced to the east.
+     */
+    private static LocationFix onTrack(long elapsed, double eastOffset, LocationProvider provider) {
+        double lat = START_LAT + SPEED * elapsed / 1000.0 / METERS_PER_DEGREE;
+        double lon = START_LON + eastOffset / (METERS_PER_DEGREE * Math.cos(Math.toRadians(lat)));
+        return new LocationFix(lat, lon, START_TIME + elapsed, provider, true, SPEED, true, 5.0F, true, BEARING);
+    }
+
+    private static LocationFix onTrack(long elapsed) {
+        return onTrack(elapsed, 0.0, LocationProvider.FINE);
+    }
+
+    private static LocationFix stationary(double lat, long elapsed) {
+        return new LocationFix(lat, START_LON, START_TIME + elapsed, LocationProvider.FINE, false, 0.0F, true, 5.0F, false, 0.0F);
+    }
+
+    private static DeadReckoningPredictor startedPredictor() {
+        DeadReckoningPredictor predictor = new DeadReckoningPredictor(ERROR_BOUND, HEARTBEAT);
+        LocationFix first = onTrack(0L);
+        assertThat("First fix suppressed", predictor.shouldSend(first), is(true));
+        predictor.onSent(first);
+        return predictor;
+    }
+
+    @Test
+    public void suppressesSteadyMovement() {
+        DeadReckoningPredictor predictor = startedPredictor();
+        for (long elapsed = 1000L; elapsed < HEARTBEAT; elapsed += 1000L) {
+            assertThat("Predictable fix sent after " + elapsed + " ms", predictor.shouldSend(onTrack(elapsed)), is(false));
+        }
+    }
+
+    @Test
+    public void sendsWhenErrorBoundExceeded() {
+        DeadReckoningPredictor predictor = startedPredictor();
+        assertThat("Fix within error bound sent", predictor.shouldSend(onTrack(5000L, ERROR_BOUND / 2, LocationProvider.FINE)), is(false));
+        assertThat("Fix beyond error bound suppressed", predictor.shouldSend(onTrack(5000L, ERROR_BOUND * 2, LocationProvider.FINE)), is(true));
+    }
+
+    @Test
+    public void sendsWhenHeartbeatExpires() {
+        DeadReckoningPredictor predictor = startedPredictor();
+        assertThat("Fix sent before heartbeat", predictor.shouldSend(onTrack(HEARTBEAT - 1000L)), is(false));
+        assertThat("Fix suppressed at heartbeat", predictor.shouldSend(onTrack(HEARTBEAT)), is(true));
+    }
+
+    @Test
+    public void sendsWhenProviderChanges() {
+        DeadReckoningPredictor predictor = startedPredictor();
+        assertThat("Fix from new provider suppressed", predictor.shouldSend(onTrack(5000L, 0.0, LocationProvider.COARSE)), is(true));
+    }
+
+    @Test
+    public void onlySentFixesBecomeReference() {
+        DeadReckoningPredictor predictor = startedPredictor();
+
+        // A fix that passes, but is never sent, must not replace the reference.
+        assertThat("Deviating fix suppressed", predictor.shouldSend(onTrack(5000L, 100.0, LocationProvider.FINE)), is(true));
+        assertThat("Predictable fix sent after unsent fix", predictor.shouldSend(onTrack(6000L)), is(false));
+    }
+
+    @Test
+    public void onSentIgnoresOlderFixes() {
+        DeadReckoningPredictor predictor = new DeadReckoningPredictor(ERROR_BOUND, HEARTBEAT);
+        LocationFix newer = stationary(START_LAT, 10000L);
+        LocationFix older = stationary(START_LAT + 0.01, 5000L);
+        predictor.onSent(newer);
+        predictor.onSent(older);
+
+        // Predicted from the newer fix, the user has not moved; from the older fix, they would
+        // have moved over a kilometer.
+        assertThat("Older sent fix replaced reference", predictor.shouldSend(stationary(START_LAT, 11000L)), is(false));
+    }
+}
@@ -0,0 +1,101 @@
+package info.varden.hauk.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import info.varden.hauk.http.parameter.LocationProvider;
+import info.varden.hauk.struct.LocationFix;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+public final class TrackParserTest {
+
+    private static final double DELTA = 1.0E-6;
+
+    private static List<LocationFix> parse(String track) throws IOException {
+        return TrackParser.parse(new StringReader(track));
+    }
+
+    @Test
+    public void gpx() throws IOException {
+        List<LocationFix> points = parse(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<gpx version=\"1.0\" xmlns=\"http://www.topografix.com/GPX/1/0\"><trk><trkseg>\n"
+                + "<trkpt lat=\"59.9\" lon=\"10.7\"><ele>12</ele><time>2019-06-01T10:00:00Z</time></trkpt>\n"
+                + "<trkpt lat=\"59.901\" lon=\"10.702\"><time>2019-06-01T12:00:05.5+02:00</time><speed>4.5</speed><course>90</course></trkpt>\n"
+                + "</trkseg></trk></gpx>\n"
+        );
+        assertThat("Wrong number of points", points.size(), is(2));
+
+        LocationFix first = points.get(0);
+        assertEquals("Wrong latitude", 59.9, first.getLatitude(), DELTA);
+        assertEquals("Wrong longitude", 10.7, first.getLongitude(), DELTA);
+        assertThat("Wrong timestamp", first.getTimestamp(), is(1559383200000L));
+        assertThat("Wrong provider", first.getProvider(), is(LocationProvider.FINE));
+        assertThat("Speed without speed element", first.hasSpeed(), is(false));
+        assertThat("Bearing without course element", first.hasBearing(), is(false));
+
+        LocationFix second = points.get(1);
+        assertThat("Time zone offset not applied", second.getTimestamp(), is(1559383205500L));
+        assertThat("Speed not read", second.hasSpeed(), is(true));
+        assertThat("Wrong speed", second.getSpeed(), is(4.5F));
+        assertThat("Bearing not read", second.hasBearing(), is(true));
+        assertThat("Wrong bearing", second.getBearing(), is(90.0F));
+    }
+
+    @Test(expected = IOException.class)
+    public void gpxWithoutTime() throws IOException {
+        parse("<gpx><trk><trkseg><trkpt lat=\"59.9\" lon=\"10.7\"></trkpt></trkseg></trk></gpx>");
+    }
+
+    @Test
+    public void nmea() throws IOException {
+        List<LocationFix> points = parse(
+                "$GPRMC,123519.00,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W*44\n"
+                + "$GPRMC,123520.00,V,,,,,,,230394,,*17\n"
+                + "$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47\n"
+                + "$GPRMC,123521.00,A,4807.038,S,01131.000,W,022.4,084.4,230394,003.1,W*00\n"
+        );
+        assertThat("Only the valid RMC sentence should be read", points.size(), is(1));
+
+        LocationFix point = points.get(0);
+        assertEquals("Wrong latitude", 48.1173, point.getLatitude(), DELTA);
+        assertEquals("Wrong longitude", 11.516667, point.getLongitude(), DELTA);
+        assertThat("Wrong timestamp", point.getTimestamp(), is(764426119000L));
+        assertEquals("Speed not converted from knots", 11.523556, point.getSpeed(), 1.0E-4);
+        assertThat("Wrong bearing", point.getBearing(), is(84.4F));
+        assertThat("Accuracy without source", point.hasAccuracy(), is(false));
+    }
+
+    @Test
+    public void csv() throws IOException {
+        List<LocationFix> points = parse(
+                "time,lat,lon,speed,bearing,accuracy\n"
+                + "# Recorded on a test drive\n"
+                + "1559383200,59.9,10.7\n"
+                + "1559383201.25, 59.9001, 10.7002, 3.5, , 8\n"
+        );
+        assertThat("Wrong number of points", points.size(), is(2));
+
+        LocationFix first = points.get(0);
+        assertThat("Wrong timestamp", first.getTimestamp(), is(1559383200000L));
+        assertThat("Speed without column", first.hasSpeed(), is(false));
+        assertThat("Accuracy without column", first.hasAccuracy(), is(false));
+
+        LocationFix second = points.get(1);
+        assertThat("Fractional seconds not read", second.getTimestamp(), is(1559383201250L));
+        assertEquals("Wrong latitude", 59.9001, second.getLatitude(), DELTA);
+        assertThat("Wrong speed", second.getSpeed(), is(3.5F));
+        assertThat("Bearing from empty column", second.hasBearing(), is(false));
+        assertThat("Wrong accuracy", second.getAccuracy(), is(8.0F));
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedCSV() throws IOException {
+        parse("1559383200,59.9,north\n");
+    }
+}
@@ -0,0 +1,107 @@
+package info.varden.hauk.service.filter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+public final class KalmanLocationFilterTest {
+
+    private static final double LATITUDE = 59.9;
+    private static final double LONGITUDE = 10.7;
+    private static final double METERS_PER_DEGREE = 6371000.0 * Math.PI / 180.0;
+
+    private static double metersBetween(double lat1, double lon1, double lat2, double lon2) {
+        double north = (lat2 - lat1) * METERS_PER_DEGREE;
+        double east = (lon2 - lon1) * METERS_PER_DEGREE * Math.cos(Math.toRadians(lat1));
+        return Math.sqrt(north * north + east * east);
+    }
+
+    @Test
+    public void firstMeasurementAccepted() {
+        LocationFilter filter = new KalmanLocationFilter();
+        assertThat("First measurement rejected", filter.update(1000L, LATITUDE, LONGITUDE, 10.0F), is(true));
+        assertThat("Latitude changed", filter.getLatitude(), is(LATITUDE));
+        assertThat("Longitude changed", filter.getLongitude(), is(LONGITUDE));
+        assertThat("Accuracy not taken from measurement", filter.getAccuracy(), is(10.0F));
+    }
+
+    @Test
+    public void noiseIsSmoothed() {
+        LocationFilter filter = new KalmanLocationFilter();
+        Random random = new Random(42L);
+        double rawError = 0.0;
+        double filteredError = 0.0;
+        for (int i = 0; i < 120; i++) {
+            double lat = LATITUDE + random.nextGaussian() * 8.0 / METERS_PER_DEGREE;
+            double lon = LONGITUDE + random.nextGaussian() * 8.0 / METERS_PER_DEGREE;
+            assertThat("Noisy measurement rejected", filter.update(i * 1000L, lat, lon, 8.0F), is(true));
+            if (i >= 20) {
+                rawError += metersBetween(LATITUDE, LONGITUDE, lat, lon);
+                filteredError += metersBetween(LATITUDE, LONGITUDE, filter.getLatitude(), filter.getLongitude());
+            }
+        }
+        assertTrue("Filtered positions not closer to the true position", filteredError < rawError * 0.85);
+    }
+
+    @Test
+    public void constantVelocityTracked() {
+        LocationFilter filter = new KalmanLocationFilter();
+        double speed = 25.0 / METERS_PER_DEGREE;
+        for (int i = 0; i < 60; i++) {
+            assertThat("Measurement on a straight line rejected", filter.update(i * 1000L, LATITUDE + speed * i, LONGITUDE, 5.0F), is(true));
+        }
+        assertTrue("Estimate lags behind a moving device", metersBetween(LATITUDE + speed * 59, LONGITUDE, filter.getLatitude(), filter.getLongitude()) < 2.0);
+    }
+
+    @Test
+    public void turnsNotRejected() {
+        LocationFilter filter = new KalmanLocationFilter();
+        double cos = Math.cos(Math.toRadians(LATITUDE));
+        double north = 0.0;
+        double east = 0.0;
+        double heading = 0.0;
+        for (int i = 0; i < 100; i++) {
+            // Drive at 25 m/s, turning 90 degrees right and then left again over 10 seconds each.
+            if (i >= 30 && i < 40) heading += Math.PI / 20.0;
+            if (i >= 60 && i < 70) heading -= Math.PI / 20.0;
+            north += 25.0 * Math.cos(heading);
+            east += 25.0 * Math.sin(heading);
+            assertThat("Measurement in a turn rejected", filter.update(i * 1000L, LATITUDE + north / METERS_PER_DEGREE, LONGITUDE + east / (METERS_PER_DEGREE * cos), 5.0F), is(true));
+        }
+    }
+
+    @Test
+    public void jumpRejectedUntilConfirmed() {
+        LocationFilter filter = new KalmanLocationFilter();
+        for (int i = 0; i < 10; i++) filter.update(i * 1000L, LATITUDE, LONGITUDE, 5.0F);
+
+        double jumped = LATITUDE + 5000.0 / METERS_PER_DEGREE;
+        assertThat("Implausible jump accepted", filter.update(10000L, jumped, LONGITUDE, 5.0F), is(false));
+        assertTrue("Implausible jump moved the estimate", metersBetween(LATITUDE, LONGITUDE, filter.getLatitude(), filter.getLongitude()) < 1.0);
+        assertThat("Second jump accepted", filter.update(11000L, jumped, LONGITUDE, 5.0F), is(false));
+        assertThat("Repeated jump not accepted", filter.update(12000L, jumped, LONGITUDE, 5.0F), is(true));
+        assertThat("Filter did not restart at the new position", filter.getLatitude(), is(jumped));
+    }
+
+    @Test
+    public void inaccurateMeasurementHasLittleWeight() {
+        LocationFilter filter = new KalmanLocationFilter();
+        for (int i = 0; i < 10; i++) filter.update(i * 1000L, LATITUDE, LONGITUDE, 5.0F);
+
+        double offset = LATITUDE + 500.0 / METERS_PER_DEGREE;
+        assertThat("Inaccurate measurement rejected", filter.update(10000L, offset, LONGITUDE, 1000.0F), is(true));
+        assertTrue("Inaccurate measurement moved the estimate too far", metersBetween(LATITUDE, LONGITUDE, filter.getLatitude(), filter.getLongitude()) < 5.0);
+    }
+
+    @Test
+    public void resetAcceptsAnyMeasurement() {
+        LocationFilter filter = new KalmanLocationFilter();
+        filter.update(0L, LATITUDE, LONGITUDE, 5.0F);
+        filter.reset();
+        assertThat("Measurement after reset rejected", filter.update(1000L, -LATITUDE, -LONGITUDE, 5.0F), is(true));
+        assertThat("Estimate not restarted after reset", filter.getLongitude(), is(-LONGITUDE));
+    }
+}
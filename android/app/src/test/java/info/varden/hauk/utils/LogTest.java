@@ -0,0 +1,86 @@
+package info.varden.hauk.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+public final class LogTest {
+    private static final int BENCHMARK_WARMUP_ITERATIONS = 100000;
+    private static final int BENCHMARK_ITERATIONS = 1000000;
+
+    private int previousLevel;
+
+    @Before
+    public void saveLevel() {
+        this.previousLevel = Log.getLevel();
+    }
+
+    @After
+    public void restoreLevel() {
+        Log.setLevel(this.previousLevel);
+    }
+
+    @Test
+    public void isLoggable() {
+        Log.setLevel(Log.INFO);
+        assertThat("Verbose messages loggable at INFO", Log.isLoggable(Log.VERBOSE), is(false));
+        assertThat("Debug messages loggable at INFO", Log.isLoggable(Log.DEBUG), is(false));
+        assertThat("Info messages not loggable at INFO", Log.isLoggable(Log.INFO), is(true));
+        assertThat("Error messages not loggable at INFO", Log.isLoggable(Log.ERROR), is(true));
+    }
+
+    @Test
+    public void suppressedCallsDoNotFormat() {
+        // Suppressed calls must return before formatting their arguments or handing anything to a
+        // sink or to android.util.Log, which is not available in JVM tests and would throw here.
+        Log.setLevel(Log.INFO);
+        CountingArgument arg = new CountingArgument();
+        Log.v("Suppressed message %s", arg);
+        Log.d("Suppressed message %s %s", arg, 1);
+        Log.v("Suppressed message %s", new IllegalStateException(), arg);
+        assertThat("Arguments of suppressed calls were formatted", arg.count, is(0));
+    }
+
+    /**
+     * Microbenchmark that reports the cost of a suppressed log call. It makes no assertions, as
+     * its result depends on the machine it runs on, and is ignored by default; remove the
+     * annotation to run it.
+     */
+    @Test
+    @Ignore("Benchmark")
+    public void benchmarkSuppressedCalls() {
+        Log.setLevel(Log.INFO);
+        Object arg = new Object();
+        for (int i = 0; i < BENCHMARK_WARMUP_ITERATIONS; i++) {
+            Log.v("Suppressed message %s %s", arg, i);
+            Log.d("Suppressed message");
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            Log.v("Suppressed message %s %s", arg, i);
+            Log.d("Suppressed message");
+        }
+        double nanosPerCall = (double) (System.nanoTime() - start) / (2L * BENCHMARK_ITERATIONS);
+        System.out.println(String.format(Locale.US, "Suppressed log call: %.2f ns/call", nanosPerCall));
+    }
+
+    /**
+     * Log argument that counts how many times it is converted to a string.
+     */
+    private static final class CountingArgument {
+        private int count = 0;
+
+        @Override
+        public String toString() {
+            this.count++;
+            return "counted";
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package info.varden.hauk.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+public final class TLVReaderTest {
+    private static final int FIELD_STRING = 1;
+    private static final int FIELD_LONG = 2;
+    private static final int FIELD_FLOAT = 3;
+    private static final int FIELD_RECORD = 4;
+    private static final int FIELD_UNKNOWN = 300;
+
+    @Test
+    public void roundTrip() throws IOException {
+        byte[] data = new TLVWriter()
+                .putString(FIELD_STRING, "Hauk \u00e6\u00f8\u00e5")
+                .putLong(FIELD_LONG, -1234567890123L)
+                .putFloat(FIELD_FLOAT, 2.5F)
+                .putRecord(FIELD_RECORD, new TLVWriter().putLong(FIELD_LONG, Long.MIN_VALUE))
+                .toByteArray();
+
+        TLVReader in = new TLVReader(data);
+        assertThat("Missing string field", in.next(), is(true));
+        assertThat("String not preserved", in.getString(), is("Hauk \u00e6\u00f8\u00e5"));
+        assertThat("Missing long field", in.next(), is(true));
+        assertThat("Negative long not preserved", in.getLong(), is(-1234567890123L));
+        assertThat("Missing float field", in.next(), is(true));
+        assertThat("Float not preserved", in.getFloat(), is(2.5F));
+        assertThat("Missing record field", in.next(), is(true));
+
+        TLVReader nested = in.getRecord();
+        assertThat("Missing nested field", nested.next(), is(true));
+        assertThat("Nested long not preserved", nested.getLong(), is(Long.MIN_VALUE));
+        assertThat("Nested record does not end", nested.next(), is(false));
+        assertThat("Record does not end", in.next(), is(false));
+    }
+
+    @Test
+    public void skipsUnknownFields() throws IOException {
+        byte[] data = new TLVWriter()
+                .putBytes(FIELD_UNKNOWN, new byte[] {1, 2, 3})
+                .putInt(FIELD_LONG, 42)
+                .toByteArray();
+
+        TLVReader in = new TLVReader(data);
+        int value = 0;
+        while (in.next()) {
+            if (in.getTag() == FIELD_LONG) value = in.getInt();
+        }
+        assertThat("Known field not read after unknown field", value, is(42));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedRecord() throws IOException {
+        byte[] data = new TLVWriter().putString(FIELD_STRING, "truncated").toByteArray();
+        TLVReader in = new TLVReader(Arrays.copyOf(data, data.length - 1));
+        //noinspection StatementWithEmptyBody
+        while (in.next());
+    }
+}
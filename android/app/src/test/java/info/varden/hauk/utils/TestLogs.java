@@ -0,0 +1,30 @@
+package info.varden.hauk.utils;
+
+/**
+ * Gives JVM tests outside this package control over logging. Log messages that are not suppressed
+ * are written to android.util.Log, which is not available in JVM tests.
+ */
+public final class TestLogs {
+    private TestLogs() {
+    }
+
+    /**
+     * Suppresses all log messages.
+     *
+     * @return The previous log level, to pass to {@link #restore(int)}.
+     */
+    public static int silence() {
+        int previous = Log.getLevel();
+        Log.setLevel(Log.ASSERT + 1);
+        return previous;
+    }
+
+    /**
+     * Restores the log level that was in effect before {@link #silence()} was called.
+     *
+     * @param level The previous log level.
+     */
+    public static void restore(int level) {
+        Log.setLevel(level);
+    }
+}
@@ -48,6 +48,7 @@ if (!$share->exists()) {
                 "expire" => $share->getExpirationTime(),
                 "serverTime" => microtime(true),
                 "interval" => $share->getAutoInterval(),
+                "intervals" => $share->getAllIntervals(),
                 "points" => $share->getAllPoints($sinceTime)
             ));
             break;
@@ -7,59 +7,130 @@
 include("../include/inc.php");
 header("X-Hauk-Version: ".BACKEND_VERSION);
 
-requirePOST(
-    "lat",  // Current latitude.
-    "lon",  // Current longitude.
-    "time", // Current timestamp.
-    "sid"   // Session ID to post to.
-);
+// Since v1.7, sessions that are not end-to-end encrypted may post points in a
+// compact binary format instead of as form fields.
+$binary = isset($_SERVER["CONTENT_TYPE"]) && strpos($_SERVER["CONTENT_TYPE"], CONTENT_TYPE_BINARY_LOCATION) === 0;
+
+if ($binary) {
+    $decoded = decodeBinaryLocations(file_get_contents("php://input"));
+    if ($decoded === null) die("Missing data!\n");
+    $sid = $decoded["sid"];
+} else {
+    // The location fields (lat, lon, time, or env for sealed end-to-end
+    // encrypted points) are checked for each point below.
+    requirePOST(
+        "sid"   // Session ID to post to.
+    );
+    $sid = $_POST["sid"];
+}
 
 $memcache = memConnect();
 
 // Retrieve the session data from memcached.
-$sid = $_POST["sid"];
 $session = new Client($memcache, $sid);
 if (!$session->exists()) die($LANG['session_expired']."\n");
 
-if (!$session->isEncrypted()) {
-    // Perform input validation.
-    $lat = floatval($_POST["lat"]);
-    $lon = floatval($_POST["lon"]);
-    $time = floatval($_POST["time"]);
-    if ($lat < -90 || $lat > 90 || $lon < -180 || $lon > 180) die($LANG['location_invalid']."\n");
-
-    // Not all devices report speed and accuracy, but if available, report them
-    // too.
-    $speed = isset($_POST["spd"]) ? floatval($_POST["spd"]) : null;
-    $accuracy = isset($_POST["acc"]) ? floatval($_POST["acc"]) : null;
-    $provider = isset($_POST["prv"]) && $_POST["prv"] == "1" ? 1 : 0;
-
-    // The location data object contains the sharing interval (i), duration (d)
-    // and a location list (l). Each entry in the location list contains a
-    // latitude, longitude, timestamp, provider, accuracy and speed, in that
-    // order, as an array.
-    $session->addPoint([$lat, $lon, $time, $provider, $accuracy, $speed])->save();
+if ($binary) {
+    // The binary format carries plain-text coordinates, which end-to-end
+    // encrypted sessions never send.
+    if ($session->isEncrypted()) die("Missing data!\n");
+    $points = [];
+    foreach ($decoded["points"] as $point) {
+        if ($point[0] < -90 || $point[0] > 90 || $point[1] < -180 || $point[1] > 180) die($LANG['location_invalid']."\n");
+        $points[] = $point;
+    }
+
+} else {
+    // Since v1.7, several points can be posted in one request by sending each
+    // field as an indexed array, e.g. lat[0], lat[1]. A single point is treated
+    // as a batch of one so that both forms share the same code path.
+    $indexField = isset($_POST["env"]) ? "env" : "lat";
+    if (!isset($_POST[$indexField])) die("Missing data!\n");
+    $batch = is_array($_POST[$indexField]);
+    $indices = $batch ? array_keys($_POST[$indexField]) : [null];
+    $points = [];
+
+    foreach ($indices as $i) {
+        // Fetch a field for the current point, or null if it was not provided.
+        $field = function($key) use ($batch, $i) {
+            if (!isset($_POST[$key])) return null;
+            if (!$batch) return is_array($_POST[$key]) ? null : $_POST[$key];
+            return is_array($_POST[$key]) && isset($_POST[$key][$i]) ? $_POST[$key][$i] : null;
+        };
+        // Since v1.7, end-to-end encrypted points may instead be sealed in a
+        // single authenticated envelope (env) that contains all fields.
+        $envelope = $session->isEncrypted() ? $field("env") : null;
+        if ($envelope === null && ($field("lat") === null || $field("lon") === null || $field("time") === null)) die("Missing data!\n");
+
+        if (!$session->isEncrypted()) {
+            // Perform input validation.
+            $lat = floatval($field("lat"));
+            $lon = floatval($field("lon"));
+            $time = floatval($field("time"));
+            if ($lat < -90 || $lat > 90 || $lon < -180 || $lon > 180) die($LANG['location_invalid']."\n");
 
+            // Not all devices report speed, accuracy and bearing, but if
+            // available, report them too. Viewers use the speed and bearing to
+            // extrapolate the position of moving users between updates.
+            $speed = $field("spd") !== null ? floatval($field("spd")) : null;
+            $accuracy = $field("acc") !== null ? floatval($field("acc")) : null;
+            $bearing = $field("brg") !== null ? floatval($field("brg")) : null;
+            $provider = $field("prv") == "1" ? 1 : 0;
+
+            // The location data object contains the sharing interval (i),
+            // duration (d) and a location list (l). Each entry in the location
+            // list contains a latitude, longitude, timestamp, provider,
+            // accuracy, speed and bearing, in that order, as an array.
+            $points[] = [$lat, $lon, $time, $provider, $accuracy, $speed, $bearing];
+
+        } else {
+            // Input validation cannot be performed for end-to-end encrypted
+            // data. End-to-end encrypted connections also have an IV field used
+            // to decrypt the data fields.
+            $iv = $field("iv");
+            if ($iv === null) die("Missing data!\n");
+
+            if ($envelope !== null) {
+                // The fix time is sealed in the envelope, so the time the point
+                // was received is stored alongside it for use with getPoints().
+                $points[] = [$iv, $envelope, microtime(true)];
+            } else {
+                // The IV field is prepended to the array to send to the client.
+                $points[] = [$iv, $field("lat"), $field("lon"), $field("time"), $field("prv"), $field("acc"), $field("spd")];
+            }
+        }
+    }
+}
+
+// All points are appended before saving, so that a batch only results in a
+// single write to the storage backend.
+foreach ($points as $point) $session->addPoint($point);
+
+// Since v1.7, clients that adapt their update interval to how fast they are
+// moving report the interval they are currently using (int), so that viewers
+// know when to expect the next update.
+if ($binary) {
+    $interval = $decoded["interval"];
 } else {
-    // Input validation cannot be performed for end-to-end encrypted data.
-    $lat = $_POST["lat"];
-    $lon = $_POST["lon"];
-    $time = $_POST["time"];
-    $speed = isset($_POST["spd"]) ? $_POST["spd"] : null;
-    $accuracy = isset($_POST["acc"]) ? $_POST["acc"] : null;
-    $provider = isset($_POST["prv"]) ? $_POST["prv"] : null;
-
-    // End-to-end encrypted connections also have an IV field used to decrypt
-    // the data fields.
-    requirePOST("iv");
-    $iv = $_POST["iv"];
-
-    // The IV field is prepended to the array to send to the client.
-    $session->addPoint([$iv, $lat, $lon, $time, $provider, $accuracy, $speed])->save();
+    $interval = isset($_POST["int"]) && !is_array($_POST["int"]) ? floatval($_POST["int"]) : null;
+}
+if ($interval !== null && $interval >= getConfig("min_interval") && $interval <= getConfig("max_duration")) {
+    $session->setInterval($interval);
 }
+$session->save();
 
 if ($session->hasExpired()) {
     echo $LANG['session_expired']."\n";
 } else {
-    echo "OK\n".getConfig("public_url")."?%s\n".implode(",", $session->getTargetIDs())."\n";
+    // Since v1.7, the list of shares is identified by a token that is sent
+    // after it. Clients send the token of the list they already have in the
+    // X-Hauk-Share-List header, and the list is left out if it is unchanged.
+    $linkFormat = getConfig("public_url")."?%s";
+    $targets = implode(",", $session->getTargetIDs());
+    $token = substr(sha1($linkFormat."\n".$targets), 0, 16);
+    if (isset($_SERVER["HTTP_X_HAUK_SHARE_LIST"]) && $_SERVER["HTTP_X_HAUK_SHARE_LIST"] === $token) {
+        echo "OK\n";
+    } else {
+        echo "OK\n".$linkFormat."\n".$targets."\n".$token."\n";
+    }
 }
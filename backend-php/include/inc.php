@@ -3,7 +3,7 @@
 // An include file containing constants and common functions for the Hauk
 // backend. It loads the configuration file and declares it as a constant.
 
-const BACKEND_VERSION = "1.6.2";
+const BACKEND_VERSION = "1.7";
 const LANGUAGES = ["ca", "de", "en", "eu", "fr", "it", "nb_NO", "nl", "nn", "ro", "ru", "tr", "uk"];
 
 // Create mode for create.php. Corresponds with the constants from the Android
@@ -25,6 +25,14 @@ const GROUP_PIN_MAX = 999999;
 const MEMCACHED = 0;
 const REDIS = 1;
 
+// Content type of location updates posted in the compact binary format.
+const CONTENT_TYPE_BINARY_LOCATION = "application/vnd.hauk.location";
+const BINARY_LOCATION_FORMAT_VERSION = 1;
+
+// Number of elements in a stored point that is sealed in an end-to-end
+// encrypted envelope: IV, envelope and time received.
+const ENVELOPE_POINT_SIZE = 3;
+
 // Authentication methods.
 const PASSWORD = 0;
 const HTPASSWD = 1;
@@ -564,6 +572,20 @@ class GroupShare extends Share {
         return $interval;
     }
 
+    // Returns a map of nicknames and the users' current sharing intervals. Since
+    // v1.7, a user's interval may change during a share if their client adapts
+    // it to how fast they are moving.
+    public function getAllIntervals() {
+        $intervals = array();
+        $hosts = $this->getHosts();
+        foreach ($hosts as $nick => $host) {
+            if ($host->exists()) {
+                $intervals[$nick] = $host->getInterval();
+            }
+        }
+        return $intervals;
+    }
+
     // Returns a map of nicknames and the users' corresponding coordinates.
     public function getAllPoints($sinceTime) {
         $points = array();
@@ -744,9 +766,9 @@ class Client {
     }
 
     // Adds a new coordinate point to the session. $point is an array containing
-    // a latitude, longitude, timestamp, accuracy and speed, in that order. The
-    // latter two elements may be null. Does not take effect until save() is
-    // called.
+    // a latitude, longitude, timestamp, provider, accuracy, speed and bearing, in
+    // that order. The last three elements may be null, and the bearing is only
+    // stored since v1.7. Does not take effect until save() is called.
     public function addPoint($point) {
         $this->sessionData["points"][] = $point;
         // Ensure that we don't exceed the maximum number of points stored in
@@ -768,7 +790,13 @@ class Client {
             $timeIndex = $this->isEncrypted() ? 3 : 2;
             // only return points which are more recent than $oldestPointTime
             foreach ($this->sessionData["points"] as $point) {
-                if (floatval($point[$timeIndex]) > $sinceTime) {
+                // Sealed end-to-end encrypted points only store the time the
+                // point was received in plain text. This is server time, while
+                // fix times come from the phone's clock, so the frontend sends
+                // the receive time of the last sealed point it has as the since
+                // time for such sessions.
+                $pointTimeIndex = count($point) == ENVELOPE_POINT_SIZE ? ENVELOPE_POINT_SIZE - 1 : $timeIndex;
+                if (floatval($point[$pointTimeIndex]) > $sinceTime) {
                     array_push($newPoints, $point);
                 }
             }
@@ -793,6 +821,102 @@ function requirePOST(...$args) {
     }
 }
 
+// Decodes location points posted in the compact binary format used by the
+// Android app since v1.7. See BinaryLocationEncoder in the app for a description
+// of the format. Returns an array with the session ID (sid), a list of points
+// (points) in the same format as stored by Client::addPoint() and the update
+// interval reported by the client in seconds (interval), or null if the data is
+// malformed. The interval is null if the client did not report it.
+function decodeBinaryLocations($data) {
+    $len = strlen($data);
+    $pos = 0;
+
+    // Reads an unsigned LEB128 variable-length integer.
+    $varint = function() use ($data, $len, &$pos) {
+        $value = 0;
+        $shift = 0;
+        do {
+            if ($pos >= $len || $shift > 56) return null;
+            $byte = ord($data[$pos++]);
+            $value |= ($byte & 0x7F) << $shift;
+            $shift += 7;
+        } while ($byte & 0x80);
+        return $value;
+    };
+
+    // Reads an unsigned big-endian 32-bit integer.
+    $uint32 = function() use ($data, $len, &$pos) {
+        if ($pos + 4 > $len) return null;
+        $value = unpack("N", substr($data, $pos, 4))[1];
+        $pos += 4;
+        return $value;
+    };
+
+    if ($len < 2 || ord($data[0]) !== BINARY_LOCATION_FORMAT_VERSION) return null;
+    $sidLength = ord($data[1]);
+    $pos = 2;
+    if ($pos + $sidLength > $len) return null;
+    $sid = substr($data, $pos, $sidLength);
+    $pos += $sidLength;
+
+    // Each point takes at least 10 bytes, which bounds the number of points.
+    $count = $varint();
+    if ($count === null || $count > $len) return null;
+
+    // The timestamp of the first point is sent as a 64-bit integer.
+    $high = $uint32();
+    $low = $uint32();
+    if ($high === null || $low === null) return null;
+    $time = $high * 4294967296 + $low;
+
+    $points = [];
+    for ($i = 0; $i < $count; $i++) {
+        $lat = $uint32();
+        $lon = $uint32();
+        $delta = $varint();
+        if ($lat === null || $lon === null || $delta === null || $pos >= $len) return null;
+
+        // Coordinates are signed fixed-point numbers, and the time delta is
+        // zigzag-encoded.
+        if ($lat >= 0x80000000) $lat -= 0x100000000;
+        if ($lon >= 0x80000000) $lon -= 0x100000000;
+        $time += ($delta >> 1) ^ -($delta & 1);
+
+        $flags = ord($data[$pos++]);
+        $provider = $flags & 0x1 ? 1 : 0;
+        $speed = null;
+        $accuracy = null;
+        if ($flags & 0x2) {
+            $speed = $varint();
+            if ($speed === null) return null;
+            $speed /= 10;
+        }
+        if ($flags & 0x4) {
+            $accuracy = $varint();
+            if ($accuracy === null) return null;
+            $accuracy /= 10;
+        }
+        $bearing = null;
+        if ($flags & 0x8) {
+            $bearing = $varint();
+            if ($bearing === null) return null;
+            $bearing /= 10;
+        }
+
+        $points[] = [$lat / 10000000, $lon / 10000000, $time / 1000, $provider, $accuracy, $speed, $bearing];
+    }
+
+    // Clients with an adaptive update interval append the interval they are
+    // currently using after the points.
+    $interval = null;
+    if ($pos < $len) {
+        $interval = $varint();
+        if ($interval === null) return null;
+    }
+
+    return ["sid" => $sid, "points" => $points, "interval" => $interval];
+}
+
 // Checks whether or not the user is correctly authenticated based on the
 // server's requirements.
 function authenticated() {
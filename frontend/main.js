@@ -457,14 +457,17 @@ function setNewInterval(expire, interval, serverTime) {
     }, interval * 1000);
 }
 
-// Scans across all most recent points and returns the time of the oldest one
+// Scans across all most recent points and returns the time of the oldest one.
+// The server filters sealed points by the time it received them, as their fix
+// time is encrypted, so that time is used for them instead of the fix time.
 function getOldestPointTime() {
     var oldestTime = Number.MAX_VALUE;
     var foundTime = false;
     for (var share in shares) {
         var points = shares[share].points
         if (points && points.length > 0 ) {
-            var mostRecentTime = points[ points.length-1 ].time
+            var last = points[ points.length-1 ];
+            var mostRecentTime = last.recv !== null ? last.recv : last.time;
             oldestTime = mostRecentTime < oldestTime ? mostRecentTime : oldestTime;
             foundTime = true;
         }
@@ -483,8 +486,15 @@ var hasInitiated = false;
 // The user being followed on the map.
 var following = null;
 
-// The decryption key for end-to-end encrypted shares.
+// The decryption keys for end-to-end encrypted shares. Points are either
+// encrypted field by field using AES-CBC, or sealed as a single record using
+// AES-GCM (since v1.7); both keys are derived from the same password.
 var aesKey = null;
+var gcmKey = null;
+
+// Number of elements in a stored point that is sealed in an AES-GCM envelope:
+// IV, envelope and the time the point was received by the server.
+var ENVELOPE_POINT_SIZE = 3;
 
 // Button handler for the "Decrypt" button on the E2E password prompt.
 var acceptKeyFunc = null;
@@ -501,6 +511,22 @@ function byteArray(base64) {
     return arr;
 }
 
+// Decrypts a point that is sealed in an AES-GCM envelope. The envelope is a
+// single comma-separated record of latitude, longitude, time, provider,
+// accuracy, speed and bearing, where empty fields are not available. The time
+// the server received the point is kept as the recv property of the result.
+function openEnvelope(point, decoder) {
+    return crypto.subtle
+        .decrypt({name: "AES-GCM", iv: byteArray(point[0])}, gcmKey, byteArray(point[1]))
+        .then(function(record) {
+            var fields = decoder.decode(record).split(",").map(function(field) {
+                return field === "" ? null : parseFloat(field);
+            });
+            fields.recv = parseFloat(point[ENVELOPE_POINT_SIZE - 1]);
+            return fields;
+        });
+}
+
 // Follow a user on the map.
 function follow(user) {
     following = shares[user].id;
@@ -568,17 +594,20 @@ function processUpdate(data, init) {
                 // Derive the encryption key using PBKDF2 with SHA-1. SHA-1 was chosen
                 // because of availability in Android.
                 crypto.subtle
-                    .importKey("raw", new TextEncoder("utf-8").encode(password), "PBKDF2", false, ["deriveKey"])
-                    .then(key => crypto.subtle.deriveKey(
+                    .importKey("raw", new TextEncoder("utf-8").encode(password), "PBKDF2", false, ["deriveBits"])
+                    .then(key => crypto.subtle.deriveBits(
                         {name: "PBKDF2", salt: salt, iterations: 65536, hash: "SHA-1"},
                         key,
-                        {name: "AES-CBC", length: 256},
-                        false,
-                        ["decrypt"]
+                        256
                     ))
-                    .then(key => {
-                        // Store the crypto key and re-process the update.
-                        aesKey = key;
+                    .then(bits => Promise.all([
+                        crypto.subtle.importKey("raw", bits, {name: "AES-CBC"}, false, ["decrypt"]),
+                        crypto.subtle.importKey("raw", bits, {name: "AES-GCM"}, false, ["decrypt"])
+                    ]))
+                    .then(keys => {
+                        // Store the crypto keys and re-process the update.
+                        aesKey = keys[0];
+                        gcmKey = keys[1];
                         processUpdate(data, init);
                     });
             };
@@ -595,11 +624,15 @@ function processUpdate(data, init) {
     } else if (data.encrypted) {
         // The data is encrypted, but now we have a key we can use to decrypt
         // it. Decrypt each point using the key.
-        var algo = {name: "AES-CBC"};
-
+        var decoder = new TextDecoder("utf-8");
         var pointPromises = [];
         for (var i = 0; i < data.points.length; i++) {
-            algo.iv = byteArray(data.points[i][0]);
+            if (data.points[i].length == ENVELOPE_POINT_SIZE) {
+                pointPromises.push(openEnvelope(data.points[i], decoder));
+                continue;
+            }
+
+            var algo = {name: "AES-CBC", iv: byteArray(data.points[i][0])};
             var promises = [];
             for (var j = 1; j < data.points[i].length; j++) {
                 // Check that the array entry is not null to prevent an
@@ -614,28 +647,23 @@ function processUpdate(data, init) {
                     }));
                 }
             }
-            pointPromises.push(Promise.all(promises));
+            pointPromises.push(Promise.all(promises).then(function(values) {
+                // Parse all fields and convert them to floating point values
+                // (all values in the array are currently numbers).
+                return values.map(function(value) {
+                    // Check that the value isn't null to avoid exceptions.
+                    return value !== null ? parseFloat(decoder.decode(value)) : null;
+                });
+            }));
         }
 
         // Wait for all points to be decrypted.
         Promise
             .all(pointPromises)
             .then(function(values) {
-                // Parse all points and conver them to floating point values
-                // (all values in the array are currently numbers).
-                var decoder = new TextDecoder("utf-8");
+                // Replace the encrypted points with the decrypted fields.
                 for (var i = 0; i < values.length; i++) {
-                    for (var j = 0; j < values[i].length; j++) {
-                        // Check that the value isn't null to avoid exceptions.
-                        if (values[i][j] !== null) {
-                            data.points[i][j] = parseFloat(decoder.decode(values[i][j]));
-                        } else {
-                            data.points[i][j] = null;
-                        }
-                    }
-                    // The IV was the first item in the array, so all items have
-                    // been shifted up once. Pop the last array element off.
-                    data.points[i].pop();
+                    data.points[i] = values[i];
                 }
 
                 // Flag the data as unencrypted and re-process the update.
@@ -647,6 +675,7 @@ function processUpdate(data, init) {
                 // key and prompt the user for the password again.
                 console.log(error);
                 aesKey = null;
+                gcmKey = null;
                 if (!init) {
                     clearInterval(fetchIntv);
                     clearInterval(countIntv);
@@ -706,6 +735,11 @@ function processUpdate(data, init) {
             var prov = users[user][i][3];
             var acc = users[user][i][4];
             var spd = users[user][i][5];
+            // Bearing is only sent by clients since v1.7.
+            var brg = users[user][i].length > 6 ? users[user][i][6] : null;
+            // Points sealed in an envelope also carry the time they were
+            // received by the server.
+            var recv = users[user][i].recv !== undefined ? users[user][i].recv : null;
 
             // Default to "Fine" provider for older clients.
             if (prov === null) prov = LOC_PROVIDER_FINE;
@@ -742,8 +776,11 @@ function processUpdate(data, init) {
                     shares[user].marker.addTo(markerLayer);
                 } else {
                     // If there is a marker, draw a line from its last location
-                    // instead and move the marker.
-                    line = L.polyline([shares[user].marker.getLatLng(), [lat, lon]], {color: TRAIL_COLOR}).addTo(markerLayer);
+                    // instead and move the marker. The marker may have been
+                    // moved to an extrapolated position, so the line starts at
+                    // the last received point.
+                    var from = lastPoint !== null ? [lastPoint.lat, lastPoint.lon] : shares[user].marker.getLatLng();
+                    line = L.polyline([from, [lat, lon]], {color: TRAIL_COLOR}).addTo(markerLayer);
                     shares[user].marker.setLatLng([lat, lon]);
                 }
                 // Draw an accuracy circle if GPS accuracy was provided by the
@@ -754,7 +791,7 @@ function processUpdate(data, init) {
                     shares[user].circle.setLatLng([lat, lon]);
                     if (acc !== null) shares[user].circle.setRadius(acc);
                 }
-                shares[user].points.push({lat: lat, lon: lon, line: line, time: time, spd: spd, acc: acc});
+                shares[user].points.push({lat: lat, lon: lon, line: line, time: time, recv: recv, spd: spd, acc: acc, brg: brg});
                 lastPoint = shares[user].points[shares[user].points.length - 1];
             }
         }
@@ -803,18 +840,38 @@ function processUpdate(data, init) {
             hasReceivedFirst = true;
         }
 
+        // Since v1.7, clients may skip updates while they move steadily, as
+        // long as their position can be predicted from the speed and bearing
+        // of the last update. Extrapolate the position of moving users until
+        // they would be considered offline.
+        if (lastPoint !== null) {
+            var position = {lat: lastPoint.lat, lon: lastPoint.lon};
+            if (lastPoint.spd !== null && lastPoint.spd > 0 && lastPoint.brg !== null) {
+                var elapsed = Math.min(data.serverTime - lastPoint.time, getUserInterval(data, user) + OFFLINE_TIMEOUT);
+                if (elapsed > 0) position = extrapolate(lastPoint, elapsed);
+            }
+            shares[user].marker.setLatLng([position.lat, position.lon]);
+            if (shares[user].circle !== null) shares[user].circle.setLatLng([position.lat, position.lon]);
+        }
+
         // Move the marker if needed.
         if (lastPoint !== null && !multiUser && following !== null) {
-            map.panTo([lastPoint.lat, lastPoint.lon]);
+            map.panTo(shares[user].marker.getLatLng());
         } else if (lastPoint !== null && multiUser && following == shares[user].id) {
-            map.panTo([lastPoint.lat, lastPoint.lon]);
+            map.panTo(shares[user].marker.getLatLng());
         }
 
-        // Rotate the marker to the direction of movement.
+        // Rotate the marker to the direction of movement, preferring the
+        // bearing reported by the client.
         var eArrow = document.getElementById("arrow-" + shares[user].id);
-        if (eArrow !== null && shares[user].points.length >= 2) {
-            var last = shares[user].points.length - 1;
-            eArrow.style.transform = "rotate(" + angle(shares[user].points[last - 1], shares[user].points[last]) + "deg)";
+        var hasBearing = lastPoint !== null && lastPoint.brg !== null;
+        if (eArrow !== null && (hasBearing || shares[user].points.length >= 2)) {
+            if (hasBearing) {
+                eArrow.style.transform = "rotate(" + lastPoint.brg + "deg)";
+            } else {
+                var last = shares[user].points.length - 1;
+                eArrow.style.transform = "rotate(" + angle(shares[user].points[last - 1], shares[user].points[last]) + "deg)";
+            }
             if (vel.toFixed(1) == "0.0") {
                 eArrow.className = "arrow still-" + shares[user].state;
             } else {
@@ -842,15 +899,16 @@ function processUpdate(data, init) {
         if (!shares.hasOwnProperty(user)) continue;
 
         // Gray out the user's location if no data has been received for the
-        // OFFLINE_TIMEOUT.
+        // OFFLINE_TIMEOUT after the next update was expected. Since v1.7, the
+        // user's interval may grow while they are not moving, and group shares
+        // report the interval of each user separately.
         var eArrow = document.getElementById("arrow-" + shares[user].id);
         if (eArrow !== null) {
             var last = shares[user].points.length - 1;
             var point = shares[user].points[last];
             var eLabel = document.getElementById("label-" + shares[user].id);
             var eLastSeen = document.getElementById("last-seen-" + shares[user].id);
-
-            if (point.time < data.serverTime - OFFLINE_TIMEOUT) {
+            if (point.time < data.serverTime - getUserInterval(data, user) - OFFLINE_TIMEOUT) {
                 eArrow.className = eArrow.className.split("live").join("dead").split("rough").join("dead");
                 if (eLabel !== null) eLabel.className = 'dead';
                 if (eLastSeen !== null) {
@@ -900,6 +958,12 @@ function processUpdate(data, init) {
     }
 }
 
+// Returns the update interval of the given user in seconds. Group shares report
+// the interval of each user separately since v1.7.
+function getUserInterval(data, user) {
+    return data.intervals && data.intervals.hasOwnProperty(user) ? data.intervals[user] : data.interval;
+}
+
 function setAccuracyCircleColor(circle, color) {
     if (circle) {
         circle.setStyle({
@@ -922,6 +986,17 @@ function distance(from, to) {
     return d;
 }
 
+// Calculates the position reached after moving from the given point along its
+// bearing at its speed for the given number of seconds.
+function extrapolate(from, seconds) {
+    var d2r = Math.PI / 180;
+    var lat = from.lat * d2r, lon = from.lon * d2r, brg = from.brg * d2r;
+    var dist = from.spd * seconds * 2 / HAV_MOD;
+    var toLat = Math.asin(Math.sin(lat) * Math.cos(dist) + Math.cos(lat) * Math.sin(dist) * Math.cos(brg));
+    var toLon = lon + Math.atan2(Math.sin(brg) * Math.sin(dist) * Math.cos(lat), Math.cos(dist) - Math.sin(lat) * Math.sin(toLat));
+    return {lat: toLat / d2r, lon: toLon / d2r};
+}
+
 // Calculates a velocity using the velocity unit from the config.
 function velocity(distance, intv) {
     if (intv == 0) return 0.0;